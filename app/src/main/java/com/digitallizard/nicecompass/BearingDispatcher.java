@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Samples the shared compass for any number of clients, each at its own rate, and hands the samples over in batches.
+ * A client sampling at 1Hz in batches of 30 is only called every 30 seconds. One thread takes every sample,
+ * and a bearing is only worked out once however many clients want it at that moment.
+ * The sensors stay registered while there is at least one client.
+ */
+public class BearingDispatcher implements Runnable {
+	/** constants **/
+	private static final long NANOS_PER_MILLI = 1000000l;
+	
+	/**
+	 * Receives batches of samples on the dispatcher's thread. The arrays are reused once this returns,
+	 * so copy anything that is needed later, and return quickly as other clients wait.
+	 * The dispatcher is not locked while this runs, so clients can be added and removed from here.
+	 */
+	public interface Client {
+		/**
+		 * Bearings are magnetic, 0 <= x < 360, add the declination for true north.
+		 * Timestamps are System.nanoTime() of each sample.
+		 */
+		void onBearings(float[] bearings, long[] timestamps, int count, float declination);
+	}
+	
+	private static class Registration {
+		final Client client;
+		final long intervalNanos;
+		final float[] bearings;
+		final long[] timestamps;
+		int count;
+		long nextSample;
+		boolean removed; // set under the dispatcher's lock, a batch that was due is not delivered
+		
+		Registration(Client client, long intervalNanos, int batchSize, long firstSample) {
+			this.client = client;
+			this.intervalNanos = intervalNanos;
+			bearings = new float[batchSize];
+			timestamps = new long[batchSize];
+			nextSample = firstSample;
+		}
+	}
+	
+	/** variables **/
+	private static BearingDispatcher instance;
+	
+	private final CompassManager compass;
+	private final ArrayList<Registration> registrations;
+	private Thread thread;
+	private Registration delivering; // the registration whose client is being called
+	private Thread deliveringThread;
+	private boolean changed; // a client has been added since the thread last looked
+	private long sampleCount;
+	private long deliveryCount;
+	
+	public static synchronized BearingDispatcher getInstance(Context context) {
+		if(instance == null) {
+			instance = new BearingDispatcher(CompassManager.getInstance(context));
+		}
+		return instance;
+	}
+	
+	private int indexOf(Client client) {
+		for(int i = 0; i < registrations.size(); i++) {
+			if(registrations.get(i).client == client) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private synchronized void unregister(int index) {
+		Registration registration = registrations.remove(index);
+		registration.removed = true;
+		// let a delivery that has already started finish, unless the client is removing itself from it
+		while(delivering == registration && Thread.currentThread() != deliveringThread) {
+			try {
+				wait();
+			} catch(InterruptedException e) {
+				// do nothing, the delivery will end soon
+			}
+		}
+	}
+	
+	/**
+	 * Starts sampling for a client, replacing any earlier registration of it.
+	 */
+	public synchronized void addClient(Client client, float rateHz, int batchSize) {
+		if(rateHz <= 0 || batchSize < 1) {
+			throw new IllegalArgumentException("the rate and batch size must be positive");
+		}
+		int index = indexOf(client);
+		if(index >= 0) {
+			unregister(index);
+		}
+		if(registrations.isEmpty() && thread == null) {
+			// the first client, start everything up
+			compass.registerSensors();
+			thread = new Thread(this, "bearing dispatcher");
+			thread.start();
+		}
+		registrations.add(new Registration(client, (long)(1000000000d / rateHz), batchSize, System.nanoTime()));
+		changed = true;
+		notifyAll(); // the new client may need a sample sooner than the thread was going to wake
+	}
+	
+	/**
+	 * Stops sampling for a client, any samples not yet delivered are dropped.
+	 * Once this returns the client will not be called again.
+	 */
+	public synchronized void removeClient(Client client) {
+		int index = indexOf(client);
+		if(index < 0) {
+			return;
+		}
+		unregister(index);
+		if(registrations.isEmpty()) {
+			// the last client has gone
+			thread = null;
+			notifyAll();
+			compass.unregisterSensors();
+		}
+	}
+	
+	public synchronized int getClientCount() {
+		return registrations.size();
+	}
+	
+	public synchronized long getSampleCount() {
+		return sampleCount;
+	}
+	
+	public synchronized long getDeliveryCount() {
+		return deliveryCount;
+	}
+	
+	private synchronized boolean isSampleDue(long now) {
+		for(int i = 0; i < registrations.size(); i++) {
+			if(now >= registrations.get(i).nextSample) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private synchronized long addSample(float bearing, long now, ArrayList<Registration> due) {
+		// hand the sample to everybody due, and find out when the next one is wanted
+		long nextWake = Long.MAX_VALUE;
+		if(thread != Thread.currentThread()) {
+			return nextWake; // this thread has been stopped, a new one may have the clients now
+		}
+		boolean used = false;
+		for(int i = 0; i < registrations.size(); i++) {
+			Registration registration = registrations.get(i);
+			if(now >= registration.nextSample && registration.count < registration.bearings.length) {
+				registration.bearings[registration.count] = bearing;
+				registration.timestamps[registration.count] = now;
+				registration.count++;
+				registration.nextSample += registration.intervalNanos;
+				if(registration.nextSample <= now) {
+					registration.nextSample = now + registration.intervalNanos; // fallen behind, do not try to catch up
+				}
+				if(registration.count == registration.bearings.length) {
+					due.add(registration);
+				}
+				used = true;
+			}
+			nextWake = Math.min(nextWake, registration.nextSample);
+		}
+		if(used) {
+			sampleCount++;
+		}
+		return nextWake;
+	}
+	
+	private void deliver(Registration registration, float declination) {
+		synchronized(this) {
+			if(registration.removed) {
+				return;
+			}
+			delivering = registration;
+			deliveringThread = Thread.currentThread();
+		}
+		try {
+			registration.client.onBearings(registration.bearings, registration.timestamps, registration.count, declination);
+		} catch(RuntimeException e) {
+			Log.w("compass", "bearing client failed", e);
+		}
+		synchronized(this) {
+			registration.count = 0;
+			delivering = null;
+			deliveringThread = null;
+			deliveryCount++;
+			notifyAll(); // removeClient() may be waiting for this delivery to end
+		}
+	}
+	
+	public void run() {
+		Thread self = Thread.currentThread();
+		ArrayList<Registration> due = new ArrayList<Registration>(); // the batches filled by this sample
+		while(true) {
+			synchronized(this) {
+				if(thread != self) {
+					break;
+				}
+				changed = false;
+			}
+			// the compass and the clients are called without the lock, so adding and removing clients never waits on them
+			long now = System.nanoTime();
+			float bearing = 0f;
+			float declination = 0f;
+			if(isSampleDue(now)) {
+				// one sample serves everybody due now
+				bearing = compass.getPositiveBearing(false);
+				declination = compass.getDeclination();
+			}
+			long nextWake = addSample(bearing, now, due);
+			for(int i = 0; i < due.size(); i++) {
+				deliver(due.get(i), declination);
+			}
+			due.clear();
+			
+			// sleep until the next client is due, or something changes
+			synchronized(this) {
+				if(changed || nextWake == Long.MAX_VALUE) {
+					continue; // look again, if there are no clients the loop test will end the thread
+				}
+				long sleep = nextWake - System.nanoTime();
+				if(sleep > 0) {
+					try {
+						wait(sleep / NANOS_PER_MILLI, (int)(sleep % NANOS_PER_MILLI));
+					} catch(InterruptedException e) {
+						// do nothing, the loop will check if it should stop
+					}
+				}
+			}
+		}
+	}
+	
+	public BearingDispatcher(CompassManager compass) {
+		this.compass = compass;
+		registrations = new ArrayList<Registration>();
+	}
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * Smooths a stream of bearings by taking the vector mean of the last few samples.
+ * Each bearing is stored as a unit vector so the average is correct across 359 -- 0.
+ * The window size trades latency (larger is slower to respond) against noise.
+ */
+public class BearingFilter {
+	/** constants **/
+	private static final double DEGREES_TO_RADIANS = Math.PI / 180d;
+	private static final double RADIANS_TO_DEGREES = 180d / Math.PI;
+	
+	/** variables **/
+	private final double[] sinValues;
+	private final double[] cosValues;
+	private final int windowSize;
+	private int position; // the next slot to be overwritten
+	private int sampleCount; // the number of slots that hold real samples
+	private double sinTotal;
+	private double cosTotal;
+	private float bearing;
+	
+	private void recalculateTotals() {
+		// rebuild the running totals to stop rounding errors building up
+		sinTotal = 0d;
+		cosTotal = 0d;
+		for(int i = 0; i < sampleCount; i++) {
+			sinTotal += sinValues[i];
+			cosTotal += cosValues[i];
+		}
+	}
+	
+	public int getWindowSize() {
+		return windowSize;
+	}
+	
+	public boolean hasSamples() {
+		return sampleCount > 0;
+	}
+	
+	public float getBearing() {
+		return bearing;
+	}
+	
+	/**
+	 * Adds a bearing in degrees to the filter and returns the smoothed bearing, 0 <= x < 360.
+	 */
+	public float addSample(float newBearing) {
+		double radians = newBearing * DEGREES_TO_RADIANS;
+		double sin = Math.sin(radians);
+		double cos = Math.cos(radians);
+		
+		// replace the oldest sample with the new one
+		if(sampleCount == windowSize) {
+			sinTotal -= sinValues[position];
+			cosTotal -= cosValues[position];
+		} else {
+			sampleCount ++;
+		}
+		sinValues[position] = sin;
+		cosValues[position] = cos;
+		sinTotal += sin;
+		cosTotal += cos;
+		position ++;
+		if(position == windowSize) {
+			position = 0;
+			recalculateTotals();
+		}
+		
+		// if the samples cancel each other out there is no meaningful mean, keep the last one
+		if(sinTotal * sinTotal + cosTotal * cosTotal > 1e-12) {
+			bearing = (float)(Math.atan2(sinTotal, cosTotal) * RADIANS_TO_DEGREES);
+			if(bearing < 0) {
+				bearing += 360;
+			}
+			if(bearing >= 360) {
+				bearing -= 360;
+			}
+		}
+		return bearing;
+	}
+	
+	public void reset() {
+		position = 0;
+		sampleCount = 0;
+		sinTotal = 0d;
+		cosTotal = 0d;
+	}
+	
+	public BearingFilter(int windowSize) {
+		if(windowSize < 1) {
+			throw new IllegalArgumentException("the window size must be at least 1");
+		}
+		this.windowSize = windowSize;
+		sinValues = new double[windowSize];
+		cosValues = new double[windowSize];
+	}
+}
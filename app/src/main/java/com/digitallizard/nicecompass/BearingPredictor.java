@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * Extrapolates a bearing forward in time using the angular velocity worked out
+ * from the difference between successive bearings.
+ * The prediction horizon and velocity are both capped so a noisy sample cannot fling the card around.
+ */
+public class BearingPredictor {
+	/** constants **/
+	private static final long NANOS_PER_SECOND = 1000000000l;
+	private static final long MAX_SAMPLE_GAP_NANOS = 500000000l; // older samples do not say anything about the current motion
+	private static final float MAX_ANGULAR_VELOCITY = 720f; // degrees per second
+	
+	/** variables **/
+	private final long maxHorizonNanos;
+	private final float velocitySmoothing; // 0 < x <= 1, the weight given to the newest velocity
+	private boolean hasSample;
+	private float lastBearing;
+	private long lastTimestamp;
+	private float angularVelocity; // degrees per second
+	
+	private static float normalizeBearing(float bearing) {
+		// move the bearing into 0 <= x < 360
+		bearing = bearing % 360;
+		if(bearing < 0) {
+			bearing += 360;
+		}
+		return bearing;
+	}
+	
+	private static float getBearingDifference(float from, float to) {
+		// find the shortest signed rotation from one bearing to another, -180 < x <= 180
+		float difference = (to - from) % 360;
+		if(difference > 180) {
+			difference -= 360;
+		}
+		if(difference <= -180) {
+			difference += 360;
+		}
+		return difference;
+	}
+	
+	public float getAngularVelocity() {
+		return angularVelocity;
+	}
+	
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+	
+	/**
+	 * Records a new bearing in degrees, taken at the given System.nanoTime() based timestamp.
+	 */
+	public void update(float bearing, long timestampNanos) {
+		if(hasSample) {
+			long elapsed = timestampNanos - lastTimestamp;
+			if(elapsed <= 0) {
+				// a repeat of the same reading, just take the newer bearing
+				lastBearing = bearing;
+				return;
+			}
+			if(elapsed > MAX_SAMPLE_GAP_NANOS) {
+				// the old motion is meaningless after such a long gap
+				angularVelocity = 0f;
+			} else {
+				float velocity = getBearingDifference(lastBearing, bearing) * NANOS_PER_SECOND / elapsed;
+				angularVelocity += (velocity - angularVelocity) * velocitySmoothing;
+				// cap the velocity to something a hand can actually do
+				if(angularVelocity > MAX_ANGULAR_VELOCITY) {
+					angularVelocity = MAX_ANGULAR_VELOCITY;
+				}
+				if(angularVelocity < -MAX_ANGULAR_VELOCITY) {
+					angularVelocity = -MAX_ANGULAR_VELOCITY;
+				}
+			}
+		}
+		lastBearing = bearing;
+		lastTimestamp = timestampNanos;
+		hasSample = true;
+	}
+	
+	/**
+	 * Returns the bearing expected at the given time, 0 <= x < 360.
+	 */
+	public float getPredictedBearing(long targetTimeNanos) {
+		long horizon = targetTimeNanos - lastTimestamp;
+		if(!hasSample || horizon <= 0) {
+			return normalizeBearing(lastBearing);
+		}
+		if(horizon > maxHorizonNanos) {
+			horizon = maxHorizonNanos;
+		}
+		return normalizeBearing(lastBearing + angularVelocity * horizon / NANOS_PER_SECOND);
+	}
+	
+	public void reset() {
+		hasSample = false;
+		angularVelocity = 0f;
+	}
+	
+	public BearingPredictor(long maxHorizonNanos, float velocitySmoothing) {
+		this.maxHorizonNanos = maxHorizonNanos;
+		this.velocitySmoothing = velocitySmoothing;
+	}
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Holds decoded drawables at the size they are drawn, within a memory budget.
+ * Each image is decoded the first time it is asked for, scaled down in the decoder rather than at draw time,
+ * and the least recently used are recycled once the budget is reached. Everything can be released when the
+ * app is in the background, the next get() decodes it again.
+ */
+public class BitmapCache {
+	/** constants **/
+	private static final int MAX_ENTRIES = 8;
+	
+	private static class Entry {
+		int resourceId;
+		int width; // what was asked for, the bitmap may differ by a pixel
+		int height;
+		Bitmap bitmap;
+		long lastUsed;
+	}
+	
+	/** variables **/
+	private final Resources resources;
+	private final BitmapFactory.Options options;
+	private final Entry[] entries;
+	private int budgetBytes;
+	private int usedBytes;
+	private long useCount; // a clock for working out which entry was used least recently
+	private long frameStart; // the clock when the current frame began, anything used since is being drawn
+	private int decodeCount;
+	
+	private static int sizeOf(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+	
+	private Bitmap decode(int resourceId, int width, int height, Bitmap.Config config) {
+		// find the size of the image in the density bucket that will be used
+		options.inJustDecodeBounds = true;
+		options.inScaled = false;
+		options.inSampleSize = 1;
+		options.inDensity = 0;
+		options.inTargetDensity = 0;
+		BitmapFactory.decodeResource(resources, resourceId, options);
+		int sourceWidth = options.outWidth;
+		int sourceHeight = options.outHeight;
+		if(sourceWidth <= 0 || sourceHeight <= 0) {
+			return null;
+		}
+		
+		// subsampling is cheap, so take it as far as it goes without dropping below the wanted size
+		int sampleSize = 1;
+		while(sourceWidth / (sampleSize * 2) >= width && sourceHeight / (sampleSize * 2) >= height) {
+			sampleSize *= 2;
+		}
+		// then let the decoder scale the rest of the way, pretending the widths are densities
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = config;
+		options.inDither = config != Bitmap.Config.ARGB_8888;
+		if(sourceWidth / sampleSize > width) {
+			options.inScaled = true;
+			options.inDensity = sourceWidth / sampleSize;
+			options.inTargetDensity = width;
+		}
+		return BitmapFactory.decodeResource(resources, resourceId, options);
+	}
+	
+	private void remove(int index) {
+		Entry entry = entries[index];
+		if(entry.bitmap != null) {
+			usedBytes -= sizeOf(entry.bitmap);
+			entry.bitmap.recycle();
+			entry.bitmap = null;
+		}
+	}
+	
+	private void trimTo(int bytes) {
+		// recycle the least recently used until the total fits, but never anything the current frame is drawing
+		while(usedBytes > bytes) {
+			int oldest = -1;
+			for(int i = 0; i < MAX_ENTRIES; i++) {
+				Entry entry = entries[i];
+				if(entry.bitmap != null && entry.lastUsed <= frameStart && (oldest < 0 || entry.lastUsed < entries[oldest].lastUsed)) {
+					oldest = i;
+				}
+			}
+			if(oldest < 0) {
+				return; // everything left is in use, go over budget until the next frame
+			}
+			remove(oldest);
+		}
+	}
+	
+	/**
+	 * Returns the drawable decoded to about the given size, or null if the size is not known yet.
+	 * Images with transparency have to stay ARGB_8888, pass opaque for those without to halve their footprint.
+	 */
+	public synchronized Bitmap get(int resourceId, int width, int height, boolean opaque) {
+		if(width <= 0 || height <= 0) {
+			return null;
+		}
+		useCount++;
+		int free = -1;
+		for(int i = 0; i < MAX_ENTRIES; i++) {
+			Entry entry = entries[i];
+			if(entry.resourceId == resourceId) {
+				if(entry.bitmap != null && entry.width == width && entry.height == height) {
+					entry.lastUsed = useCount;
+					return entry.bitmap;
+				}
+				// released, or decoded for another size
+				remove(i);
+				free = i;
+				break;
+			}
+			if(free < 0 && entry.bitmap == null) {
+				free = i;
+			}
+		}
+		if(free < 0) {
+			// every slot is full, reuse the one used longest ago, there are more slots than a frame ever draws
+			free = 0;
+			for(int i = 1; i < MAX_ENTRIES; i++) {
+				if(entries[i].lastUsed < entries[free].lastUsed) {
+					free = i;
+				}
+			}
+			remove(free);
+		}
+		
+		Bitmap bitmap = decode(resourceId, width, height, opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+		if(bitmap == null) {
+			return null;
+		}
+		decodeCount++;
+		Entry entry = entries[free];
+		entry.resourceId = resourceId;
+		entry.width = width;
+		entry.height = height;
+		entry.bitmap = bitmap;
+		entry.lastUsed = useCount;
+		usedBytes += sizeOf(bitmap);
+		trimTo(budgetBytes);
+		return bitmap;
+	}
+	
+	/**
+	 * Marks the start of a frame. Bitmaps handed out after this are not recycled to make room for others
+	 * until the next frame starts, so one frame can never be left drawing a recycled bitmap.
+	 */
+	public synchronized void startFrame() {
+		frameStart = useCount;
+		// anything that had to go over budget last frame can go now
+		trimTo(budgetBytes);
+	}
+	
+	/**
+	 * Recycles every bitmap. Anything asked for afterwards is decoded again.
+	 * Only call this between frames, while nothing is drawing.
+	 */
+	public synchronized void release() {
+		for(int i = 0; i < MAX_ENTRIES; i++) {
+			remove(i);
+		}
+	}
+	
+	/**
+	 * Gives memory back as the system asks, with a level from ComponentCallbacks2.
+	 */
+	public synchronized void trim(int level) {
+		if(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			release(); // nothing is on screen, so nothing is needed
+		} else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			trimTo(budgetBytes / 2);
+		}
+	}
+	
+	public synchronized void setBudget(int bytes) {
+		budgetBytes = bytes;
+		trimTo(budgetBytes);
+	}
+	
+	public synchronized int getUsedBytes() {
+		return usedBytes;
+	}
+	
+	public synchronized int getDecodeCount() {
+		return decodeCount;
+	}
+	
+	public BitmapCache(Resources resources, int budgetBytes) {
+		this.resources = resources;
+		this.budgetBytes = budgetBytes;
+		options = new BitmapFactory.Options();
+		entries = new Entry[MAX_ENTRIES];
+		for(int i = 0; i < MAX_ENTRIES; i++) {
+			entries[i] = new Entry();
+		}
+	}
+}
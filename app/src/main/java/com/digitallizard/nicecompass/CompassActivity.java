@@ -6,33 +6,68 @@
  ******************************************************************************/
 package com.digitallizard.nicecompass;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
 import android.app.Dialog;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
+import android.content.pm.ApplicationInfo;
+import android.location.Location;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
+import android.util.Log;
 import android.view.Menu;;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.LinearLayout;
+import android.widget.Toast;
 
 public class CompassActivity extends FragmentActivity {
 	public static final String PREF_FILE_NAME = "com.digitallizard.nicecompass_preferences";
 	public static final String PREFKEY_USE_TRUE_NORTH = "useTrueNorth";
 	public static final String PREFKEY_USE_MANUAL_DECLINATION = "useManualDeclination";
 	public static final String PREFKEY_MANUAL_DECLINATION_VALUE = "manualDeclinationValue";
+	public static final String PREFKEY_WAYPOINT_NAME = "waypointName";
+	public static final String PREFKEY_WAYPOINT_LATITUDE = "waypointLatitude"; // stored as strings, a float is not precise enough
+	public static final String PREFKEY_WAYPOINT_LONGITUDE = "waypointLongitude";
+	public static final String PREFKEY_NMEA_INPUT = "nmeaInput"; // "udp:port" or "tcp:host:port", the external receiver to use
 	public static final boolean DEFAULT_USE_TRUE_NORTH = true;
 	public static final float DEFAULT_MANUAL_DECLINATION = 0.0f;
 	
+	// debugging extras, only honoured by debuggable builds, e.g. adb shell am start -n com.digitallizard.nicecompass/.CompassActivity --ez recordTrace true
+	public static final String EXTRA_RECORD_TRACE = "recordTrace"; // record the sensors to a new file in the app's files directory
+	public static final String EXTRA_REPLAY_TRACE = "replayTrace"; // the name of a trace in the app's files directory to play instead of the sensors
+	public static final String EXTRA_RUN_BENCHMARK = "runBenchmark"; // log a PipelineBenchmark run, of the replayTrace if one is given
+	public static final String EXTRA_RENDER_MODE = "renderMode"; // one of CompassSurface's RENDER_MODE_ values, to compare them with the performance overlay
+	public static final String EXTRA_NMEA_INPUT = "nmeaInput"; // like PREFKEY_NMEA_INPUT, or a log in the app's files directory, for this run only
+	
+	public static final String WAYPOINT_FILE_NAME = "waypoints.ncw"; // a WaypointStore file in the app's files directory
+	public static final String TRACK_FILE_NAME = "track.nctk"; // fixes are appended to this, in the app's files directory
+	public static final String TRACK_SIMPLIFIED_FILE_NAME = "track-simplified.nctk"; // the fixes kept for the export, from the last session only
+	public static final String TRACK_EXPORT_FILE_NAME = "track.gpx"; // the simplified track of the last session, written when logging stops
+	public static final float TRACK_EXPORT_TOLERANCE_METERS = 5f;
+	public static final float NMEA_OUTPUT_RATE_HZ = 5f;
+	
 	public static final int DIALOG_SELECT_LOCKED_BEARING = 0;
 	public static final int DIALOG_SELECT_VARIATION = 1;
+	public static final int DIALOG_SELECT_WAYPOINT = 2;
+	public static final int DIALOG_SELECT_NMEA_INPUT = 3;
 	
 	private CompassManager compass;
+	private boolean compassRegistered; // this activity holds one of the compass's sensor registrations
 	private CompassSurface surface;
+	private GPSManager gps;
 	private LinearLayout surfaceContainer;
+	private SensorTraceReplayer traceReplayer;
+	private WaypointStore waypointStore; // loaded the first time it is needed
+	private NmeaHeadingPublisher nmeaPublisher; // set while the heading is being published
+	private NmeaReceiver nmeaReceiver; // set while an external receiver is in use
+	private SettingsStore settings;
 	
 	EditText lockedBearingEditText; // the bearing selection textbox inside the popup
 	EditText selectVariationEditText; // the bearing selection textbox inside the popup
@@ -51,10 +86,280 @@ public class CompassActivity extends FragmentActivity {
 	public void closeBearingDialog(int id) {
 		dismissDialog(id);
 	}
+	
+	private Dialog createSelectWaypointDialog() {
+		final Dialog dialog = new Dialog(this);
+		dialog.setContentView(R.layout.waypoint_dialog);
+		dialog.setTitle(this.getResources().getString(R.string.menu_title_navigate_to_waypoint));
+		
+		final EditText nameText = (EditText) dialog.findViewById(R.id.waypointNameText);
+		final EditText latitudeText = (EditText) dialog.findViewById(R.id.waypointLatitudeText);
+		final EditText longitudeText = (EditText) dialog.findViewById(R.id.waypointLongitudeText);
+		
+		// start from the current waypoint, if there is one
+		Waypoint current = surface.getWaypoint();
+		if(current != null) {
+			nameText.setText(current.getName());
+			latitudeText.setText(Double.toString(current.getLatitude()));
+			longitudeText.setText(Double.toString(current.getLongitude()));
+		}
+		
+		Button setButton = (Button) dialog.findViewById(R.id.waypointSetButton);
+		setButton.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				Waypoint waypoint;
+				try {
+					waypoint = new Waypoint(nameText.getText().toString(),
+							Double.parseDouble(latitudeText.getText().toString()),
+							Double.parseDouble(longitudeText.getText().toString()));
+				} catch (NumberFormatException e) {
+					// probably a temporary error, just give up for now
+					return;
+				} catch (IllegalArgumentException e) {
+					// out of range, leave the dialog open so it can be corrected
+					return;
+				}
+				surface.lockBearingToWaypoint(waypoint);
+				closeBearingDialog(DIALOG_SELECT_WAYPOINT);
+			}
+		});
+		
+		Button clearButton = (Button) dialog.findViewById(R.id.waypointClearButton);
+		clearButton.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				surface.unlockBearing();
+				closeBearingDialog(DIALOG_SELECT_WAYPOINT);
+			}
+		});
+		
+		return dialog;
+	}
 
+	private Dialog createSelectNmeaInputDialog() {
+		final Dialog dialog = new Dialog(this);
+		dialog.setContentView(R.layout.nmea_input_dialog);
+		dialog.setTitle(this.getResources().getString(R.string.menu_title_nmea_input));
+		
+		final EditText sourceText = (EditText) dialog.findViewById(R.id.nmeaInputText);
+		sourceText.setText(settings.getString(PREFKEY_NMEA_INPUT, ""));
+		
+		Button setButton = (Button) dialog.findViewById(R.id.nmeaInputSetButton);
+		setButton.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				String source = sourceText.getText().toString().trim();
+				if(!isNetworkNmeaInput(source)) {
+					// leave the dialog open so it can be corrected
+					return;
+				}
+				settings.putString(PREFKEY_NMEA_INPUT, source);
+				stopNmeaInput();
+				startNmeaInput(source);
+				closeBearingDialog(DIALOG_SELECT_NMEA_INPUT);
+			}
+		});
+		
+		Button offButton = (Button) dialog.findViewById(R.id.nmeaInputOffButton);
+		offButton.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				settings.remove(PREFKEY_NMEA_INPUT);
+				stopNmeaInput();
+				closeBearingDialog(DIALOG_SELECT_NMEA_INPUT);
+			}
+		});
+		
+		return dialog;
+	}
+	
+	private boolean isDebuggable() {
+		// set by the debug build type only, the manifest leaves it to the build
+		return (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+	}
+	
+	private static boolean isPlainFileName(String name) {
+		// a file directly in the app's files directory, nothing that could reach outside it
+		return name.length() > 0 && name.indexOf('/') < 0 && name.indexOf(File.separatorChar) < 0
+				&& !name.equals(".") && !name.equals("..");
+	}
+	
+	private String getReplayTraceExtra() {
+		// null unless a debug build was given a usable trace name
+		String name = isDebuggable() ? getIntent().getStringExtra(EXTRA_REPLAY_TRACE) : null;
+		if(name != null && !isPlainFileName(name)) {
+			Log.w("compass", "ignoring the trace name " + name + ", it must be a file in the app's files directory");
+			return null;
+		}
+		return name;
+	}
+	
+	private static boolean isNetworkNmeaInput(String source) {
+		// "udp:port" or "tcp:host:port"
+		int colon = source.lastIndexOf(':');
+		if(source.startsWith("udp:") && colon == 3 || source.startsWith("tcp:") && colon > 4) {
+			try {
+				int port = Integer.parseInt(source.substring(colon + 1));
+				return port > 0 && port <= 0xFFFF;
+			} catch(NumberFormatException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	private synchronized WaypointStore getWaypointStore() {
+		if(waypointStore == null) {
+			File file = new File(getFilesDir(), WAYPOINT_FILE_NAME);
+			if(!file.exists()) {
+				return null;
+			}
+			try {
+				waypointStore = WaypointStore.read(new FileInputStream(file));
+				Log.v("compass", "loaded " + waypointStore.size() + " waypoints");
+				surface.setWaypointStore(waypointStore);
+			} catch(IOException e) {
+				Log.w("compass", "could not load the waypoints", e);
+			}
+		}
+		return waypointStore;
+	}
+	
+	private void showToast(final int message) {
+		runOnUiThread(new Runnable() {
+			public void run() {
+				Toast.makeText(CompassActivity.this, message, Toast.LENGTH_SHORT).show();
+			}
+		});
+	}
+	
+	private void navigateToNearestWaypoint() {
+		// the first load of a big file is slow, keep it off the ui thread
+		new Thread(new Runnable() {
+			public void run() {
+				WaypointStore store = getWaypointStore();
+				if(store == null || store.size() == 0) {
+					showToast(R.string.toast_no_waypoints);
+					return;
+				}
+				Location location = gps.getLocation();
+				if(location == null) {
+					location = LocationHub.getInstance(CompassActivity.this).getBestLocation();
+				}
+				if(location == null) {
+					showToast(R.string.toast_no_location);
+					return;
+				}
+				int[] nearest = new int[1];
+				if(store.findNearest(location.getLatitude(), location.getLongitude(), nearest) > 0) {
+					final Waypoint waypoint = store.getWaypoint(nearest[0]);
+					runOnUiThread(new Runnable() {
+						public void run() {
+							surface.lockBearingToWaypoint(waypoint);
+						}
+					});
+				}
+			}
+		}).start();
+	}
+	
+	private void exportTrack() {
+		// called on the track logger's thread once the simplified track is complete, so away from the ui thread
+		TrackExporter exporter = new TrackExporter();
+		try {
+			exporter.exportGpx(new FileInputStream(new File(getFilesDir(), TRACK_SIMPLIFIED_FILE_NAME)),
+					new FileOutputStream(new File(getFilesDir(), TRACK_EXPORT_FILE_NAME)));
+			Log.v("compass", "exported " + exporter.getPointCount() + " track points");
+		} catch(IOException e) {
+			Log.w("compass", "could not export the track", e);
+		}
+	}
+	
+	private void toggleTrackLogging() {
+		if(gps.isLoggingTrack()) {
+			// the files are finished off in the background, export once the simplified one is complete
+			gps.stopTrackLog(new Runnable() {
+				public void run() {
+					exportTrack();
+				}
+			});
+			Log.v("compass", "track logged: " + gps.getTrackReport());
+			// leave the gps running if it is still needed for a waypoint
+			if(surface.getWaypoint() == null) {
+				gps.stopGPS();
+			}
+		} else {
+			try {
+				gps.startTrackLog(new File(getFilesDir(), TRACK_FILE_NAME), new File(getFilesDir(), TRACK_SIMPLIFIED_FILE_NAME),
+						TRACK_EXPORT_TOLERANCE_METERS, compass);
+				gps.startGPS();
+			} catch(IOException e) {
+				Log.w("compass", "could not start logging the track", e);
+			}
+		}
+	}
+	
+	private void startNmeaInput(final String source) {
+		nmeaReceiver = new NmeaReceiver(compass, LocationHub.getInstance(this));
+		final NmeaReceiver receiver = nmeaReceiver;
+		// connecting may block, so do it all off the ui thread
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					if(source.startsWith("udp:")) {
+						receiver.openUdp(Integer.parseInt(source.substring(4)));
+					} else if(source.startsWith("tcp:")) {
+						int colon = source.lastIndexOf(':');
+						receiver.openTcp(new InetSocketAddress(source.substring(4, colon), Integer.parseInt(source.substring(colon + 1))));
+					} else {
+						receiver.openFile(new File(getFilesDir(), source));
+					}
+					receiver.start();
+				} catch(IOException e) {
+					Log.w("compass", "could not open the nmea input " + source, e);
+				} catch(NumberFormatException e) {
+					Log.w("compass", "bad nmea input " + source, e);
+				}
+			}
+		}).start();
+	}
+	
+	private void stopNmeaInput() {
+		if(nmeaReceiver != null) {
+			nmeaReceiver.stop();
+			nmeaReceiver = null;
+		}
+	}
+	
+	private void toggleNmeaOutput() {
+		if(nmeaPublisher != null) {
+			nmeaPublisher.stop();
+			nmeaPublisher = null;
+		} else {
+			NmeaHeadingPublisher publisher = new NmeaHeadingPublisher(BearingDispatcher.getInstance(this), NMEA_OUTPUT_RATE_HZ);
+			try {
+				publisher.openTcpServer(NmeaHeadingPublisher.DEFAULT_PORT);
+			} catch(IOException e) {
+				Log.w("compass", "could not start the nmea server", e);
+				publisher.stop();
+				return;
+			}
+			publisher.start();
+			nmeaPublisher = publisher;
+		}
+	}
+	
 	protected Dialog onCreateDialog(int id) {
 		Dialog dialog = null;
 		
+		if(id == DIALOG_SELECT_WAYPOINT) {
+			return createSelectWaypointDialog();
+		}
+		if(id == DIALOG_SELECT_NMEA_INPUT) {
+			return createSelectNmeaInputDialog();
+		}
+		
 		// create a generic select bearing dialog
 		dialog = createSelectBearingDialog();
 		
@@ -177,6 +482,32 @@ public class CompassActivity extends FragmentActivity {
     	} else if(item.getItemId() == R.id.menuItemManualLockedBearing) {
     		showDialog(DIALOG_SELECT_LOCKED_BEARING);
     		return true; // we have received the press so we can report true
+    	} else if(item.getItemId() == R.id.menuItemNavigateToWaypoint) {
+    		showDialog(DIALOG_SELECT_WAYPOINT);
+    		return true; // we have received the press so we can report true
+    	} else if(item.getItemId() == R.id.menuItemNavigateToNearest) {
+    		navigateToNearestWaypoint();
+    		return true; // we have received the press so we can report true
+    	} else if(item.getItemId() == R.id.menuItemTrackLogging) {
+    		toggleTrackLogging();
+    		item.setChecked(gps.isLoggingTrack());
+    		return true; // we have received the press so we can report true
+    	} else if(item.getItemId() == R.id.menuItemNmeaOutput) {
+    		toggleNmeaOutput();
+    		item.setChecked(nmeaPublisher != null);
+    		return true; // we have received the press so we can report true
+    	} else if(item.getItemId() == R.id.menuItemNmeaInput) {
+    		showDialog(DIALOG_SELECT_NMEA_INPUT);
+    		return true; // we have received the press so we can report true
+    	} else if(item.getItemId() == R.id.menuItemPerformanceOverlay) {
+    		// dump what has been collected when the overlay is turned off
+    		if(surface.isMetricsEnabled()) {
+    			Log.i("compass", "frame metrics:\n" + surface.getMetricsReport());
+    			Log.i("compass", "sensor health:\n" + compass.getHealth().getReport());
+    		}
+    		surface.setMetricsEnabled(!surface.isMetricsEnabled());
+    		item.setChecked(surface.isMetricsEnabled());
+    		return true; // we have received the press so we can report true
     	} else {
     		return super.onOptionsItemSelected(item);
     	}
@@ -187,33 +518,141 @@ public class CompassActivity extends FragmentActivity {
     	super.onCreateOptionsMenu(menu);
     	// inflate the menu XML file
     	getMenuInflater().inflate(R.menu.menu, menu);
+    	// the performance overlay is only for debug builds
+    	menu.findItem(R.id.menuItemPerformanceOverlay).setVisible(isDebuggable());
+    	menu.findItem(R.id.menuItemTrackLogging).setChecked(gps.isLoggingTrack());
+    	menu.findItem(R.id.menuItemNmeaOutput).setChecked(nmeaPublisher != null);
     	return true; // we have made the menu so we can return true
     }
 
+	@Override
+	public void onDestroy() {
+		// the track carries on while paused, but not once the activity has gone
+		gps.stopTrackLog();
+		gps.stopGPS();
+		if(nmeaPublisher != null) {
+			nmeaPublisher.stop();
+			nmeaPublisher = null;
+		}
+		stopNmeaInput();
+		super.onDestroy();
+	}
+	
 	@Override
 	public void onPause() {
-		// save the current north state
-		SharedPreferences settings = this.getSharedPreferences(PREF_FILE_NAME, MODE_PRIVATE);
-		Editor editor = settings.edit();
-		editor.putBoolean(PREFKEY_USE_TRUE_NORTH, surface.useTrueNorth());
-		editor.putBoolean(PREFKEY_USE_MANUAL_DECLINATION, surface.isUsingManualDeclination());
-		editor.putFloat(PREFKEY_MANUAL_DECLINATION_VALUE, surface.getManualDeclination());
-		editor.commit();
-		
-		// unregister from the compass to prevent undue battery drain
-		compass.unregisterSensors();
+		// save the current north state, only what has changed since the last pause is written
+		settings.putBoolean(PREFKEY_USE_TRUE_NORTH, surface.useTrueNorth());
+		settings.putBoolean(PREFKEY_USE_MANUAL_DECLINATION, surface.isUsingManualDeclination());
+		settings.putFloat(PREFKEY_MANUAL_DECLINATION_VALUE, surface.getManualDeclination());
+		Waypoint waypoint = surface.getWaypoint();
+		if(waypoint != null) {
+			settings.putString(PREFKEY_WAYPOINT_NAME, waypoint.getName());
+			settings.putString(PREFKEY_WAYPOINT_LATITUDE, Double.toString(waypoint.getLatitude()));
+			settings.putString(PREFKEY_WAYPOINT_LONGITUDE, Double.toString(waypoint.getLongitude()));
+		} else {
+			settings.remove(PREFKEY_WAYPOINT_NAME);
+			settings.remove(PREFKEY_WAYPOINT_LATITUDE);
+			settings.remove(PREFKEY_WAYPOINT_LONGITUDE);
+		}
+		// the disk is left to a background thread
+		settings.flush();
+		
+		// stop any trace that is being played
+		if(traceReplayer != null) {
+			traceReplayer.stop();
+			traceReplayer = null;
+		}
+		
+		// unregister from the compass to prevent undue battery drain, it carries on if anything else is using it
+		if(compassRegistered) {
+			compass.unregisterSensors();
+			compassRegistered = false;
+		}
 		// stop the animation
 		surface.stopAnimation();
+		// nothing is drawn while paused, so give the images back
+		surface.releaseBitmaps();
 		// call the superclass
 		super.onPause();
 	}
 	
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		surface.trimMemory(level);
+	}
+	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		// older versions have no onTrimMemory(), the images are decoded again if they are needed
+		surface.releaseBitmaps();
+	}
+	
+	private void startTraceRecording() {
+		File file = new File(getFilesDir(), "trace-" + System.currentTimeMillis() + ".nct");
+		try {
+			compass.startTraceRecording(file);
+			Log.v("compass", "recording sensor trace to " + file);
+		} catch(IOException e) {
+			Log.w("compass", "could not start recording a sensor trace", e);
+		}
+	}
+	
+	private void startTraceReplay(File file) {
+		try {
+			traceReplayer = new SensorTraceReplayer(new FileInputStream(file), compass, true);
+		} catch(IOException e) {
+			Log.w("compass", "could not open sensor trace " + file, e);
+			return;
+		}
+		new Thread(traceReplayer).start();
+	}
+	
+	private void runBenchmark(final String traceName) {
+		// run away from the ui thread, the results go to the log
+		new Thread(new Runnable() {
+			public void run() {
+				PipelineBenchmark benchmark = new PipelineBenchmark(getApplicationContext());
+				try {
+					PipelineBenchmark.Result result;
+					if(traceName != null) {
+						result = benchmark.runTrace(new FileInputStream(new File(getFilesDir(), traceName)));
+					} else {
+						result = benchmark.runSynthetic();
+						Log.i("compass", "heading kernel benchmark:\n" + benchmark.runKernelComparison());
+						Log.i("compass", "bearing filter benchmark:\n" + benchmark.runFilterBenchmark());
+					}
+					Log.i("compass", "pipeline benchmark:\n" + result);
+				} catch(IOException e) {
+					Log.w("compass", "pipeline benchmark failed", e);
+				}
+			}
+		}).start();
+	}
+	
 	@Override
 	public void onResume() {
 		// class the superclass
 		super.onResume();
-		// register to receive events from the compass
-		compass.registerSensors();
+		// the top of the device is not the top of the screen on a tablet held in portrait
+		compass.setScreenRotation(getWindowManager().getDefaultDisplay().getOrientation()); // the same value as getRotation(), which needs froyo
+		// the debugging extras come in through the exported launcher intent, ignore them in a release build
+		boolean debuggable = isDebuggable();
+		String replayTrace = getReplayTraceExtra();
+		if(debuggable && getIntent().getBooleanExtra(EXTRA_RUN_BENCHMARK, false)) {
+			// leave the sensors alone so they do not disturb the benchmark
+		} else if(replayTrace != null) {
+			// play the trace in place of the real sensors
+			startTraceReplay(new File(getFilesDir(), replayTrace));
+		} else {
+			// register to receive events from the compass
+			compass.registerSensors();
+			compassRegistered = true;
+			if(debuggable && getIntent().getBooleanExtra(EXTRA_RECORD_TRACE, false)) {
+				startTraceRecording();
+			}
+		}
 		// start the animation
 		surface.startAnimation();
 	}
@@ -225,13 +664,17 @@ public class CompassActivity extends FragmentActivity {
         // create the gui
         setContentView(R.layout.main);
         
-        // load in the settings
-        SharedPreferences settings = this.getSharedPreferences(PREF_FILE_NAME, MODE_PRIVATE);
+        // load in the settings, this is the only time the file is read
+        settings = SettingsStore.getInstance(this, PREF_FILE_NAME);
         boolean useTrueNorth = settings.getBoolean(PREFKEY_USE_TRUE_NORTH, DEFAULT_USE_TRUE_NORTH);
         
         // initialize variables
-        compass = new CompassManager(this);
+        compass = CompassManager.getInstance(this); // shared with CompassService and the nmea output
         surface = new CompassSurface(this, compass, useTrueNorth);
+        gps = new GPSManager(this);
+        gps.setRequiresAltitude(false); // navigating only needs a position
+        gps.setDutyCycling(true);
+        surface.setGPSManager(gps);
         surfaceContainer = (LinearLayout)findViewById(R.id.compassSurfaceContainer);
         
         // check if we need to enable manual declination
@@ -239,10 +682,53 @@ public class CompassActivity extends FragmentActivity {
         	surface.setManualDeclination(settings.getFloat(PREFKEY_MANUAL_DECLINATION_VALUE, DEFAULT_MANUAL_DECLINATION));
         }
         
-        // prevent gradient banding
-        surface.getHolder().setFormat(android.graphics.PixelFormat.TRANSPARENT);
+        // carry on navigating to the last waypoint
+        if(settings.contains(PREFKEY_WAYPOINT_NAME)) {
+        	try {
+        		surface.lockBearingToWaypoint(new Waypoint(settings.getString(PREFKEY_WAYPOINT_NAME, ""),
+        				Double.parseDouble(settings.getString(PREFKEY_WAYPOINT_LATITUDE, "")),
+        				Double.parseDouble(settings.getString(PREFKEY_WAYPOINT_LONGITUDE, ""))));
+        	} catch (IllegalArgumentException e) {
+        		// a damaged setting, forget the waypoint
+        		Log.w("compass", "could not restore the waypoint", e);
+        	}
+        }
+        
+        // draw opaque, at the depth the display can actually show, unless a debug build asks for another mode
+        int renderMode = CompassSurface.chooseRenderMode(getWindowManager().getDefaultDisplay());
+        if(isDebuggable()) {
+        	renderMode = getIntent().getIntExtra(EXTRA_RENDER_MODE, renderMode);
+        }
+        surface.setRenderMode(renderMode);
         
         // add the compass
         surfaceContainer.addView(surface);
+        
+        // show the waypoints around the card if there are any
+        if(new File(getFilesDir(), WAYPOINT_FILE_NAME).exists()) {
+        	new Thread(new Runnable() {
+        		public void run() {
+        			getWaypointStore();
+        		}
+        	}).start();
+        }
+        
+        // take the heading and position from an external receiver, a debug build can be pointed at another one
+        String nmeaInput = settings.getString(PREFKEY_NMEA_INPUT, null);
+        String nmeaInputExtra = isDebuggable() ? getIntent().getStringExtra(EXTRA_NMEA_INPUT) : null;
+        if(nmeaInputExtra != null) {
+        	if(isNetworkNmeaInput(nmeaInputExtra) || isPlainFileName(nmeaInputExtra)) {
+        		nmeaInput = nmeaInputExtra;
+        	} else {
+        		Log.w("compass", "ignoring the nmea input " + nmeaInputExtra + ", it must be udp:port, tcp:host:port or a file in the app's files directory");
+        	}
+        }
+        if(nmeaInput != null) {
+        	startNmeaInput(nmeaInput);
+        }
+        
+        if(isDebuggable() && getIntent().getBooleanExtra(EXTRA_RUN_BENCHMARK, false)) {
+        	runBenchmark(getReplayTraceExtra());
+        }
     }
 }
@@ -6,6 +6,10 @@
  ******************************************************************************/
 package com.digitallizard.nicecompass;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
 import android.content.Context;
 import android.hardware.GeomagneticField;
 import android.hardware.Sensor;
@@ -16,6 +20,7 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 public class CompassManager implements SensorEventListener {
 	/** constants **/
@@ -25,25 +30,66 @@ public class CompassManager implements SensorEventListener {
 	public static final int STATUS_INTERFERENCE = 1;
 	public static final int STATUS_INACTIVE = 2;
 	private static final float MAGNETIC_INTERFERENCE_THRESHOLD_MODIFIER = 1.05f;
+	static final long PREDICTION_MAX_HORIZON_NANOS = 100000000l; // never guess more than 100ms ahead
+	private static final float PREDICTION_VELOCITY_SMOOTHING = 0.3f;
+	private static final String CALIBRATION_PREF_FILE_NAME = "com.digitallizard.nicecompass_calibration";
+	private static final String PREFKEY_CALIBRATION_SENSOR = "sensor";
+	private static final String PREFKEY_CALIBRATION_OFFSET_X = "offsetX";
+	private static final String PREFKEY_CALIBRATION_OFFSET_Y = "offsetY";
+	private static final String PREFKEY_CALIBRATION_OFFSET_Z = "offsetZ";
+	private static final String PREFKEY_CALIBRATION_SCALE_X = "scaleX";
+	private static final String PREFKEY_CALIBRATION_SCALE_Y = "scaleY";
+	private static final String PREFKEY_CALIBRATION_SCALE_Z = "scaleZ";
+	private static final String ANOMALY_FILE_NAME = "anomalies.ncam"; // in the app's files directory
+	private static final long ANOMALY_POSITION_MAX_AGE_MILLIS = 30000l; // stop mapping once the fix is this old
+	private static final long EXTERNAL_HEADING_MAX_AGE_NANOS = 2000000000l; // fall back to the sensors after this
+	private static final long STILLNESS_TIMEOUT_NANOS = 3000000000l; // how long the device must lie still before the sensors slow down
 	
 	/** variables **/
-	private final LocationManager locationManager;
+	private static CompassManager instance;
+	
+	private final LocationHub locationHub;
 	private final LocationListener locationListener;
 	private final SensorManager sensorManager;
 	private final Sensor magSensor;
 	private final Sensor accelSensor;
+	private final SettingsStore calibrationSettings; // null if nothing is kept between runs
+	private final MagnetometerCalibrator calibrator;
+	private int magAccuracy = -1; // the last accuracy reported since the magnetometer was registered, -1 before the first
+	private SensorTraceRecorder traceRecorder;
+	private final SensorHealth health;
+	private final MagneticAnomalyMap anomalyMap; // null if nothing is kept between runs
+	private boolean hasAnomalyPosition; // an accurate recent fix to map the field readings to
+	private double anomalyLatitude;
+	private double anomalyLongitude;
+	private long anomalyPositionTime; // SystemClock.elapsedRealtime() of the fix
+	private volatile boolean checkingAnomaly; // the last fix was close enough to look up in the anomaly map
 	private GeomagneticField geoField;
 	private boolean sensorsRegistered; // stores the event listener state
+	private int sensorUsers; // calls to registerSensors() not yet matched by unregisterSensors()
+	private final Object registrationLock;
 	private boolean sensorHasNewData; // improves performance by only computing the data when required
 	private float[] magValues;
 	private float[] accelValues;
-	private float[] orientationDataCache;
-	private Location locationCache;
+	private final HeadingKernel headingKernel;
+	private long sensorTimestamp; // when the latest sensor data arrived, from System.nanoTime()
+	private final BearingPredictor bearingPredictor;
 	private int status;
+	private float externalBearing; // magnetic, from an external heading sensor
+	private final StillnessDetector stillness;
+	private final ArrayList<StillnessListener> stillnessListeners;
+	private long externalTimestamp; // System.nanoTime() of the last external heading, 0 if there has never been one
 	
 	private boolean useManualDeclination;
 	private float manualDeclination;
 	
+	/**
+	 * Told when the device starts or stops lying still, on whichever thread noticed.
+	 */
+	public interface StillnessListener {
+		void onStillnessChanged(boolean still);
+	}
+	
 	
 	private synchronized float[] getAccelValues() {
 		return accelValues;
@@ -53,14 +99,6 @@ public class CompassManager implements SensorEventListener {
 		this.accelValues = accelValues;
 	}
 
-	private synchronized Location getLocation() {
-		return locationCache;
-	}
-
-	private synchronized void updateLocation(Location locationCache) {
-		this.locationCache = locationCache;
-	}
-
 	private synchronized float[] getMagValues() {
 		return magValues;
 	}
@@ -77,6 +115,18 @@ public class CompassManager implements SensorEventListener {
 		sensorHasNewData = newData;
 	}
 	
+	private synchronized SensorTraceRecorder getTraceRecorder() {
+		return traceRecorder;
+	}
+	
+	private synchronized void setSensorTimestamp(long timestamp) {
+		sensorTimestamp = timestamp;
+	}
+	
+	public synchronized long getSensorTimestamp() {
+		return sensorTimestamp;
+	}
+	
 	
 	private void interferenceTest(float[] values) {
 		// get the expected values
@@ -86,12 +136,45 @@ public class CompassManager implements SensorEventListener {
 		for(int i = 0; i < values.length; i++){
 			totalStrength *= values[i];
 		}
+		int newStatus;
 		if(totalStrength > threshold){
 			// report possible interference
-			status = STATUS_INTERFERENCE;
+			newStatus = STATUS_INTERFERENCE;
 		} else {
-			status = STATUS_GOOD;
+			newStatus = STATUS_GOOD;
 		}
+		if(newStatus != status && status != STATUS_INACTIVE) {
+			health.recordInterferenceToggle();
+		}
+		status = newStatus;
+	}
+	
+	private void recordAnomalySample(float[] values) {
+		// readings are only comparable once the sensor's own bias has been removed
+		GeomagneticField field = getGeoField();
+		if(field == null || !calibrator.isCalibrated()) {
+			return;
+		}
+		double latitude, longitude;
+		synchronized(this) {
+			if(!hasAnomalyPosition || SystemClock.elapsedRealtime() - anomalyPositionTime > ANOMALY_POSITION_MAX_AGE_MILLIS) {
+				return;
+			}
+			latitude = anomalyLatitude;
+			longitude = anomalyLongitude;
+		}
+		float expected = field.getFieldStrength() / 1000f; // nano tesla to micro tesla, like the sensor
+		float strength = (float)Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]);
+		if(anomalyMap != null) {
+			anomalyMap.addSample(latitude, longitude, (strength - expected) / expected);
+		}
+	}
+	
+	private synchronized void setAnomalyPosition(Location location) {
+		hasAnomalyPosition = true;
+		anomalyLatitude = location.getLatitude();
+		anomalyLongitude = location.getLongitude();
+		anomalyPositionTime = SystemClock.elapsedRealtime();
 	}
 	
 	private float getExpectedFieldStrength(){
@@ -108,8 +191,7 @@ public class CompassManager implements SensorEventListener {
 		return geoField;
 	}
 	
-	private synchronized void updateGeoField() {
-		Location location = getLocation();
+	private synchronized void updateGeoField(Location location) {
 		// we can do nothing without location
 		if(location != null) {
 			// update the geomagnetic field
@@ -121,32 +203,127 @@ public class CompassManager implements SensorEventListener {
 		}
 	}
 	
+	private String getCalibrationSensorName() {
+		// calibration only applies to the magnetometer it was worked out on
+		return magSensor.getVendor() + " " + magSensor.getName();
+	}
+	
+	private void loadCalibration() {
+		// ignore calibration saved for a different sensor, or when there is no sensor at all
+		if(magSensor == null || calibrationSettings == null || !getCalibrationSensorName().equals(calibrationSettings.getString(PREFKEY_CALIBRATION_SENSOR, null))) {
+			return;
+		}
+		// only applied once the readings show it still fits
+		calibrator.loadCalibration(calibrationSettings.getFloat(PREFKEY_CALIBRATION_OFFSET_X, 0f),
+				calibrationSettings.getFloat(PREFKEY_CALIBRATION_OFFSET_Y, 0f),
+				calibrationSettings.getFloat(PREFKEY_CALIBRATION_OFFSET_Z, 0f),
+				calibrationSettings.getFloat(PREFKEY_CALIBRATION_SCALE_X, 1f),
+				calibrationSettings.getFloat(PREFKEY_CALIBRATION_SCALE_Y, 1f),
+				calibrationSettings.getFloat(PREFKEY_CALIBRATION_SCALE_Z, 1f));
+	}
+	
+	private void saveCalibration() {
+		if(magSensor == null || calibrationSettings == null) {
+			return;
+		}
+		// take the calibration and mark it saved in one step, so a solve on the sensor thread cannot come in between
+		MagnetometerCalibrator.Calibration saved;
+		synchronized(calibrator) {
+			// only write when something has changed
+			if(!calibrator.hasNewCalibration()) {
+				return;
+			}
+			saved = calibrator.getCalibration();
+			calibrator.markCalibrationSaved();
+		}
+		if(saved == null) {
+			// the calibration has been dropped, do not bring it back next time
+			calibrationSettings.remove(PREFKEY_CALIBRATION_SENSOR);
+			calibrationSettings.flush();
+			return;
+		}
+		calibrationSettings.putString(PREFKEY_CALIBRATION_SENSOR, getCalibrationSensorName());
+		calibrationSettings.putFloat(PREFKEY_CALIBRATION_OFFSET_X, saved.offsetX);
+		calibrationSettings.putFloat(PREFKEY_CALIBRATION_OFFSET_Y, saved.offsetY);
+		calibrationSettings.putFloat(PREFKEY_CALIBRATION_OFFSET_Z, saved.offsetZ);
+		calibrationSettings.putFloat(PREFKEY_CALIBRATION_SCALE_X, saved.scaleX);
+		calibrationSettings.putFloat(PREFKEY_CALIBRATION_SCALE_Y, saved.scaleY);
+		calibrationSettings.putFloat(PREFKEY_CALIBRATION_SCALE_Z, saved.scaleZ);
+		calibrationSettings.flush(); // written in the background
+	}
+	
+	private void notifyStillnessChanged(boolean still) {
+		StillnessListener[] listeners;
+		synchronized(stillnessListeners) {
+			listeners = stillnessListeners.toArray(new StillnessListener[stillnessListeners.size()]);
+		}
+		for(int i = 0; i < listeners.length; i++) {
+			listeners[i].onStillnessChanged(still);
+		}
+	}
+	
+	private void stillnessChanged() {
+		boolean still = stillness.isStill();
+		// both sensors keep the ui rate, a turn made lying flat only shows in the magnetometer and has to end stillness
+		// by the next frame, so only the orientation work is skipped while still
+		if(!hasExternalHeading()) {
+			notifyStillnessChanged(still);
+		}
+	}
+	
 	private float convertToTrueNorth(float bearing){
 		return bearing + getDeclination();
 	}
 	
-	private synchronized void setOrientationData(float[] orientationDataCache) {
-		this.orientationDataCache = orientationDataCache;
+	private synchronized boolean hasExternalHeading() {
+		return externalTimestamp != 0 && System.nanoTime() - externalTimestamp < EXTERNAL_HEADING_MAX_AGE_NANOS;
+	}
+	
+	private synchronized float getLastAzimuth() {
+		return headingKernel.hasResult() ? headingKernel.getAzimuth() : Float.NaN;
 	}
 	
-	private synchronized float[] getOrientationData() {
+	/**
+	 * Brings the heading up to date, returns the azimuth in radians or NaN if there has not been one yet.
+	 * Called from several threads, the lock also keeps the orientation counters in SensorHealth to one writer at a time.
+	 */
+	private synchronized float getAzimuth() {
 		// if there is no new data, bail here
 		if(!sensorHasNewData() || getMagValues() == null || getAccelValues() == null){
-			return orientationDataCache;
+			health.recordOrientationCacheHit();
+			return getLastAzimuth();
 		}
+		health.recordOrientationRecompute();
 		
-		// compute the orientation data
-		float[] R = new float[16];
-        float[] I = new float[16];
-        SensorManager.getRotationMatrix(R, I, getAccelValues(), getMagValues());
-        setOrientationData(new float[3]);
-        SensorManager.getOrientation(R, orientationDataCache);
+		// compute the heading, the last one stands if these readings give no direction
+		float[] accel = getAccelValues();
+		float[] mag = getMagValues();
+		boolean updated = headingKernel.update(accel[0], accel[1], accel[2], mag[0], mag[1], mag[2]);
+        
+        // track how fast the bearing is changing, unless an external sensor is driving it
+        if(!hasExternalHeading()) {
+        	if(externalTimestamp != 0) {
+        		// the external sensor has gone quiet, start again from the phone's own readings
+        		externalTimestamp = 0;
+        		bearingPredictor.reset();
+        	}
+        	if(updated) {
+        		bearingPredictor.update(headingKernel.getAzimuth() * (360 / (2 * (float)Math.PI)), sensorTimestamp);
+        	}
+        }
 		
 		// flag the data as computed
         setSensorHasNewData(false);
 		
 		// return the new data
-		return orientationDataCache;
+		return getLastAzimuth();
+	}
+	
+	/**
+	 * Returns the pipeline counters, these can be read at any time without disturbing the sensors.
+	 */
+	public SensorHealth getHealth() {
+		return health;
 	}
 	
 	public synchronized boolean isActive() {
@@ -155,9 +332,90 @@ public class CompassManager implements SensorEventListener {
 	}
 	
 	public int getStatus() {
+		// an external sensor is not bothered by interference around the phone
+		if(hasExternalHeading()) {
+			return STATUS_GOOD;
+		}
 		return status;
 	}
 	
+	/**
+	 * Turns the heading to follow the screen, takes one of the Surface.ROTATION_ constants.
+	 */
+	public synchronized void setScreenRotation(int rotation) {
+		if(rotation != headingKernel.getScreenRotation()) {
+			headingKernel.setScreenRotation(rotation);
+			bearingPredictor.reset(); // the old bearings were for another edge of the screen
+			setSensorHasNewData(true);
+		}
+	}
+	
+	/**
+	 * Returns true once the device has lain still for a while, the bearing will not change until it moves.
+	 * An external heading sensor is never treated as still.
+	 */
+	public boolean isStill() {
+		return stillness.isStill() && !hasExternalHeading();
+	}
+	
+	public void addStillnessListener(StillnessListener listener) {
+		synchronized(stillnessListeners) {
+			stillnessListeners.add(listener);
+		}
+	}
+	
+	public void removeStillnessListener(StillnessListener listener) {
+		synchronized(stillnessListeners) {
+			stillnessListeners.remove(listener);
+		}
+	}
+	
+	/**
+	 * Returns true while the bearing is coming from an external heading sensor rather than the phone's own.
+	 */
+	public boolean isUsingExternalHeading() {
+		return hasExternalHeading();
+	}
+	
+	/**
+	 * Takes a heading in degrees from an external sensor, such as a fluxgate compass sending NMEA.
+	 * While these keep arriving they replace the phone's sensors, if they stop the phone's sensors take over again.
+	 */
+	public void setExternalHeading(float heading, boolean isTrue, long timestampNanos) {
+		boolean wasStill;
+		synchronized(this) {
+			// keep everything magnetic internally, like the sensors
+			if(isTrue) {
+				heading -= getDeclination();
+			}
+			heading %= 360f;
+			if(heading > 180f) {
+				heading -= 360f;
+			} else if(heading <= -180f) {
+				heading += 360f;
+			}
+			wasStill = isStill();
+			if(!hasExternalHeading()) {
+				bearingPredictor.reset(); // the sensors' motion has nothing to do with this one's
+			}
+			externalBearing = heading;
+			externalTimestamp = timestampNanos;
+			sensorTimestamp = timestampNanos;
+			bearingPredictor.update(heading, timestampNanos);
+		}
+		// the phone may be lying still but the external sensor is not
+		if(wasStill) {
+			notifyStillnessChanged(false);
+		}
+	}
+	
+	/**
+	 * Returns true if the last accurate fix was somewhere the field has been seen to be well out before.
+	 */
+	public boolean isInKnownAnomaly() {
+		return checkingAnomaly && anomalyMap != null && anomalyMap.isKnownAnomaly();
+	}
+	
 	public float getDeclination() {
 		// if the user wanted manual declination, return this
 		if(useManualDeclination) {
@@ -191,16 +449,23 @@ public class CompassManager implements SensorEventListener {
 	}
 	
 	public float getBearing(boolean trueNorth) {
+		if(hasExternalHeading()) {
+			float bearing;
+			synchronized(this) {
+				bearing = externalBearing;
+			}
+			return trueNorth ? convertToTrueNorth(bearing) : bearing;
+		}
+		
 		// update the values
-		float[] orientationData = getOrientationData();
+		float azimuth = getAzimuth();
 		
-		// bail if the orientation data was null
-		if(orientationData == null) {
+		// bail if there is no heading yet
+		if(Float.isNaN(azimuth)) {
 			return 0f;
 		}
 		
-		// convert the orientation data into a bearing
-		float azimuth = orientationData[0];
+		// convert the azimuth into a bearing
 		float bearing = azimuth * (360 / (2 * (float)Math.PI)); // convert from radians into degrees
 		
 		// check if we need to convert this into true
@@ -220,61 +485,242 @@ public class CompassManager implements SensorEventListener {
 		return bearing;
 	}
 	
+	/**
+	 * Returns the bearing expected at the given System.nanoTime() based time, 0 <= x < 360.
+	 * This lets the display make up for the time taken for a reading to reach the screen.
+	 */
+	public float getPredictedPositiveBearing(boolean trueNorth, long targetTimeNanos) {
+		// bring the predictor up to date
+		if(!hasExternalHeading() && Float.isNaN(getAzimuth())) {
+			return 0f;
+		}
+		
+		float bearing = bearingPredictor.getPredictedBearing(targetTimeNanos);
+		if(trueNorth) {
+			bearing = convertToTrueNorth(bearing);
+		}
+		
+		// keep the bearing in 0 <= x < 360
+		if(bearing < 0) {
+			bearing += 360;
+		}
+		if(bearing >= 360) {
+			bearing -= 360;
+		}
+		return bearing;
+	}
+	
+	/**
+	 * Returns the compass shared by the whole process, so the activity, the service and anything else
+	 * listening all run from one set of sensor listeners.
+	 */
+	public static synchronized CompassManager getInstance(Context context) {
+		if(instance == null) {
+			instance = new CompassManager(context.getApplicationContext());
+		}
+		return instance;
+	}
+	
+	/**
+	 * Lets go of the sensors, they are only unregistered once every registerSensors() has been matched.
+	 */
 	public void unregisterSensors() {
-		if(sensorsRegistered){
-			// unregister our sensor listeners
-			locationManager.removeUpdates(locationListener);
-			sensorManager.unregisterListener(this, magSensor);
-			sensorManager.unregisterListener(this, accelSensor);
-			setSensorHasNewData(false);
-			status = STATUS_INACTIVE;
-			sensorsRegistered = false; // flag the sensors as unregistered
+		synchronized(registrationLock) {
+			if(sensorUsers == 0) {
+				return;
+			}
+			sensorUsers--;
+			if(sensorUsers > 0) {
+				return; // somebody else still wants them
+			}
+			if(sensorsRegistered){
+				// unregister our sensor listeners
+				locationHub.removeUpdates(locationListener);
+				sensorManager.unregisterListener(this, magSensor);
+				sensorManager.unregisterListener(this, accelSensor);
+				setSensorHasNewData(false);
+				bearingPredictor.reset();
+				stillness.reset();
+				saveCalibration();
+				if(anomalyMap != null) {
+					anomalyMap.save(); // merged on the map's own writer thread
+				}
+				stopTraceRecording();
+				status = STATUS_INACTIVE;
+				sensorsRegistered = false; // flag the sensors as unregistered
+			}
 		}
 	}
 	
 	public void registerSensors() {
-		if(!sensorsRegistered) {
-			// register our sensor listeners
-			// an exception will be thrown if the network provider does not exist
-			try {
-				locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, LOCATION_UPDATE_MIN_TIME, LOCATION_UPDATE_MIN_DISTANCE, locationListener);
-			} catch(IllegalArgumentException e) {
-				// TODO: tell the user that their device does not provide network location data
+		synchronized(registrationLock) {
+			sensorUsers++;
+			if(!sensorsRegistered) {
+				// register our sensor listeners
+				// an exception will be thrown if the network provider does not exist
+				try {
+					// keep the network location running, but take the best fix from any provider
+					locationHub.requestBestUpdates(LocationManager.NETWORK_PROVIDER, LOCATION_UPDATE_MIN_TIME, LOCATION_UPDATE_MIN_DISTANCE, locationListener);
+				} catch(IllegalArgumentException e) {
+					// TODO: tell the user that their device does not provide network location data
+				}
+				// start from any fix the hub already holds
+				Location bestLocation = locationHub.getBestLocation();
+				if(bestLocation != null) {
+					handleLocation(bestLocation);
+				}
+				health.reset();
+				stillness.reset();
+				magAccuracy = -1;
+				sensorManager.registerListener(this, magSensor, SensorManager.SENSOR_DELAY_UI);
+				sensorManager.registerListener(this, accelSensor, SensorManager.SENSOR_DELAY_UI);
+				setSensorHasNewData(true);
+				sensorsRegistered = true; // flag the sensors as registered
 			}
-			sensorManager.registerListener(this, magSensor, SensorManager.SENSOR_DELAY_UI);
-			sensorManager.registerListener(this, accelSensor, SensorManager.SENSOR_DELAY_UI);
-			setSensorHasNewData(true);
-			sensorsRegistered = true; // flag the sensors as registered
 		}
 	}
 	
-	public void onSensorChanged(SensorEvent event) {
+	/**
+	 * Starts writing every sensor event and location fix to the given file, see SensorTraceReplayer.
+	 */
+	public synchronized void startTraceRecording(File file) throws IOException {
+		stopTraceRecording();
+		traceRecorder = new SensorTraceRecorder(file);
+	}
+	
+	public synchronized void stopTraceRecording() {
+		if(traceRecorder != null) {
+			traceRecorder.close();
+			traceRecorder = null;
+		}
+	}
+	
+	public synchronized boolean isRecordingTrace() {
+		return traceRecorder != null;
+	}
+	
+	/**
+	 * Processes a reading from a sensor, timestamped with System.nanoTime().
+	 * This is where live events and replayed traces both enter the pipeline.
+	 */
+	void handleSensorValues(int sensorType, float[] sensorValues, long timestampNanos) {
 		// save the data from the sensor
-		switch(event.sensor.getType()){
+		setSensorTimestamp(timestampNanos);
+		switch(sensorType){
 		case Sensor.TYPE_MAGNETIC_FIELD:
-			setMagValues(event.values.clone());
+			health.getMagnetometer().recordEvent(timestampNanos);
+			float[] values = sensorValues.clone();
+			// learn from the raw sample, unless the device is still and it would only weigh the fit towards one pose,
+			// then remove the known bias from it
+			if(!stillness.isStill()) {
+				calibrator.addSample(values[0], values[1], values[2]);
+			}
+			calibrator.correct(values);
+			recordAnomalySample(values);
+			setMagValues(values);
 			// check for interference
 			interferenceTest(getMagValues());
+			if(stillness.addMagneticField(values, timestampNanos)) {
+				stillnessChanged();
+			}
+			if(stillness.isStill()) {
+				break; // nothing beyond noise, the orientation already worked out still stands
+			}
 			setSensorHasNewData(true);
 			break;
 		case Sensor.TYPE_ACCELEROMETER:
-			setAccelValues(event.values.clone());
+			health.getAccelerometer().recordEvent(timestampNanos);
+			if(stillness.addAcceleration(sensorValues, timestampNanos)) {
+				stillnessChanged();
+			}
+			if(stillness.isStill()) {
+				break; // nothing has tilted, keep the orientation already worked out rather than running it again
+			}
+			setAccelValues(sensorValues.clone());
 			setSensorHasNewData(true);
 			break;
 		}
 	}
 	
+	void handleLocation(Location location) {
+		updateGeoField(location); // update the geomagnetic field
+		// only a close fix can place readings in the anomaly map
+		if(location.hasAccuracy() && location.getAccuracy() <= MagneticAnomalyMap.MAX_LOCATION_ACCURACY_METERS) {
+			setAnomalyPosition(location);
+			if(anomalyMap != null) {
+				anomalyMap.setPosition(location.getLatitude(), location.getLongitude()); // the file is searched off this thread
+			}
+			checkingAnomaly = true;
+		} else {
+			checkingAnomaly = false;
+		}
+	}
+	
+	public void onSensorChanged(SensorEvent event) {
+		long timestamp = System.nanoTime();
+		SensorTraceRecorder recorder = getTraceRecorder();
+		if(recorder != null) {
+			recorder.recordSensor(event.sensor.getType(), timestamp, event.values);
+		}
+		handleSensorValues(event.sensor.getType(), event.values, timestamp);
+	}
+	
+	private void handleMagnetometerAccuracy(int accuracy) {
+		int previous;
+		synchronized(registrationLock) {
+			previous = magAccuracy;
+			magAccuracy = accuracy;
+		}
+		// every registration reports the accuracy once, and many devices flip between medium and high on their own
+		if(previous < 0 || accuracy == previous) {
+			return;
+		}
+		// the platform has changed its own calibration, so the samples collected so far no longer fit together
+		calibrator.resetSamples();
+		if(accuracy < SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM && previous >= SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM) {
+			// the platform has lost its correction, ours was fitted on top of it and no longer applies
+			calibrator.clearCalibration();
+		} else {
+			// keep applying ours, but let the readings show whether it still fits the platform's new correction
+			calibrator.recheckCalibration();
+		}
+	}
+	
 	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-	} 
+		if(sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
+			health.getMagnetometer().recordAccuracy(accuracy);
+			handleMagnetometerAccuracy(accuracy);
+		} else if(sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+			health.getAccelerometer().recordAccuracy(accuracy);
+		}
+	}
 	
 	public CompassManager(Context context) {
+		this(context, true);
+	}
+	
+	/**
+	 * A compass that neither loads nor saves a calibration and keeps no anomaly map if persistent is false,
+	 * so whatever it is fed, e.g. by PipelineBenchmark, is all that affects it.
+	 */
+	CompassManager(Context context, boolean persistent) {
 		// initialize variables
-		locationManager = (LocationManager)context.getSystemService(Context.LOCATION_SERVICE);
+		registrationLock = new Object();
+		locationHub = LocationHub.getInstance(context);
 		sensorManager = (SensorManager)context.getSystemService(Context.SENSOR_SERVICE);
 		magSensor = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
 		accelSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+		calibrationSettings = persistent ? SettingsStore.getInstance(context, CALIBRATION_PREF_FILE_NAME) : null;
+		calibrator = new MagnetometerCalibrator();
+		health = new SensorHealth();
+		anomalyMap = persistent ? new MagneticAnomalyMap(new File(context.getFilesDir(), ANOMALY_FILE_NAME)) : null;
+		loadCalibration();
 		sensorsRegistered = false;
 		setSensorHasNewData(false);
+		bearingPredictor = new BearingPredictor(PREDICTION_MAX_HORIZON_NANOS, PREDICTION_VELOCITY_SMOOTHING);
+		stillness = new StillnessDetector(STILLNESS_TIMEOUT_NANOS);
+		headingKernel = new HeadingKernel();
+		stillnessListeners = new ArrayList<StillnessListener>();
 		status = STATUS_INACTIVE;
 		
 		// define a listener that listens for location updates
@@ -292,9 +738,11 @@ public class CompassManager implements SensorEventListener {
 			}
 			
 			public void onLocationChanged(Location location) {
-				// store the new location
-				updateLocation(location);
-				updateGeoField(); // update the geomagnetic field
+				SensorTraceRecorder recorder = getTraceRecorder();
+				if(recorder != null) {
+					recorder.recordLocation(System.nanoTime(), location);
+				}
+				handleLocation(location);
 			}
 		};
 	}
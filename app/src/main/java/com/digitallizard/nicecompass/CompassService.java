@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.util.ArrayList;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Hosts the shared compass for clients outside the activity, e.g. a widget or a logger in another process.
+ * Clients bind and send MSG_REGISTER with their Messenger as replyTo, the rate in millihertz as arg1
+ * and the batch size as arg2. Batches come back as MSG_BEARINGS, with the samples in the data bundle.
+ * Everything goes through BearingDispatcher, so this never runs a second set of sensor listeners.
+ * In process code can use BearingDispatcher.getInstance() directly.
+ */
+public class CompassService extends Service {
+	/** constants **/
+	public static final int MSG_REGISTER = 1;
+	public static final int MSG_UNREGISTER = 2;
+	public static final int MSG_BEARINGS = 3;
+	public static final String KEY_BEARINGS = "bearings"; // float[], magnetic
+	public static final String KEY_TIMESTAMPS = "timestamps"; // long[], System.nanoTime() in the service's process
+	public static final String KEY_DECLINATION = "declination"; // float[1], add to the bearings for true north
+	
+	/**
+	 * Forwards batches to a client in another process.
+	 */
+	private class RemoteClient implements BearingDispatcher.Client {
+		final Messenger messenger;
+		
+		public void onBearings(float[] bearings, long[] timestamps, int count, float declination) {
+			// the bundle is parcelled by send(), so it needs its own copies
+			float[] bearingsCopy = new float[count];
+			long[] timestampsCopy = new long[count];
+			System.arraycopy(bearings, 0, bearingsCopy, 0, count);
+			System.arraycopy(timestamps, 0, timestampsCopy, 0, count);
+			Bundle data = new Bundle();
+			data.putFloatArray(KEY_BEARINGS, bearingsCopy);
+			data.putLongArray(KEY_TIMESTAMPS, timestampsCopy);
+			data.putFloatArray(KEY_DECLINATION, new float[] {declination});
+			Message message = Message.obtain(null, MSG_BEARINGS);
+			message.setData(data);
+			try {
+				messenger.send(message);
+			} catch(RemoteException e) {
+				// the client's process has gone, forget it
+				handler.post(new Runnable() {
+					public void run() {
+						removeRemoteClient(messenger);
+					}
+				});
+			}
+		}
+		
+		RemoteClient(Messenger messenger) {
+			this.messenger = messenger;
+		}
+	}
+	
+	/** variables **/
+	private BearingDispatcher dispatcher;
+	private HandlerThread handlerThread;
+	private Handler handler;
+	private Messenger messenger;
+	private final ArrayList<RemoteClient> remoteClients = new ArrayList<RemoteClient>(); // only touched on the handler thread
+	
+	private void removeRemoteClient(Messenger clientMessenger) {
+		for(int i = 0; i < remoteClients.size(); i++) {
+			RemoteClient client = remoteClients.get(i);
+			if(client.messenger.getBinder() == clientMessenger.getBinder()) {
+				dispatcher.removeClient(client);
+				remoteClients.remove(i);
+				return;
+			}
+		}
+	}
+	
+	private void handleMessage(Message message) {
+		if(message.replyTo == null) {
+			return;
+		}
+		switch(message.what) {
+		case MSG_REGISTER:
+			removeRemoteClient(message.replyTo);
+			RemoteClient client = new RemoteClient(message.replyTo);
+			try {
+				dispatcher.addClient(client, message.arg1 / 1000f, Math.max(1, message.arg2));
+				remoteClients.add(client);
+			} catch(IllegalArgumentException e) {
+				Log.w("compass", "bad bearing client registration", e);
+			}
+			break;
+		case MSG_UNREGISTER:
+			removeRemoteClient(message.replyTo);
+			break;
+		}
+	}
+	
+	@Override
+	public IBinder onBind(Intent intent) {
+		return messenger.getBinder();
+	}
+	
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		dispatcher = BearingDispatcher.getInstance(this);
+		// registrations are handled off the main thread, as starting the sensors takes a moment
+		handlerThread = new HandlerThread("compass service");
+		handlerThread.start();
+		handler = new Handler(handlerThread.getLooper(), new Handler.Callback() {
+			public boolean handleMessage(Message message) {
+				CompassService.this.handleMessage(message);
+				return true;
+			}
+		});
+		messenger = new Messenger(handler);
+	}
+	
+	@Override
+	public void onDestroy() {
+		// every client has unbound, let the sensors go if nobody in the process still wants them
+		handler.post(new Runnable() {
+			public void run() {
+				for(int i = 0; i < remoteClients.size(); i++) {
+					dispatcher.removeClient(remoteClients.get(i));
+				}
+				remoteClients.clear();
+				handlerThread.quit();
+			}
+		});
+		super.onDestroy();
+	}
+}
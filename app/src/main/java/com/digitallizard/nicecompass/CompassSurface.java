@@ -10,56 +10,74 @@ import java.text.DecimalFormat;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.GradientDrawable;
 import android.graphics.drawable.GradientDrawable.Orientation;
+import android.location.Location;
 import android.util.Log;
+import android.view.Display;
 import android.view.MotionEvent;
 import android.view.SurfaceView;
 import android.os.Build;
 
-public class CompassSurface extends SurfaceView implements Runnable {
+public class CompassSurface extends SurfaceView implements Runnable, CompassManager.StillnessListener {
 	/** constants **/
-	private static final boolean DRAW_FPS = false;
-	
 	private static final int STATUS_NO_EVENT = -1;
 	
+	public static final int RENDER_MODE_TRANSLUCENT = 0; // blended with the window behind, only kept for comparison
+	public static final int RENDER_MODE_RGBX_8888 = 1;
+	public static final int RENDER_MODE_RGB_565 = 2; // half the bandwidth, dithered to hide the banding
+	
 	private static final int TARGET_FPS = 30;
 	private static final int MINIMUM_SLEEP_TIME = 10;
+	private static final long STILL_FRAME_INTERVAL = 1000; // millisecs between frames while the device lies still
+	private static final long COMPOSITION_LATENCY_NANOS = 16666667l; // a vsync after drawing for the frame to be put on screen
+	private static final int METRICS_TEXT_REFRESH_FRAMES = 15; // how often the metrics overlay text is rebuilt
+	private static final int BITMAP_BUDGET_BYTES = 4 * 1024 * 1024; // the card and every status image at the largest size they decode to
 	
-	private static final int REQUIRED_BEARING_CHANGE = 5;
-	private static final int REQUIRED_BEARING_REPEAT = 40;
+	private static final int BEARING_FILTER_WINDOW = 8; // frames averaged for the displayed bearing
 	private static final float BEARING_X = 50f;
 	private static final float BEARING_Y = 15f;
 	private static final float DECLENATION_VARIATION_OFFSET = 5f;
 	private static final float BEARING_TOUCH_RADIUS = 20f;
+	private static final float WAYPOINT_TEXT_OFFSET = 4f;
+	private static final float ANOMALY_WARNING_OFFSET = 9f; // below the bearing
+	private static final String ANOMALY_WARNING_TEXT = "known magnetic anomaly";
 	
 	private static final float INNER_COMPASS_CARD_RATIO = 7f / 11f;
 	private static final float COMPASS_CENTER_X = 50f;
 	private static final float COMPASS_CENTER_Y = 60f;
 	private static final float CARD_DIAMETER = 90f;
 	
+	private static final int MAX_MARKERS = 256; // waypoints shown around the card
+	private static final float MARKER_MAX_DISTANCE_METERS = 10000f;
+	private static final float MARKER_LENGTH_RATIO = 0.5f; // of the gap between the inner card and the edge
+	
 	private static final float COMPASS_ACCEL_RATE = 0.9f;
 	private static final float COMPASS_SPEED_MODIFIER = 0.26f;
+	private static final float COMPASS_SETTLED_SPEED = 0.01f; // the card has come to rest below this
 	
 	/** variables **/
 	private CompassManager compass;
 	private Thread animationThread;
 	private volatile boolean isRunning;
+	private final Object frameLock = new Object(); // woken to draw a frame early while the device lies still
+	private boolean frameRequested;
 	private boolean useTrueNorth;
-	private float currentFps;
+	private volatile boolean metricsEnabled;
+	private FrameMetrics frameMetrics;
+	private String metricsText;
+	private int metricsTextAge;
+	private int renderMode = RENDER_MODE_TRANSLUCENT;
 	
 	// images
 	GradientDrawable backgroundGradient;
-	private Bitmap cardImage;
-	private Bitmap interferenceImage;
-	private Bitmap openPadlockImage;
-	private Bitmap closedPadlockImage;
+	private BitmapCache bitmapCache; // the card and status images, decoded at the size they are drawn
 	
 	// paint
 	private Paint imagePaint;
@@ -73,13 +91,12 @@ public class CompassSurface extends SurfaceView implements Runnable {
 	// typeface
 	private Typeface roboto;
 	
-	private float cachedWidthScale;
-	private float cachedHeightScale;
+	private volatile Layout layout; // replaced whole when the size changes, so a frame never sees half of one
 	
 	private int displayedStatus;
 	
 	private float bearing;
-	private int repeatedBearingCount;
+	private BearingFilter bearingFilter;
 	private volatile String bearingText;
 	private DecimalFormat bearingFormat;
 	private volatile String declenationText;
@@ -91,8 +108,73 @@ public class CompassSurface extends SurfaceView implements Runnable {
 	private boolean bearingLocked;
 	private float currentLockedBearing;
 	
-	private long totalFrames;
-	private long totalTime;
+	private GPSManager gps;
+	private WaypointNavigator navigator;
+	private volatile String waypointText;
+	private DecimalFormat distanceFormat;
+	
+	// markers, only touched by the animation thread apart from the store
+	private volatile WaypointStore markerStore;
+	private int[] markerIndices;
+	private float[] markerBearings; // in degrees around the card
+	private float[] markerLines; // start and end of each marker on the unrotated card, in the same order
+	private int markerCount;
+	private double markerLatitude = Double.NaN; // what the markers were last laid out for
+	private double markerLongitude = Double.NaN;
+	private float markerDeclination;
+	private Layout markerLayout;
+	
+	/**
+	 * Everything about where things go on the screen, worked out once for each size of the surface.
+	 */
+	static class Layout {
+		final float widthScale;
+		final float heightScale;
+		final int cardDiameter;
+		final float centerX;
+		final float centerY;
+		final float innerRadius; // of the inside of the card
+		final Rect centerRect; // the status and padlock images
+		final Rect cardRect;
+		final float lockLineEndY; // the locked bearing and bezel lines run from the top of the card to here
+		final float bearingX;
+		final float bearingY;
+		final float declinationY;
+		final float anomalyWarningY;
+		final float lockedBearingY;
+		final float waypointTextY;
+		final float metricsX;
+		final float metricsY;
+		final float innerTouchRadiusSquared;
+		final float bearingTouchRadiusSquared;
+		
+		Layout(int width, int height) {
+			widthScale = width / 100f;
+			heightScale = height / 100f;
+			cardDiameter = (int)Math.floor(CARD_DIAMETER * widthScale);
+			centerX = COMPASS_CENTER_X * widthScale;
+			centerY = COMPASS_CENTER_Y * heightScale;
+			innerRadius = (cardDiameter * INNER_COMPASS_CARD_RATIO) / 2;
+			centerRect = new Rect((int)Math.floor(centerX - innerRadius), (int)Math.floor(centerY - innerRadius),
+					(int)Math.floor(centerX + innerRadius), (int)Math.floor(centerY + innerRadius));
+			int cardX = (int)Math.floor(centerX - (cardDiameter / 2));
+			int cardY = (int)Math.floor(centerY - (cardDiameter / 2));
+			cardRect = new Rect(cardX, cardY, cardX + cardDiameter, cardY + cardDiameter);
+			lockLineEndY = cardY + ((1 - INNER_COMPASS_CARD_RATIO) * cardDiameter / 2);
+			bearingX = BEARING_X * widthScale;
+			bearingY = BEARING_Y * heightScale;
+			declinationY = (BEARING_Y + DECLENATION_VARIATION_OFFSET) * heightScale;
+			anomalyWarningY = (BEARING_Y + ANOMALY_WARNING_OFFSET) * heightScale;
+			lockedBearingY = (float)((0.17 * CARD_DIAMETER + COMPASS_CENTER_Y) * heightScale);
+			waypointTextY = (float)((0.17 * CARD_DIAMETER + COMPASS_CENTER_Y + WAYPOINT_TEXT_OFFSET) * heightScale);
+			metricsX = 1 * widthScale;
+			metricsY = 98 * heightScale;
+			float innerTouchRadius = (CARD_DIAMETER / 2) * INNER_COMPASS_CARD_RATIO * widthScale;
+			innerTouchRadiusSquared = innerTouchRadius * innerTouchRadius;
+			float bearingTouchRadius = BEARING_TOUCH_RADIUS * widthScale;
+			bearingTouchRadiusSquared = bearingTouchRadius * bearingTouchRadius;
+		}
+	}
 	
 	
 	synchronized boolean isBearingLocked() {
@@ -113,25 +195,48 @@ public class CompassSurface extends SurfaceView implements Runnable {
 		}
 	}
 	
+	float getCardBearing() {
+		return compassCurrentBearing;
+	}
+	
 	synchronized void toggleBearingLock() {
+		requestFrame();
 		bearingLocked = !bearingLocked;
 		currentLockedBearing = compassCurrentBearing;
+		// unlocking also lets go of any waypoint
+		if(!bearingLocked) {
+			clearWaypoint();
+		}
 	}
 	
-	float getWidthScale() {
-		// check if the scale needs to be initialized
-		if(cachedWidthScale == 0f) {
-			cachedWidthScale = this.getWidth() / 100f;
+	synchronized void clearWaypoint() {
+		if(navigator.getWaypoint() != null) {
+			requestFrame();
+			navigator.setWaypoint(null);
+			waypointText = null;
+			if(gps != null && !gps.isLoggingTrack()) {
+				gps.stopGPS();
+			}
 		}
-		return cachedWidthScale;
 	}
 	
-	float getHeightScale() {
-		// check if the scale needs to be initialized
-		if(cachedHeightScale == 0f) {
-			cachedHeightScale = this.getHeight() / 100f;
+	String formatDistance(float meters) {
+		if(meters < 1000f) {
+			return Integer.toString((int)meters) + "m";
 		}
-		return cachedHeightScale;
+		return distanceFormat.format(meters / 1000f) + "km";
+	}
+	
+	Layout getLayout() {
+		return layout;
+	}
+	
+	@Override
+	protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+		super.onSizeChanged(width, height, oldWidth, oldHeight);
+		layout = new Layout(width, height);
+		backgroundGradient = null; // sized for the old layout
+		requestFrame();
 	}
 	
 	void bearingTouched() {
@@ -151,25 +256,24 @@ public class CompassSurface extends SurfaceView implements Runnable {
 	GradientDrawable getBackgroundGradientDrawable() {
 		// check if the background is initialised
 		if(backgroundGradient == null){
+			Layout layout = getLayout();
 			int[] colors = {0xff3f403f, 0xff666666, 0xff3f403f};
 			//int[] colors = {0xff610606, 0xff666666, 0xff610606};
 			//int[] colors = {0xff610606, 0xffffffff};
 			backgroundGradient = new GradientDrawable(Orientation.TOP_BOTTOM, colors);
 			backgroundGradient.setGradientType(GradientDrawable.LINEAR_GRADIENT);
-			backgroundGradient.setGradientRadius(10 * getWidthScale());
+			backgroundGradient.setGradientRadius(10 * layout.widthScale);
 			backgroundGradient.setDither(true);
-			backgroundGradient.setGradientCenter(50 * getWidthScale(), 50 * getHeightScale());
-			Rect bounds = new Rect(0, 0, (int)Math.floor(100 * getWidthScale()), (int)Math.floor(100 * getHeightScale()));
+			backgroundGradient.setGradientCenter(50 * layout.widthScale, 50 * layout.heightScale);
+			Rect bounds = new Rect(0, 0, (int)Math.floor(100 * layout.widthScale), (int)Math.floor(100 * layout.heightScale));
 			backgroundGradient.setBounds(bounds);
 		}
 		return backgroundGradient;
 	}
 	
 	void initDrawing() {
-		cardImage = BitmapFactory.decodeResource(getResources(), R.drawable.card);
-		interferenceImage = BitmapFactory.decodeResource(getResources(), R.drawable.interference);
-		openPadlockImage = BitmapFactory.decodeResource(getResources(), R.drawable.padlock_open);
-		closedPadlockImage = BitmapFactory.decodeResource(getResources(), R.drawable.padlock_closed);
+		// the images are decoded when first drawn, once the layout says how big they need to be
+		bitmapCache = new BitmapCache(getResources(), BITMAP_BUDGET_BYTES);
 		
 		imagePaint = new Paint();
 		imagePaint.setDither(true);
@@ -183,6 +287,8 @@ public class CompassSurface extends SurfaceView implements Runnable {
 		creamPaint.setARGB(255, 222, 222, 222);
 		redPaint = new Paint();
 		redPaint.setColor(Color.RED);
+		redPaint.setStyle(Paint.Style.STROKE);
+		redPaint.setStrokeWidth(2f);
 		bluePaint = new Paint();
 		bluePaint.setARGB(255, 0, 94, 155);
 		
@@ -190,14 +296,16 @@ public class CompassSurface extends SurfaceView implements Runnable {
 		
 	}
 	 
-	float getTextCenterOffset(String text, Paint paint) {
-		float[] widths = new float[text.length()];
-		paint.getTextWidths(text, widths);
-		float totalWidth = 0;
-		for(int i = 0; i < text.length(); i++){
-			totalWidth += widths[i];
+	void drawImage(Canvas canvas, int resourceId, Rect rect) {
+		// every image has a transparent surround, so none of them can drop to 16 bits
+		Bitmap bitmap = bitmapCache.get(resourceId, rect.width(), rect.height(), false);
+		if(bitmap != null) {
+			canvas.drawBitmap(bitmap, null, rect, imagePaint);
 		}
-		return totalWidth / 2;
+	}
+	
+	float getTextCenterOffset(String text, Paint paint) {
+		return paint.measureText(text) / 2;
 	}
 	
 	void updateAccuracy() {
@@ -211,8 +319,11 @@ public class CompassSurface extends SurfaceView implements Runnable {
 		}
 	}
 	
-	void updateCompass() {
-		float newBearing = compass.getPositiveBearing(useTrueNorth());
+	void updateCompass(long frameTimeNanos) {
+		// aim for where the compass will be when this frame is shown, as measured on the last frames
+		long displayLatency = Math.min(frameMetrics.getDisplayDelayNanos() + COMPOSITION_LATENCY_NANOS,
+				CompassManager.PREDICTION_MAX_HORIZON_NANOS);
+		float newBearing = compass.getPredictedPositiveBearing(useTrueNorth(), frameTimeNanos + displayLatency);
 		//float newBearing = bearing;
 		// adjust the new bearing to prevent problems involving 360 -- 0
 		if(compassCurrentBearing < 90 && newBearing > 270){
@@ -251,18 +362,8 @@ public class CompassSurface extends SurfaceView implements Runnable {
 	}
 	
 	void updateBearing() {
-		// work out the bearing, dampening jitter
-		float newBearing = compass.getPositiveBearing(useTrueNorth());
-		if(Math.abs(bearing - newBearing) > REQUIRED_BEARING_CHANGE) {
-			bearing = newBearing; // the change is to insignificant to be displayed
-			repeatedBearingCount = 0; // reset the repetition count
-		} else {
-			repeatedBearingCount ++;
-			if(repeatedBearingCount > REQUIRED_BEARING_REPEAT) {
-				bearing = newBearing;
-				repeatedBearingCount = 0;
-			}
-		}
+		// work out the bearing, smoothing out jitter
+		bearing = bearingFilter.addSample(compass.getPositiveBearing(useTrueNorth()));
 		bearingText = bearingFormat.format(bearing);
 		bearingText += "\u00B0 "; // add the degrees symbol
 		bearingText += CardinalConverter.cardinalFromPositiveBearing(bearing); // add the cardinal information
@@ -276,13 +377,133 @@ public class CompassSurface extends SurfaceView implements Runnable {
 		declenationText += "variation: "+declenationFormat.format(compass.getDeclination())+"\u00B0"; // u00B0 is degrees sign
 	}
 	
-	void update(float delta) {
+	synchronized void updateWaypoint() {
+		if(navigator.getWaypoint() == null || gps == null) {
+			return;
+		}
+		// the navigator only does any work when the fix has moved
+		Location location = gps.getLocation();
+		if(location != null && navigator.setOrigin(location.getLatitude(), location.getLongitude())) {
+			waypointText = formatDistance(navigator.getDistance()) + " to " + navigator.getWaypoint().getName();
+		}
+		if(navigator.hasBearing()) {
+			// the card is drawn against magnetic north unless true north is in use
+			float target = navigator.getBearing();
+			if(!useTrueNorth) {
+				target -= compass.getDeclination();
+				if(target < 0) {
+					target += 360f;
+				} else if(target >= 360f) {
+					target -= 360f;
+				}
+			}
+			currentLockedBearing = target;
+		}
+	}
+	
+	void updateMarkers() {
+		WaypointStore store = markerStore;
+		if(store == null) {
+			return;
+		}
+		Location location = gps != null ? gps.getLocation() : null;
+		if(location == null) {
+			location = LocationHub.getInstance(getContext()).getBestLocation();
+		}
+		if(location == null) {
+			return;
+		}
+		// the card is drawn against magnetic north unless true north is in use
+		float declination = useTrueNorth() ? 0f : compass.getDeclination();
+		Layout layout = getLayout();
+		if(location.getLatitude() == markerLatitude && location.getLongitude() == markerLongitude
+				&& declination == markerDeclination && layout == markerLayout) {
+			return; // nothing has moved, the markers are still right
+		}
+		markerLatitude = location.getLatitude();
+		markerLongitude = location.getLongitude();
+		markerDeclination = declination;
+		markerLayout = layout;
+		
+		// find the nearest all around, the whole card is on screen
+		int count = store.findNearestInView(markerLatitude, markerLongitude, 0f, 180f, MARKER_MAX_DISTANCE_METERS,
+				markerIndices, markerBearings);
+		for(int i = 0; i < count; i++) {
+			float cardBearing = markerBearings[i] - declination;
+			if(cardBearing < 0) {
+				cardBearing += 360f;
+			} else if(cardBearing >= 360f) {
+				cardBearing -= 360f;
+			}
+			markerBearings[i] = cardBearing;
+		}
+		
+		// lay out each marker as a line on the card, the canvas rotation does the rest when drawing
+		float centerX = layout.centerX;
+		float centerY = layout.centerY;
+		float outerRadius = layout.cardDiameter / 2f;
+		float innerRadius = outerRadius - (1 - INNER_COMPASS_CARD_RATIO) * outerRadius * MARKER_LENGTH_RATIO;
+		for(int i = 0; i < count; i++) {
+			double angle = Math.toRadians(markerBearings[i]);
+			float sin = (float)Math.sin(angle);
+			float cos = (float)Math.cos(angle);
+			markerLines[i * 4] = centerX + sin * outerRadius;
+			markerLines[i * 4 + 1] = centerY - cos * outerRadius;
+			markerLines[i * 4 + 2] = centerX + sin * innerRadius;
+			markerLines[i * 4 + 3] = centerY - cos * innerRadius;
+		}
+		markerCount = count;
+	}
+	
+	void drawMarkers(Canvas canvas) {
+		// every marker is somewhere on the card, so they all go in one batch
+		if(markerCount > 0) {
+			canvas.drawLines(markerLines, 0, markerCount * 4, redPaint);
+		}
+	}
+	
+	void update(long frameTimeNanos) {
+		updateWaypoint();
+		updateMarkers();
 		updateBearing();
-		updateCompass();
+		updateCompass(frameTimeNanos);
 		updateAccuracy();
 	}
 	
+	/**
+	 * Draws the next frame straight away if the animation is waiting for the device to move.
+	 */
+	void requestFrame() {
+		synchronized(frameLock) {
+			frameRequested = true;
+			frameLock.notify();
+		}
+	}
+	
+	void waitForFrame(long timeout) throws InterruptedException {
+		synchronized(frameLock) {
+			if(!frameRequested) {
+				frameLock.wait(timeout);
+			}
+			frameRequested = false;
+		}
+	}
+	
+	boolean isFrozen() {
+		// keep animating until the card has come to rest
+		return compass.isStill() && Math.abs(compassSpeed) < COMPASS_SETTLED_SPEED;
+	}
+	
+	public void onStillnessChanged(boolean still) {
+		if(!still) {
+			requestFrame(); // catch up on the movement in the very next frame
+		}
+	}
+	
 	synchronized void triggerDraw() {
+		if(!isRunning) {
+			return; // stopped since the loop last checked, the images may already have been released
+		}
 		Canvas canvas = null;
 		try {
 			canvas = this.getHolder().lockCanvas();
@@ -300,9 +521,9 @@ public class CompassSurface extends SurfaceView implements Runnable {
 	public void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
 		
-		// update the scales
-		float widthScale = getWidthScale();
-		float heightScale = getHeightScale();
+		// everything is placed from the layout for the current size
+		Layout layout = getLayout();
+		bitmapCache.startFrame();
 		
 		canvas.drawColor(creamPaint.getColor()); // blank the screen
 		//getBackgroundGradientDrawable().draw(canvas);
@@ -310,74 +531,91 @@ public class CompassSurface extends SurfaceView implements Runnable {
 		// draw the bearing information
 		blackPaint.setTextSize(70f);
 		blackPaint.setTypeface(roboto);
-		canvas.drawText(bearingText, (BEARING_X * widthScale) - getTextCenterOffset(bearingText, blackPaint), BEARING_Y * heightScale, blackPaint);
+		canvas.drawText(bearingText, layout.bearingX - getTextCenterOffset(bearingText, blackPaint), layout.bearingY, blackPaint);
 		
 		// only draw the declenation text in true north mode
 		if(useTrueNorth()) {
 			blackPaint.setTextSize(25f);
-			canvas.drawText(declenationText, (BEARING_X * widthScale) - getTextCenterOffset(declenationText, blackPaint), 
-					(BEARING_Y + DECLENATION_VARIATION_OFFSET) * heightScale, blackPaint);
+			canvas.drawText(declenationText, layout.bearingX - getTextCenterOffset(declenationText, blackPaint), 
+					layout.declinationY, blackPaint);
+		}
+		
+		// warn about places the field is known to be out
+		if(compass.isInKnownAnomaly()) {
+			redPaint.setStyle(Paint.Style.FILL);
+			redPaint.setTextSize(25f);
+			canvas.drawText(ANOMALY_WARNING_TEXT, layout.bearingX - getTextCenterOffset(ANOMALY_WARNING_TEXT, redPaint),
+					layout.anomalyWarningY, redPaint);
+			redPaint.setStyle(Paint.Style.STROKE);
 		}
 		
 		// draw the inside of the compass card
-		int cardDiameter = (int)Math.floor(CARD_DIAMETER * widthScale);
 		if(!isBearingLocked()){
-			canvas.drawCircle(50 * widthScale, 60 * heightScale, (cardDiameter * INNER_COMPASS_CARD_RATIO) / 2, greyPaint);
+			canvas.drawCircle(layout.centerX, layout.centerY, layout.innerRadius, greyPaint);
 		}
 		else {
 			bluePaint.setStyle(Paint.Style.FILL_AND_STROKE);
-			canvas.drawCircle(50 * widthScale, 60 * heightScale, (cardDiameter * INNER_COMPASS_CARD_RATIO) / 2, bluePaint);
+			canvas.drawCircle(layout.centerX, layout.centerY, layout.innerRadius, bluePaint);
 		}
-		Rect centerRect = new Rect((int)Math.floor(COMPASS_CENTER_X * widthScale - ((cardDiameter * INNER_COMPASS_CARD_RATIO) / 2)), 
-				(int)Math.floor(COMPASS_CENTER_Y * heightScale - ((cardDiameter * INNER_COMPASS_CARD_RATIO) / 2)), 
-				(int)Math.floor(COMPASS_CENTER_X * widthScale + ((cardDiameter * INNER_COMPASS_CARD_RATIO) / 2)), 
-				(int)Math.floor(COMPASS_CENTER_Y * heightScale + ((cardDiameter * INNER_COMPASS_CARD_RATIO) / 2)));
+		Rect centerRect = layout.centerRect;
 		// draw the right status
 		if(displayedStatus == CompassManager.STATUS_INTERFERENCE) {
-			canvas.drawBitmap(interferenceImage, null, centerRect, imagePaint);
+			drawImage(canvas, R.drawable.interference, centerRect);
 		}
 		
 		// if not status draw the bearing lock indicator
 		if(displayedStatus == STATUS_NO_EVENT) {
 			if(!isBearingLocked()) {
-				canvas.drawBitmap(openPadlockImage, null, centerRect, imagePaint);
+				drawImage(canvas, R.drawable.padlock_open, centerRect);
 			}
 			if(isBearingLocked()) {
-				canvas.drawBitmap(closedPadlockImage, null, centerRect, imagePaint);
+				drawImage(canvas, R.drawable.padlock_closed, centerRect);
 				greyPaint.setTextSize(30f);
 				String lockedBearingText = bearingFormat.format(getLockedBearing());
-				canvas.drawText(lockedBearingText + "\u00B0", 50 * widthScale - getTextCenterOffset(lockedBearingText, greyPaint), 
-						(float)((0.17 * CARD_DIAMETER + COMPASS_CENTER_Y) * heightScale), greyPaint);
+				canvas.drawText(lockedBearingText + "\u00B0", layout.centerX - getTextCenterOffset(lockedBearingText, greyPaint), 
+						layout.lockedBearingY, greyPaint);
+				String currentWaypointText = waypointText;
+				if(currentWaypointText != null) {
+					greyPaint.setTextSize(20f);
+					canvas.drawText(currentWaypointText, layout.centerX - getTextCenterOffset(currentWaypointText, greyPaint), 
+							layout.waypointTextY, greyPaint);
+				}
 			}
 		}
 		
 		// draw the compass card
-		canvas.rotate(compassCurrentBearing * -1, COMPASS_CENTER_X * widthScale, COMPASS_CENTER_Y * heightScale);
-		int cardX = (int)Math.floor(COMPASS_CENTER_X * widthScale - (cardDiameter / 2));
-		int cardY = (int)Math.floor(COMPASS_CENTER_Y * heightScale - (cardDiameter / 2));
-		Rect cardRect = new Rect(cardX, cardY, cardX + cardDiameter, cardY + cardDiameter);
-		canvas.drawBitmap(cardImage, null, cardRect, imagePaint);
+		canvas.rotate(compassCurrentBearing * -1, layout.centerX, layout.centerY);
+		drawImage(canvas, R.drawable.card, layout.cardRect);
 		//canvas.restore();
 		
+		// draw the waypoint markers, laid out on the card so they turn with it
+		drawMarkers(canvas);
+		
 		// draw the locked bearing
-		canvas.rotate(getLockedBearing(), COMPASS_CENTER_X * widthScale, COMPASS_CENTER_Y * heightScale);
+		canvas.rotate(getLockedBearing(), layout.centerX, layout.centerY);
 		bluePaint.setStyle(Paint.Style.STROKE);
 		bluePaint.setStrokeWidth(3f);
-		canvas.drawLine(COMPASS_CENTER_X * widthScale, cardY, COMPASS_CENTER_X * widthScale, cardY + ((1 - INNER_COMPASS_CARD_RATIO) * cardDiameter / 2), bluePaint);
+		canvas.drawLine(layout.centerX, layout.cardRect.top, layout.centerX, layout.lockLineEndY, bluePaint);
 		if(Build.VERSION.SDK_INT != 23) canvas.restore();
 		
 		// draw the bezel
 		darkGreyPaint.setStyle(Paint.Style.STROKE);
 		darkGreyPaint.setStrokeWidth(6f); 
-		canvas.drawCircle(COMPASS_CENTER_X * widthScale, COMPASS_CENTER_Y * heightScale, cardDiameter / 2 + 2f, darkGreyPaint);
-		canvas.drawLine(COMPASS_CENTER_X * widthScale, cardY, COMPASS_CENTER_X * widthScale, cardY + ((1 - INNER_COMPASS_CARD_RATIO) * cardDiameter / 2), darkGreyPaint);
+		canvas.drawCircle(layout.centerX, layout.centerY, layout.cardDiameter / 2 + 2f, darkGreyPaint);
+		canvas.drawLine(layout.centerX, layout.cardRect.top, layout.centerX, layout.lockLineEndY, darkGreyPaint);
 		darkGreyPaint.setStyle(Paint.Style.FILL);
 		
 		
-		// draw the fps
-		if(DRAW_FPS) {
-			greyPaint.setTextSize(15f);
-			canvas.drawText(Float.toString(currentFps) + " FPS", 1 * widthScale, 98 * heightScale, greyPaint);
+		// draw the performance overlay
+		if(metricsEnabled) {
+			// rebuilding the text every frame would skew the numbers it shows
+			if(metricsText == null || metricsTextAge >= METRICS_TEXT_REFRESH_FRAMES) {
+				metricsText = frameMetrics.getSummary();
+				metricsTextAge = 0;
+			}
+			metricsTextAge ++;
+			darkGreyPaint.setTextSize(15f);
+			canvas.drawText(metricsText, layout.metricsX, layout.metricsY, darkGreyPaint);
 		}
 	}
 	
@@ -387,20 +625,20 @@ public class CompassSurface extends SurfaceView implements Runnable {
 			float x = event.getX();
 			float y = event.getY();
 			
-			// check if the user touched inside the card centre
-			float compassX = COMPASS_CENTER_X * getWidthScale();
-			float compassY = COMPASS_CENTER_Y * getHeightScale();
-			float distance = (float)Math.sqrt(Math.pow(x - compassX, 2) + Math.pow(y - compassY, 2));
-			if(distance < ((CARD_DIAMETER / 2) * INNER_COMPASS_CARD_RATIO * getWidthScale())) {
+			Layout layout = getLayout();
+			
+			// check if the user touched inside the card centre, comparing squared distances
+			float dx = x - layout.centerX;
+			float dy = y - layout.centerY;
+			if(dx * dx + dy * dy < layout.innerTouchRadiusSquared) {
 				innerCardTouched();
 				return true; // we used the touch
 			}
 			
 			// check if the user touched the bearing
-			float bearingX = BEARING_X * getWidthScale();
-			float bearingY = BEARING_Y * getHeightScale();
-			distance = (float)Math.sqrt(Math.pow(x - bearingX, 2) + Math.pow(y - bearingY, 2));
-			if(distance < (BEARING_TOUCH_RADIUS * getWidthScale())) {
+			dx = x - layout.bearingX;
+			dy = y - layout.bearingY;
+			if(dx * dx + dy * dy < layout.bearingTouchRadiusSquared) {
 				bearingTouched();
 				return true; // we used the touch
 			}
@@ -410,6 +648,7 @@ public class CompassSurface extends SurfaceView implements Runnable {
 	
 	public synchronized void useTrueNorth(boolean useTrueNorth) {
 		this.useTrueNorth = useTrueNorth;
+		requestFrame();
 	}
 	
 	public synchronized boolean useTrueNorth() {
@@ -419,11 +658,13 @@ public class CompassSurface extends SurfaceView implements Runnable {
 	public synchronized void setManualDeclination(float declination) {
 		// this is a thread safe wrapper
 		compass.setManualDeclination(declination);
+		requestFrame();
 	}
 	
 	public synchronized void useAutoDeclination() {
 		// this is a thread safe wrapper
 		compass.useAutoDeclination();
+		requestFrame();
 	}
 	
 	public float getManualDeclination() {
@@ -441,10 +682,44 @@ public class CompassSurface extends SurfaceView implements Runnable {
 			// lock the bearing
 			toggleBearingLock();
 		}
+		// a manual bearing replaces any waypoint
+		clearWaypoint();
 		// set the locked bearing to what was requested
 		setLockedBearing(bearing);
 	}
 	
+	/**
+	 * Locks the bearing onto a waypoint, which is followed as the gps position changes.
+	 * The gps is only run while a waypoint is locked and the animation is running.
+	 */
+	public synchronized void lockBearingToWaypoint(Waypoint waypoint) {
+		if(!isBearingLocked()) {
+			toggleBearingLock();
+		}
+		navigator.setWaypoint(waypoint);
+		waypointText = waypoint.getName();
+		requestFrame();
+		if(gps != null && isRunning) {
+			gps.startGPS();
+		}
+	}
+	
+	public synchronized Waypoint getWaypoint() {
+		return navigator.getWaypoint();
+	}
+	
+	/**
+	 * Shows the nearby waypoints of the store as markers around the card, pass null to hide them.
+	 */
+	public void setWaypointStore(WaypointStore store) {
+		markerStore = store;
+		requestFrame();
+	}
+	
+	public synchronized void setGPSManager(GPSManager gps) {
+		this.gps = gps;
+	}
+	
 	public void unlockBearing() {
 		// toggle the lock if the bearing is locked
 		if(isBearingLocked()) {
@@ -452,11 +727,102 @@ public class CompassSurface extends SurfaceView implements Runnable {
 		}
 	}
 	
+	public void setMetricsEnabled(boolean enabled) {
+		if(enabled && !metricsEnabled) {
+			// start from a clean slate
+			frameMetrics.reset();
+			metricsText = null;
+		}
+		metricsEnabled = enabled;
+		requestFrame();
+	}
+	
+	public boolean isMetricsEnabled() {
+		return metricsEnabled;
+	}
+	
+	public String getMetricsReport() {
+		return "render mode: " + getRenderModeName(renderMode) + "\n" + frameMetrics.getReport();
+	}
+	
+	static String getRenderModeName(int mode) {
+		switch(mode) {
+		case RENDER_MODE_RGBX_8888:
+			return "rgbx 8888";
+		case RENDER_MODE_RGB_565:
+			return "rgb 565";
+		default:
+			return "translucent";
+		}
+	}
+	
+	/**
+	 * Picks the cheapest opaque format the display can show without losing anything.
+	 */
+	public static int chooseRenderMode(Display display) {
+		// a 16 bit display gains nothing from a 32 bit surface but the extra bandwidth
+		if(display != null && display.getPixelFormat() == PixelFormat.RGB_565) {
+			return RENDER_MODE_RGB_565;
+		}
+		return RENDER_MODE_RGBX_8888;
+	}
+	
+	/**
+	 * Sets the surface format. The whole surface is painted every frame, so there is nothing
+	 * to blend with and the opaque modes save the compositor a pass over it.
+	 */
+	public void setRenderMode(int mode) {
+		renderMode = mode;
+		int format;
+		if(mode == RENDER_MODE_RGBX_8888) {
+			format = PixelFormat.RGBX_8888;
+		} else if(mode == RENDER_MODE_RGB_565) {
+			format = PixelFormat.RGB_565;
+		} else {
+			format = PixelFormat.TRANSPARENT;
+		}
+		getHolder().setFormat(format);
+		// the card's shading bands at 16 bits unless it is dithered, at 32 bits dithering is wasted work
+		imagePaint.setDither(mode != RENDER_MODE_RGBX_8888);
+		if(metricsEnabled) {
+			frameMetrics.reset(); // the old numbers are for the old format
+		}
+	}
+	
+	public int getRenderMode() {
+		return renderMode;
+	}
+	
+	/**
+	 * Recycles the images, they are decoded again when next drawn. Waits for any frame being drawn.
+	 */
+	public synchronized void releaseBitmaps() {
+		bitmapCache.release();
+	}
+	
+	/**
+	 * Passes on a level from onTrimMemory().
+	 */
+	public synchronized void trimMemory(int level) {
+		bitmapCache.trim(level);
+	}
+	
+	public void setBitmapBudget(int bytes) {
+		bitmapCache.setBudget(bytes);
+	}
+	
 	public void stopAnimation() {
 		isRunning = false; // stop the animation loop
-		float avgFps = (totalFrames * 1000l) / totalTime;
-		if(DRAW_FPS) {
-			Log.v("compass", "total frames:"+totalFrames+" total time:"+totalTime+" avg. fps:"+Float.toString(avgFps));
+		compass.removeStillnessListener(this);
+		requestFrame(); // in case the loop is waiting for the device to move
+		// no waypoint is shown while paused, so let the gps go unless it is logging a track
+		synchronized(this) {
+			if(gps != null && !gps.isLoggingTrack()) {
+				gps.stopGPS();
+			}
+		}
+		if(metricsEnabled) {
+			Log.v("compass", "frame metrics:\n" + frameMetrics.getReport());
 		}
 	}
 	
@@ -467,11 +833,19 @@ public class CompassSurface extends SurfaceView implements Runnable {
 		// reset the status
 		displayedStatus = STATUS_NO_EVENT;
 		
-		// set variables for working out avg fps
-		totalFrames = 0;
-		totalTime = 0;
+		// forget any bearings from before the pause
+		bearingFilter.reset();
+		
+		// the gap while paused is not a slow frame
+		frameMetrics.reset();
 		
 		isRunning = true; // flag the loop as running
+		compass.addStillnessListener(this);
+		synchronized(this) {
+			if(gps != null && navigator.getWaypoint() != null) {
+				gps.startGPS();
+			}
+		}
 		// create and start the thread
 		animationThread = new Thread(this);
 		animationThread.start();
@@ -483,25 +857,33 @@ public class CompassSurface extends SurfaceView implements Runnable {
 		// loop whilst we are told to
 		while (isRunning) {
 			// record the start time
-			long startTime = System.currentTimeMillis();
+			long startTime = System.nanoTime();
 			
 			// update the animation
-			update(1); // TODO set up a delta system
+			update(startTime);
+			long updateTime = System.nanoTime();
 			triggerDraw(); // draw the update
 			
 	 		// work out how long to sleep for
-			long finishTime = System.currentTimeMillis();
-			long requiredSleepTime = maxSleepTime - (finishTime - startTime);
+			long finishTime = System.nanoTime();
+			frameMetrics.recordDisplayDelay(startTime, finishTime); // always, the next frame's prediction uses it
+			if(metricsEnabled) {
+				frameMetrics.recordFrame(startTime, updateTime, finishTime, compass.getSensorTimestamp());
+			}
+			long requiredSleepTime = maxSleepTime - (finishTime - startTime) / 1000000l;
 			// check if the sleep time was too low
 			if(requiredSleepTime < MINIMUM_SLEEP_TIME) {  
 				requiredSleepTime = MINIMUM_SLEEP_TIME;
 			}
-			currentFps = 1000 / (requiredSleepTime + (finishTime - startTime));
-			totalFrames ++;
-			totalTime += (requiredSleepTime + (finishTime - startTime));
 			// try to sleep for this time
 			try {
-				Thread.sleep(requiredSleepTime);
+				if(isFrozen()) {
+					// nothing on the card changes until the device moves, so wait for that rather than drawing the same frame
+					waitForFrame(STILL_FRAME_INTERVAL);
+					frameMetrics.markIdle(); // the wait is not a slow frame
+				} else {
+					Thread.sleep(requiredSleepTime);
+				}
 			} catch (InterruptedException e) {
 				// do nothing
 			}
@@ -516,6 +898,15 @@ public class CompassSurface extends SurfaceView implements Runnable {
 		// initialize the number formatters
 		bearingFormat = new DecimalFormat("000");
 		declenationFormat = new DecimalFormat("00.0");
+		distanceFormat = new DecimalFormat("0.0");
+		
+		bearingFilter = new BearingFilter(BEARING_FILTER_WINDOW);
+		navigator = new WaypointNavigator();
+		markerIndices = new int[MAX_MARKERS];
+		markerBearings = new float[MAX_MARKERS];
+		markerLines = new float[MAX_MARKERS * 4];
+		frameMetrics = new FrameMetrics(1000000000l / TARGET_FPS);
+		layout = new Layout(0, 0); // until the surface has a size
 		
 		// initialize images
 		initDrawing();
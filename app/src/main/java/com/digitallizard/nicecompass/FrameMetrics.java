@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * Collects per frame timings for CompassSurface: update and draw durations, the interval
+ * between frames and how old the sensor data was when its frame was posted.
+ */
+public class FrameMetrics {
+	/** constants **/
+	private static final long BUCKET_WIDTH_NANOS = 250000l; // 0.25ms
+	private static final int BUCKET_COUNT = 1000; // up to 250ms, anything longer is counted together
+	private static final double NANOS_PER_MILLI = 1000000d;
+	private static final float DISPLAY_DELAY_SMOOTHING = 0.05f; // the weight given to the newest frame
+	
+	/** variables **/
+	private final long jankThresholdNanos;
+	private final LatencyHistogram updateTimes;
+	private final LatencyHistogram drawTimes;
+	private final LatencyHistogram frameIntervals;
+	private final LatencyHistogram sensorToDrawLatencies;
+	private long lastFrameEnd;
+	private long displayDelayNanos; // smoothed time from a frame starting to its drawing being posted
+	
+	private static void appendLine(StringBuilder report, String name, LatencyHistogram histogram) {
+		report.append(name)
+				.append(": p50 ").append(String.format("%.2f", histogram.getPercentileNanos(50) / NANOS_PER_MILLI))
+				.append(" p95 ").append(String.format("%.2f", histogram.getPercentileNanos(95) / NANOS_PER_MILLI))
+				.append(" p99 ").append(String.format("%.2f", histogram.getPercentileNanos(99) / NANOS_PER_MILLI))
+				.append(" max ").append(String.format("%.2f", histogram.getMaxNanos() / NANOS_PER_MILLI))
+				.append(" ms\n");
+	}
+	
+	/**
+	 * Records one frame. Times are from System.nanoTime(), sensorTimestamp is when the data shown arrived.
+	 */
+	public synchronized void recordFrame(long frameStart, long updateEnd, long drawEnd, long sensorTimestamp) {
+		updateTimes.record(updateEnd - frameStart);
+		drawTimes.record(drawEnd - updateEnd);
+		if(lastFrameEnd != 0) {
+			frameIntervals.record(drawEnd - lastFrameEnd);
+		}
+		lastFrameEnd = drawEnd;
+		if(sensorTimestamp != 0) {
+			sensorToDrawLatencies.record(drawEnd - sensorTimestamp);
+		}
+	}
+	
+	/**
+	 * Records how long a frame took from starting its update to posting its drawing. Unlike recordFrame()
+	 * this is cheap enough to call on every frame, whether or not the rest of the metrics are wanted.
+	 */
+	public synchronized void recordDisplayDelay(long frameStart, long drawEnd) {
+		long delay = drawEnd - frameStart;
+		if(displayDelayNanos == 0) {
+			displayDelayNanos = delay;
+		} else {
+			displayDelayNanos += (long)((delay - displayDelayNanos) * DISPLAY_DELAY_SMOOTHING);
+		}
+	}
+	
+	/**
+	 * Returns the smoothed display delay, 0 before the first frame. reset() leaves it alone.
+	 */
+	public synchronized long getDisplayDelayNanos() {
+		return displayDelayNanos;
+	}
+	
+	public synchronized long getFrameCount() {
+		return updateTimes.getCount();
+	}
+	
+	public synchronized long getJankCount() {
+		return frameIntervals.countAbove(jankThresholdNanos);
+	}
+	
+	public synchronized float getAverageFps() {
+		// avoid dividing by zero if no frames have been timed
+		if(frameIntervals.getTotalNanos() == 0) {
+			return 0f;
+		}
+		return (float)(frameIntervals.getCount() * 1e9d / frameIntervals.getTotalNanos());
+	}
+	
+	/**
+	 * Returns a short summary for the on screen overlay.
+	 */
+	public synchronized String getSummary() {
+		return String.format("%.1f fps  jank %d  frame p95 %.1fms  sensor p95 %.1fms", getAverageFps(), getJankCount(),
+				frameIntervals.getPercentileNanos(95) / NANOS_PER_MILLI, sensorToDrawLatencies.getPercentileNanos(95) / NANOS_PER_MILLI);
+	}
+	
+	public synchronized String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append("frames: ").append(getFrameCount()).append(", avg fps: ").append(String.format("%.1f", getAverageFps()))
+				.append(", jank: ").append(getJankCount()).append('\n');
+		appendLine(report, "update", updateTimes);
+		appendLine(report, "draw", drawTimes);
+		appendLine(report, "frame interval", frameIntervals);
+		appendLine(report, "sensor to draw", sensorToDrawLatencies);
+		return report.toString();
+	}
+	
+	/**
+	 * Marks a deliberate gap in drawing, so the next frame is not counted as a slow one.
+	 */
+	public synchronized void markIdle() {
+		lastFrameEnd = 0;
+	}
+	
+	public synchronized void reset() {
+		updateTimes.reset();
+		drawTimes.reset();
+		frameIntervals.reset();
+		sensorToDrawLatencies.reset();
+		lastFrameEnd = 0;
+	}
+	
+	public FrameMetrics(long targetFrameNanos) {
+		// a frame that takes half as long again as planned is noticeable
+		jankThresholdNanos = targetFrameNanos * 3 / 2;
+		updateTimes = new LatencyHistogram(BUCKET_WIDTH_NANOS, BUCKET_COUNT);
+		drawTimes = new LatencyHistogram(BUCKET_WIDTH_NANOS, BUCKET_COUNT);
+		frameIntervals = new LatencyHistogram(BUCKET_WIDTH_NANOS, BUCKET_COUNT);
+		sensorToDrawLatencies = new LatencyHistogram(BUCKET_WIDTH_NANOS, BUCKET_COUNT);
+	}
+}
@@ -6,11 +6,17 @@
  ******************************************************************************/
 package com.digitallizard.nicecompass;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.content.Context;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 public class GPSManager {
 	
@@ -22,62 +28,299 @@ public class GPSManager {
 	private static long MIN_UPDATE_TIME_MILLIS = 10l * 1000l; // 10 seconds
 	private static float MIN_UPDATE_DISTANCE_METERS = 1f; // 1 meter
 	
-	private LocationManager locationManager;
+	// duty cycling
+	private static final float ADEQUATE_ACCURACY_METERS = 20f; // a fix this good lets the gps sleep
+	private static final float DECAYED_ACCURACY_METERS = 60f; // wake the gps once the held fix is probably this far out
+	private static final float ASSUMED_SPEED_METERS_PER_SECOND = 1.5f; // walking pace, for a fix that does not give a speed
+	private static final float STATIONARY_SPEED_METERS_PER_SECOND = 0.5f; // slower than this is gps noise, the fix does not go stale
+	private static final long MAX_SLEEP_MILLIS = 5l * 60l * 1000l; // the longest sleep, reached when standing still
+	// so standing still the gps is on for a fix every 5 minutes, walking it sleeps for about 30 seconds at a time
+	private static final long SLEEP_CHECK_INTERVAL_MILLIS = 15l * 1000l;
+	private static final float SIGNIFICANT_MOTION_METERS = 100f; // another provider placing us this far away wakes the gps
+	
+	private LocationHub locationHub;
 	private LocationListener locationListener;
-	private Location locationCache;
+	private LocationListener motionListener; // watches the network provider while the gps sleeps
+	private LocationListener passiveMotionListener; // and fixes other apps ask for
+	private LocationListener externalListener; // fixes from an external receiver, see NmeaReceiver
+	private Handler handler;
+	private Runnable sleepCheck;
 	private int status;
 	
+	private boolean gpsRequested; // startGPS() has been called, the gps may still be sleeping
+	private boolean gpsSleeping;
+	private boolean dutyCycling;
+	private boolean requiresAltitude = true;
+	private Location heldFix; // the last fix that was good enough to use
+	private long heldFixElapsedMillis; // when the held fix arrived, on the monotonic clock
+	
+	private TrackLogger trackLogger;
+	private CompassManager trackCompass; // supplies the bearing logged with each fix
+	private TrackSummary trackSummary; // kept up to date as fixes are logged
+	private TrackSimplifier trackSimplifier; // picks out the fixes for the simplified track as they arrive
+	private TrackLogger simplifiedLogger; // the fixes the simplifier keeps, ready to export
+	
+	/**
+	 * Wakes the gps when another provider places us well away from the held fix.
+	 */
+	private class MotionListener implements LocationListener {
+		public void onStatusChanged(String provider, int status, Bundle extras) {
+		}
+		
+		public void onProviderEnabled(String provider) {
+		}
+		
+		public void onProviderDisabled(String provider) {
+		}
+		
+		public void onLocationChanged(Location location) {
+			Location fix = getLocation();
+			if(fix != null && fix.distanceTo(location) > SIGNIFICANT_MOTION_METERS + location.getAccuracy()) {
+				wakeGPS();
+			}
+		}
+	}
+	
 	private synchronized void updateStatus(int newStatus) {
 		status = newStatus;
 	}
 	
-	private synchronized void updateLocationCache(Location newLocation) {
-		locationCache = newLocation;
+	private synchronized void updateHeldFix(Location location) {
+		heldFix = location;
+		heldFixElapsedMillis = SystemClock.elapsedRealtime();
+	}
+	
+	private synchronized float getHeldFixAccuracy() {
+		// assume the user carries on as fast as they were going, so a moving fix gets worse the older it is
+		float ageSeconds = (SystemClock.elapsedRealtime() - heldFixElapsedMillis) / 1000f;
+		float accuracy = heldFix.hasAccuracy() ? heldFix.getAccuracy() : ADEQUATE_ACCURACY_METERS;
+		float speed = heldFix.hasSpeed() ? heldFix.getSpeed() : ASSUMED_SPEED_METERS_PER_SECOND;
+		if(speed < STATIONARY_SPEED_METERS_PER_SECOND) {
+			speed = 0f; // only the time limit wakes the gps, or the other providers seeing a big move
+		}
+		return accuracy + ageSeconds * speed;
+	}
+	
+	private synchronized long getHeldFixAgeMillis() {
+		return SystemClock.elapsedRealtime() - heldFixElapsedMillis;
+	}
+	
+	private void sleepGPS() {
+		// keep the fix, but turn the radio off until it is needed again
+		locationHub.removeUpdates(locationListener);
+		// every fix from the other providers is wanted, the best location would pass over them for the held gps fix
+		try {
+			locationHub.requestUpdates(LocationManager.NETWORK_PROVIDER, SLEEP_CHECK_INTERVAL_MILLIS, 0f, motionListener);
+		} catch(IllegalArgumentException e) {
+			// no network provider, the passive one and the time checks will have to do
+		}
+		locationHub.requestUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0f, passiveMotionListener);
+		gpsSleeping = true;
+		handler.postDelayed(sleepCheck, SLEEP_CHECK_INTERVAL_MILLIS);
+	}
+	
+	private void cancelSleep() {
+		handler.removeCallbacks(sleepCheck);
+		locationHub.removeUpdates(motionListener);
+		locationHub.removeUpdates(passiveMotionListener);
+		gpsSleeping = false;
+	}
+	
+	private void wakeGPS() {
+		if(!gpsSleeping) {
+			return;
+		}
+		cancelSleep();
+		locationHub.requestUpdates(LocationManager.GPS_PROVIDER, MIN_UPDATE_TIME_MILLIS, MIN_UPDATE_DISTANCE_METERS,
+				locationListener);
+	}
+	
+	private void checkSleep() {
+		// wake the gps if the held fix is too old or has probably drifted too far
+		if(getHeldFixAgeMillis() > MAX_SLEEP_MILLIS || getHeldFixAccuracy() > DECAYED_ACCURACY_METERS) {
+			wakeGPS();
+		} else {
+			handler.postDelayed(sleepCheck, SLEEP_CHECK_INTERVAL_MILLIS);
+		}
+	}
+	
+	private synchronized void logTrack(Location location) {
+		if(trackLogger != null) {
+			// the bearing is only worth having while the compass is running
+			float bearing = trackCompass.isActive() ? trackCompass.getPositiveBearing(true) : Float.NaN;
+			trackLogger.log(location, bearing);
+			trackSummary.add(location.getTime(), location.getLatitude(), location.getLongitude(),
+					location.hasAltitude(), location.getAltitude(), bearing);
+			if(trackSimplifier.add(location.getTime(), location.getLatitude(), location.getLongitude(),
+					location.hasAltitude(), location.getAltitude())) {
+				logSimplified();
+			}
+		}
+	}
+	
+	private void logSimplified() {
+		simplifiedLogger.log(trackSimplifier.getTime(), trackSimplifier.getLatitude(), trackSimplifier.getLongitude(),
+				trackSimplifier.hasAltitude(), trackSimplifier.getAltitude(), false, 0f, Float.NaN);
+	}
+	
+	/**
+	 * Appends every fix to the given track file until stopTrackLog() is called. The fixes needed to stay within
+	 * the tolerance of the track go to the simplified file, which TrackExporter can turn into GPX. That file is
+	 * started afresh, so like getTrackReport() it only holds this session.
+	 * The gps is kept awake while logging, so call startGPS() as well.
+	 */
+	public void startTrackLog(File file, File simplifiedFile, float toleranceMeters, CompassManager compass) throws IOException {
+		stopTrackLog();
+		TrackLogger logger = new TrackLogger(file);
+		TrackLogger simplified;
+		try {
+			// appending would join the last session's end to this one's start with a line never walked
+			if(simplifiedFile.exists() && !simplifiedFile.delete()) {
+				throw new IOException("could not clear " + simplifiedFile);
+			}
+			simplified = new TrackLogger(simplifiedFile);
+		} catch(IOException e) {
+			logger.close();
+			throw e;
+		}
+		synchronized(this) {
+			trackLogger = logger;
+			simplifiedLogger = simplified;
+			trackSimplifier = new TrackSimplifier(toleranceMeters);
+			trackCompass = compass;
+			trackSummary.reset();
+		}
+		// a track needs every fix
+		wakeGPS();
+	}
+	
+	public void stopTrackLog() {
+		stopTrackLog(null);
+	}
+	
+	/**
+	 * Stops logging without waiting for the files to be written out. The callback is run on a background
+	 * thread once the simplified file is complete and ready to export, it is not run if nothing was being logged.
+	 */
+	public void stopTrackLog(Runnable onSaved) {
+		TrackLogger logger;
+		TrackLogger simplified;
+		synchronized(this) {
+			logger = trackLogger;
+			simplified = simplifiedLogger;
+			if(simplified != null && trackSimplifier.finish()) {
+				logSimplified(); // the end of the track
+			}
+			trackLogger = null;
+			simplifiedLogger = null;
+			trackSimplifier = null;
+			trackCompass = null;
+		}
+		if(logger != null) {
+			logger.close();
+			simplified.close(onSaved);
+		}
 	}
 	
-	private synchronized Location getLocationCache() {
-		return locationCache;
+	public synchronized boolean isLoggingTrack() {
+		return trackLogger != null;
+	}
+	
+	/**
+	 * Describes the track logged since startTrackLog() was last called.
+	 */
+	public synchronized String getTrackReport() {
+		return trackSummary.getReport();
 	}
 	
 	public synchronized int getStatus() {
 		return status;
 	}
 	
-	public double getAltitude() {
-		return getLocationCache().getAltitude();
+	public synchronized Location getLocation() {
+		return heldFix;
+	}
+	
+	/**
+	 * Returns the altitude of the held fix in meters, or NaN until a fix with an altitude is held.
+	 */
+	public synchronized double getAltitude() {
+		if(heldFix == null || !heldFix.hasAltitude()) {
+			return Double.NaN;
+		}
+		return heldFix.getAltitude();
+	}
+	
+	public boolean isSleeping() {
+		return gpsSleeping;
+	}
+	
+	/**
+	 * Lets the gps turn off while an adequate fix is held, and come back on as the fix goes stale.
+	 */
+	public void setDutyCycling(boolean enabled) {
+		dutyCycling = enabled;
+		if(!enabled) {
+			wakeGPS();
+		}
+	}
+	
+	/**
+	 * Sets whether fixes without altitude count as a fix. Consumers that only need a position can turn this off.
+	 */
+	public synchronized void setRequiresAltitude(boolean requiresAltitude) {
+		this.requiresAltitude = requiresAltitude;
 	}
 	
 	public void stopGPS() {
 		// stop receiving updates
-		locationManager.removeUpdates(locationListener);
+		handler.removeCallbacks(sleepCheck);
+		locationHub.removeUpdates(locationListener);
+		locationHub.removeUpdates(motionListener);
+		locationHub.removeUpdates(passiveMotionListener);
+		locationHub.removeUpdates(externalListener);
+		gpsRequested = false;
+		gpsSleeping = false;
 		// update the status
 		updateStatus(STATUS_GPS_STOPPED);
 	}
 	
 	public boolean startGPS() {
+		// an external receiver counts as a gps, and works whether or not the device has one
+		locationHub.requestUpdates(LocationHub.INJECTED_PROVIDER, 0, 0f, externalListener);
+		
 		// check if the device has gps
-		if(locationManager.getProvider(LocationManager.GPS_PROVIDER) == null) {
+		if(!locationHub.hasProvider(LocationManager.GPS_PROVIDER)) {
 			// no gps, set the status and then bail
 			updateStatus(STATUS_NO_GPS);
 			return false; // we could not enable gps
 		}
 		// check if the gps is enabled
-		if(!locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
+		if(!locationHub.isProviderEnabled(LocationManager.GPS_PROVIDER)) {
 			// the provider is disabled, update the status and then bail
 			updateStatus(STATUS_GPS_DISABLED);
 			return false; // we could not enable the gps
 		}
 		
-		// add a listener to receive updates from the gps
-		locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, MIN_UPDATE_TIME_MILLIS, MIN_UPDATE_DISTANCE_METERS,
+		// add a listener to receive updates from the gps, any sleep is over
+		cancelSleep();
+		locationHub.requestUpdates(LocationManager.GPS_PROVIDER, MIN_UPDATE_TIME_MILLIS, MIN_UPDATE_DISTANCE_METERS,
 				locationListener);
+		gpsRequested = true;
 		
 		return true; // we didn't have any problems, probably
 	}
 	
 	public GPSManager(Context context) {
 		// initialize variables
-		locationManager = (LocationManager)context.getSystemService(Context.LOCATION_SERVICE);
+		locationHub = LocationHub.getInstance(context);
+		handler = new Handler(Looper.getMainLooper());
+		trackSummary = new TrackSummary();
+		sleepCheck = new Runnable() {
+			public void run() {
+				checkSleep();
+			}
+		};
 		// define a listener that listens for location updates
 		locationListener = new LocationListener() {
 			public void onStatusChanged(String provider, int status, Bundle extras) {
@@ -86,7 +329,7 @@ public class GPSManager {
 			
 			public void onProviderEnabled(String provider) {
 				// only listen to stuff about gps
-				if(provider == LocationManager.GPS_PROVIDER){
+				if(LocationManager.GPS_PROVIDER.equals(provider)){
 					// if the status currently says that the gps is disabled, change it to stopped
 					if(getStatus() == STATUS_GPS_DISABLED) {
 						updateStatus(STATUS_GPS_STOPPED);
@@ -96,7 +339,7 @@ public class GPSManager {
 			
 			public void onProviderDisabled(String provider) {
 				// only listen to stuff about gps
-				if(provider == LocationManager.GPS_PROVIDER){
+				if(LocationManager.GPS_PROVIDER.equals(provider)){
 					// stop the gps, probably unneeded
 					stopGPS();
 					// update the status
@@ -106,16 +349,44 @@ public class GPSManager {
 			
 			public void onLocationChanged(Location location) {
 				// test if the fix is useful
-				if(location.hasAltitude()) {
+				boolean requiresAltitude;
+				synchronized(GPSManager.this) {
+					requiresAltitude = GPSManager.this.requiresAltitude;
+				}
+				if(location.hasAltitude() || !requiresAltitude) {
 					// store the new location
-					updateLocationCache(location);
+					updateHeldFix(location);
 					// update the status, we have a fix
 					updateStatus(STATUS_GPS_FIX);
+					logTrack(location);
+					// a good enough fix lets the gps rest, unless a track is being logged
+					if(dutyCycling && gpsRequested && !gpsSleeping && !isLoggingTrack() && location.hasAccuracy()
+							&& location.getAccuracy() <= ADEQUATE_ACCURACY_METERS) {
+						sleepGPS();
+					}
 				} else {
 					// the gps is still trying to get a fix (or so we will pretend, we need altitude)
 					updateStatus(STATUS_GPS_NO_FIX);
 				}
 			}
 		};
+		// fixes from an external receiver are handled like our own, and let the gps sleep while they keep coming
+		externalListener = new LocationListener() {
+			public void onStatusChanged(String provider, int status, Bundle extras) {
+			}
+			
+			public void onProviderEnabled(String provider) {
+			}
+			
+			public void onProviderDisabled(String provider) {
+			}
+			
+			public void onLocationChanged(Location location) {
+				locationListener.onLocationChanged(location);
+			}
+		};
+		// while the gps sleeps, watch the other providers for big moves
+		motionListener = new MotionListener();
+		passiveMotionListener = new MotionListener();
 	}
 }
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import android.view.Surface;
+
+/**
+ * Works out a tilt compensated heading from gravity and the magnetic field, the same sum as
+ * SensorManager.getRotationMatrix() followed by getOrientation(), but kept to the three rows it needs
+ * and held in fields so nothing is allocated per reading.
+ * The readings are turned to match the screen first, so the heading is always that of the top of the screen.
+ * As the top of the screen tips towards vertical its heading means less and less, so the heading
+ * moves over to the direction the back of the device faces, which is what somebody holding it upright expects.
+ */
+public class HeadingKernel {
+	/** constants **/
+	private static final float FREE_FALL_GRAVITY_SQUARED = 0.01f * 9.81f * 9.81f; // the same limits as getRotationMatrix()
+	private static final float MIN_HORIZONTAL_FIELD = 0.1f; // the field is close to parallel with gravity, near the magnetic poles
+	private static final float VERTICAL_BLEND_START = 0.9f; // sine of the tilt (about 64 degrees) where the back starts to count
+	private static final float VERTICAL_BLEND_END = 0.99f; // about 82 degrees, from here on the back counts in full
+	
+	/** variables **/
+	private int screenRotation = Surface.ROTATION_0;
+	private boolean hasResult;
+	private float azimuth; // radians, like getOrientation()
+	private float upX, upY, upZ; // gravity in screen axes, normalised, kept for the rarely wanted pitch and roll
+	
+	public void setScreenRotation(int rotation) {
+		screenRotation = rotation;
+	}
+	
+	public int getScreenRotation() {
+		return screenRotation;
+	}
+	
+	public boolean hasResult() {
+		return hasResult;
+	}
+	
+	/**
+	 * Returns the heading of the top of the screen in radians, -PI < x <= PI, east of magnetic north.
+	 */
+	public float getAzimuth() {
+		return azimuth;
+	}
+	
+	/**
+	 * Worked out when asked, so the heading does not pay for it.
+	 */
+	public float getPitch() {
+		return (float)Math.asin(-upY);
+	}
+	
+	public float getRoll() {
+		return (float)Math.atan2(-upX, upZ);
+	}
+	
+	/**
+	 * Takes gravity in m/s^2 and the field in micro tesla, in device axes.
+	 * Returns false and keeps the last result if the device is falling or the field gives no direction.
+	 */
+	public boolean update(float gravityX, float gravityY, float gravityZ, float fieldX, float fieldY, float fieldZ) {
+		// turn both readings into screen axes, x to the right and y up the screen
+		float ax, ay, ex, ey;
+		switch(screenRotation) {
+		case Surface.ROTATION_90:
+			// the device has been turned anticlockwise, its right hand side is now the top
+			ax = -gravityY; ay = gravityX;
+			ex = -fieldY; ey = fieldX;
+			break;
+		case Surface.ROTATION_180:
+			ax = -gravityX; ay = -gravityY;
+			ex = -fieldX; ey = -fieldY;
+			break;
+		case Surface.ROTATION_270:
+			ax = gravityY; ay = -gravityX;
+			ex = fieldY; ey = -fieldX;
+			break;
+		default:
+			ax = gravityX; ay = gravityY;
+			ex = fieldX; ey = fieldY;
+			break;
+		}
+		float az = gravityZ;
+		float ez = fieldZ;
+		
+		float gravitySquared = ax * ax + ay * ay + az * az;
+		if(gravitySquared < FREE_FALL_GRAVITY_SQUARED) {
+			return false;
+		}
+		
+		// east is the field crossed with up
+		float hx = ey * az - ez * ay;
+		float hy = ez * ax - ex * az;
+		float hz = ex * ay - ey * ax;
+		float eastLength = (float)Math.sqrt(hx * hx + hy * hy + hz * hz);
+		if(eastLength < MIN_HORIZONTAL_FIELD) {
+			return false;
+		}
+		float inverse = 1f / eastLength;
+		hx *= inverse;
+		hy *= inverse;
+		hz *= inverse;
+		inverse = 1f / (float)Math.sqrt(gravitySquared);
+		ax *= inverse;
+		ay *= inverse;
+		az *= inverse;
+		// north is up crossed with east
+		float my = az * hx - ax * hz;
+		float mz = ax * hy - ay * hx;
+		
+		// (hy, my) is the top of the screen seen from above, shrinking to nothing as it tips up or down,
+		// so blend in the back of the device, or the front if the top is tipping down
+		float east = hy;
+		float north = my;
+		float tilt = Math.abs(ay);
+		if(tilt > VERTICAL_BLEND_START) {
+			float weight = tilt >= VERTICAL_BLEND_END ? 1f : (tilt - VERTICAL_BLEND_START) / (VERTICAL_BLEND_END - VERTICAL_BLEND_START);
+			if(ay > 0) {
+				weight = -weight;
+			}
+			east += hz * weight;
+			north += mz * weight;
+		}
+		
+		azimuth = (float)Math.atan2(east, north);
+		upX = ax;
+		upY = ay;
+		upZ = az;
+		hasResult = true;
+		return true;
+	}
+	
+	public void reset() {
+		hasResult = false;
+	}
+}
@@ -1,24 +1,108 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
 package com.digitallizard.nicecompass;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import android.app.Activity;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.os.Bundle;
-import android.app.ActionBar;
-import android.app.Fragment;
+import android.text.Html;
+import android.text.Spanned;
+import android.util.Log;
 import android.view.MenuItem;
-import android.webkit.WebView;
-
+import android.widget.TextView;
 
-public class HelpActivity extends Fragment  {
-	private static final String HELP_HTML_URI = "file:///android_asset/help.html";
-	private WebView webView;
+/**
+ * Shows the help page as styled text rather than in a WebView, which takes far longer to start and far more memory.
+ * The page is parsed once and kept for the life of the process, so only the first opening does any work.
+ */
+public class HelpActivity extends Activity {
+	/** constants **/
+	private static final String HELP_HTML_ASSET = "help.html";
+	private static final float TEXT_PADDING_DP = 8f; // matches the padding in the layout
+	
+	/** variables **/
+	private static Spanned helpText;
+	private static int helpTextWidth; // the image width the cached text was laid out for
+	
+	private static String readAsset(AssetManager assets, String name) throws IOException {
+		InputStreamReader reader = new InputStreamReader(assets.open(name), "UTF-8");
+		try {
+			StringBuilder text = new StringBuilder();
+			char[] buffer = new char[1024];
+			int count;
+			while((count = reader.read(buffer)) >= 0) {
+				text.append(buffer, 0, count);
+			}
+			return text.toString();
+		} finally {
+			reader.close();
+		}
+	}
+	
+	private static synchronized Spanned getHelpText(final AssetManager assets, final Resources resources, final int imageWidth) {
+		if(helpText != null && helpTextWidth == imageWidth) {
+			return helpText;
+		}
+		String html;
+		try {
+			html = readAsset(assets, HELP_HTML_ASSET);
+		} catch(IOException e) {
+			Log.w("compass", "could not read the help", e);
+			return null;
+		}
+		// Html has no idea about the head, it would show the style sheet as text
+		int body = html.indexOf("<body");
+		if(body >= 0) {
+			html = html.substring(body);
+		}
+		
+		helpText = Html.fromHtml(html, new Html.ImageGetter() {
+			public Drawable getDrawable(String source) {
+				// every image in the page is full width
+				String name = source.startsWith("./") ? source.substring(2) : source;
+				try {
+					InputStream stream = assets.open(name);
+					Bitmap bitmap;
+					try {
+						bitmap = BitmapFactory.decodeStream(stream);
+					} finally {
+						stream.close();
+					}
+					if(bitmap == null) {
+						return null;
+					}
+					Drawable drawable = new BitmapDrawable(resources, bitmap);
+					drawable.setBounds(0, 0, imageWidth, imageWidth * bitmap.getHeight() / bitmap.getWidth());
+					return drawable;
+				} catch(IOException e) {
+					Log.w("compass", "could not load help image " + name, e);
+					return null;
+				}
+			}
+		}, null);
+		helpTextWidth = imageWidth;
+		return helpText;
+	}
 	
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
     	// check if the home button has been selected
 		if(item.getItemId() == android.R.id.home){
-			/**Intent intent = new Intent(this, CompassActivity.class);
-			intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-			startActivity(intent);**/
-			//finish();
+			finish(); // the compass is always underneath
 			return true; // we have received the press so we can report true
 		} else {
 			return super.onOptionsItemSelected(item); // pass the press onto the parent
@@ -28,13 +112,16 @@ public class HelpActivity extends Fragment  {
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		//setContentView(R.layout.help);
+		setContentView(R.layout.help);
 		
 		// display the up arrow on the action bar
-        //ActionBar actionBar = getSupportActionBar();
-        //actionBar.setDisplayHomeAsUpEnabled(true);
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && getActionBar() != null) {
+			getActionBar().setDisplayHomeAsUpEnabled(true);
+		}
 		
-		//webView = (WebView)findViewById(R.id.helpWebView);
-		//webView.loadUrl(HELP_HTML_URI);
+		Resources resources = getResources();
+		int imageWidth = resources.getDisplayMetrics().widthPixels - 2 * (int)(TEXT_PADDING_DP * resources.getDisplayMetrics().density);
+		TextView textView = (TextView)findViewById(R.id.helpText);
+		textView.setText(getHelpText(getAssets(), resources, imageWidth));
 	}
 }
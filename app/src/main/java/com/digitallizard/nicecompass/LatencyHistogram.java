@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * Counts durations into fixed width buckets so percentiles can be read at any time without keeping the samples.
+ * Memory is fixed when the histogram is created, and recording is a single array increment.
+ */
+public class LatencyHistogram {
+	/** variables **/
+	private final long bucketWidthNanos;
+	private final int[] buckets; // the last bucket holds everything too long for the others
+	private long count;
+	private long totalNanos;
+	private long maxNanos;
+	
+	public void record(long durationNanos) {
+		if(durationNanos < 0) {
+			durationNanos = 0;
+		}
+		long bucket = durationNanos / bucketWidthNanos;
+		if(bucket >= buckets.length) {
+			bucket = buckets.length - 1;
+		}
+		buckets[(int)bucket] ++;
+		count ++;
+		totalNanos += durationNanos;
+		if(durationNanos > maxNanos) {
+			maxNanos = durationNanos;
+		}
+	}
+	
+	public long getCount() {
+		return count;
+	}
+	
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+	
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+	
+	public long getMeanNanos() {
+		return count == 0 ? 0 : totalNanos / count;
+	}
+	
+	/**
+	 * Returns the upper edge of the bucket holding the given percentile, 0 < x <= 100, or 0 if nothing was recorded.
+	 */
+	public long getPercentileNanos(float percentile) {
+		if(count == 0) {
+			return 0;
+		}
+		long target = (long)Math.ceil(count * percentile / 100d);
+		long seen = 0;
+		for(int i = 0; i < buckets.length - 1; i++) {
+			seen += buckets[i];
+			if(seen >= target) {
+				return (i + 1) * bucketWidthNanos;
+			}
+		}
+		return maxNanos; // the overflow bucket, the best we know is the max
+	}
+	
+	/**
+	 * Counts the samples longer than the given duration, to the nearest bucket.
+	 */
+	public long countAbove(long durationNanos) {
+		int first = (int)Math.min(buckets.length - 1, durationNanos / bucketWidthNanos);
+		long total = 0;
+		for(int i = first; i < buckets.length; i++) {
+			total += buckets[i];
+		}
+		return total;
+	}
+	
+	public void reset() {
+		for(int i = 0; i < buckets.length; i++) {
+			buckets[i] = 0;
+		}
+		count = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+	}
+	
+	public LatencyHistogram(long bucketWidthNanos, int bucketCount) {
+		this.bucketWidthNanos = bucketWidthNanos;
+		buckets = new int[bucketCount + 1];
+	}
+}
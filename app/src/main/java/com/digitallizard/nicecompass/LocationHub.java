@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * The one place the app talks to LocationManager.
+ * Each provider is subscribed to once, at the fastest rate any consumer asked for, and its fixes are
+ * shared out. Fixes from every provider, including the passive one, are merged into a single best location.
+ */
+public class LocationHub {
+	/** constants **/
+	public static final String INJECTED_PROVIDER = "injected"; // fixes from replays and external receivers
+	private static final long SIGNIFICANTLY_NEWER_MILLIS = 2 * 60 * 1000; // a fix this much newer wins regardless of accuracy
+	private static final float SIGNIFICANTLY_LESS_ACCURATE_METERS = 200f;
+	private static final long PASSIVE_MIN_TIME_MILLIS = 0;
+	private static final float PASSIVE_MIN_DISTANCE_METERS = 0f;
+	
+	/** variables **/
+	private static LocationHub instance;
+	
+	private final LocationManager locationManager;
+	private final Handler handler; // injected fixes are delivered through this, like LocationManager's
+	private final ArrayList<Subscription> subscriptions;
+	private final ArrayList<Consumer> consumers;
+	private Location bestLocation;
+	
+	/**
+	 * One consumer's request, either for raw fixes from a provider or for the merged best location.
+	 */
+	private static class Consumer {
+		final String provider;
+		final long minTime;
+		final float minDistance;
+		final LocationListener listener;
+		final boolean wantsBest;
+		
+		Consumer(String provider, long minTime, float minDistance, LocationListener listener, boolean wantsBest) {
+			this.provider = provider;
+			this.minTime = minTime;
+			this.minDistance = minDistance;
+			this.listener = listener;
+			this.wantsBest = wantsBest;
+		}
+	}
+	
+	/**
+	 * The single LocationManager registration for a provider.
+	 */
+	private class Subscription implements LocationListener {
+		final String provider;
+		long minTime;
+		float minDistance;
+		boolean active;
+		Location lastLocation;
+		
+		public void onLocationChanged(Location location) {
+			handleLocation(provider, location);
+		}
+		
+		public void onStatusChanged(String provider, int status, Bundle extras) {
+			for(Consumer consumer : getConsumers(provider)) {
+				consumer.listener.onStatusChanged(provider, status, extras);
+			}
+		}
+		
+		public void onProviderEnabled(String provider) {
+			for(Consumer consumer : getConsumers(provider)) {
+				consumer.listener.onProviderEnabled(provider);
+			}
+		}
+		
+		public void onProviderDisabled(String provider) {
+			for(Consumer consumer : getConsumers(provider)) {
+				consumer.listener.onProviderDisabled(provider);
+			}
+		}
+		
+		Subscription(String provider) {
+			this.provider = provider;
+		}
+	}
+	
+	public static synchronized LocationHub getInstance(Context context) {
+		if(instance == null) {
+			instance = new LocationHub(context.getApplicationContext());
+		}
+		return instance;
+	}
+	
+	/**
+	 * Decides if a new fix is an improvement on the current best one, by age then accuracy.
+	 */
+	static boolean isBetterLocation(Location location, Location currentBest) {
+		if(currentBest == null) {
+			return true;
+		}
+		
+		long timeDelta = location.getTime() - currentBest.getTime();
+		if(timeDelta > SIGNIFICANTLY_NEWER_MILLIS) {
+			return true; // the user has probably moved
+		}
+		if(timeDelta < -SIGNIFICANTLY_NEWER_MILLIS) {
+			return false;
+		}
+		
+		// a fix without accuracy is treated as very inaccurate
+		float accuracy = location.hasAccuracy() ? location.getAccuracy() : Float.MAX_VALUE;
+		float currentAccuracy = currentBest.hasAccuracy() ? currentBest.getAccuracy() : Float.MAX_VALUE;
+		float accuracyDelta = accuracy - currentAccuracy;
+		boolean isNewer = timeDelta > 0;
+		if(accuracyDelta < 0) {
+			return true;
+		}
+		if(isNewer && accuracyDelta == 0) {
+			return true;
+		}
+		boolean sameProvider = location.getProvider() != null && location.getProvider().equals(currentBest.getProvider());
+		return isNewer && sameProvider && accuracyDelta <= SIGNIFICANTLY_LESS_ACCURATE_METERS;
+	}
+	
+	private synchronized Consumer[] getConsumers(String provider) {
+		// take a copy, a consumer may unregister while being called
+		ArrayList<Consumer> matches = new ArrayList<Consumer>();
+		for(Consumer consumer : consumers) {
+			if(!consumer.wantsBest && provider.equals(consumer.provider)) {
+				matches.add(consumer);
+			}
+		}
+		return matches.toArray(new Consumer[matches.size()]);
+	}
+	
+	private synchronized Consumer[] getBestConsumers() {
+		ArrayList<Consumer> matches = new ArrayList<Consumer>();
+		for(Consumer consumer : consumers) {
+			if(consumer.wantsBest) {
+				matches.add(consumer);
+			}
+		}
+		return matches.toArray(new Consumer[matches.size()]);
+	}
+	
+	private synchronized Subscription getSubscription(String provider) {
+		for(Subscription subscription : subscriptions) {
+			if(subscription.provider.equals(provider)) {
+				return subscription;
+			}
+		}
+		Subscription subscription = new Subscription(provider);
+		subscriptions.add(subscription);
+		return subscription;
+	}
+	
+	private synchronized boolean updateBestLocation(Location location) {
+		if(isBetterLocation(location, bestLocation)) {
+			bestLocation = location;
+			return true;
+		}
+		return false;
+	}
+	
+	private void handleLocation(String provider, Location location) {
+		if(LocationManager.PASSIVE_PROVIDER.equals(provider)) {
+			// skip fixes we already get directly, so nobody is told twice
+			Subscription direct = findActiveSubscription(location.getProvider());
+			if(direct != null) {
+				return;
+			}
+			for(Consumer consumer : getConsumers(provider)) {
+				consumer.listener.onLocationChanged(location);
+			}
+		} else {
+			synchronized(this) {
+				getSubscription(provider).lastLocation = location;
+			}
+			for(Consumer consumer : getConsumers(provider)) {
+				consumer.listener.onLocationChanged(location);
+			}
+		}
+		
+		if(updateBestLocation(location)) {
+			for(Consumer consumer : getBestConsumers()) {
+				consumer.listener.onLocationChanged(location);
+			}
+		}
+	}
+	
+	private synchronized Subscription findActiveSubscription(String provider) {
+		for(Subscription subscription : subscriptions) {
+			if(subscription.active && subscription.provider.equals(provider)) {
+				return subscription;
+			}
+		}
+		return null;
+	}
+	
+	private synchronized void updateSubscription(String provider) {
+		if(provider == null || INJECTED_PROVIDER.equals(provider) || LocationManager.PASSIVE_PROVIDER.equals(provider)) {
+			return; // nothing needs to be started for these, the passive provider runs whenever anybody is listening
+		}
+		Subscription subscription = getSubscription(provider);
+		
+		// work out the fastest rate anybody wants
+		boolean wanted = false;
+		long minTime = Long.MAX_VALUE;
+		float minDistance = Float.MAX_VALUE;
+		for(Consumer consumer : consumers) {
+			if(provider.equals(consumer.provider)) {
+				wanted = true;
+				minTime = Math.min(minTime, consumer.minTime);
+				minDistance = Math.min(minDistance, consumer.minDistance);
+			}
+		}
+		
+		if(!wanted) {
+			if(subscription.active) {
+				locationManager.removeUpdates(subscription);
+				subscription.active = false;
+			}
+			return;
+		}
+		if(subscription.active && subscription.minTime == minTime && subscription.minDistance == minDistance) {
+			return; // nothing has changed, don't wake the radio again
+		}
+		if(subscription.active) {
+			locationManager.removeUpdates(subscription);
+			subscription.active = false;
+		}
+		// deliver on the main thread, whichever thread asked, since a thread without a looper cannot take updates
+		locationManager.requestLocationUpdates(provider, minTime, minDistance, subscription, Looper.getMainLooper());
+		subscription.minTime = minTime;
+		subscription.minDistance = minDistance;
+		subscription.active = true;
+	}
+	
+	private synchronized void updatePassiveSubscription() {
+		// the passive provider is free, listen to it whenever anybody wants locations
+		if(Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+			return; // there is no passive provider before froyo
+		}
+		Subscription subscription = getSubscription(LocationManager.PASSIVE_PROVIDER);
+		if(!consumers.isEmpty() && !subscription.active) {
+			try {
+				locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER, PASSIVE_MIN_TIME_MILLIS,
+						PASSIVE_MIN_DISTANCE_METERS, subscription, Looper.getMainLooper());
+				subscription.active = true;
+			} catch(IllegalArgumentException e) {
+				// the device does not have a passive provider, carry on without it
+			} catch(SecurityException e) {
+				// the passive provider needs the fine location permission on some versions
+			}
+		} else if(consumers.isEmpty() && subscription.active) {
+			locationManager.removeUpdates(subscription);
+			subscription.active = false;
+		}
+	}
+	
+	private synchronized void addConsumer(Consumer consumer) {
+		// a listener can only have one request at a time, like LocationManager
+		removeConsumer(consumer.listener);
+		consumers.add(consumer);
+		try {
+			updateSubscription(consumer.provider);
+		} catch(IllegalArgumentException e) {
+			// the provider does not exist, undo the request and let the caller know
+			consumers.remove(consumer);
+			throw e;
+		}
+		updatePassiveSubscription();
+	}
+	
+	private synchronized void removeConsumer(LocationListener listener) {
+		for(int i = 0; i < consumers.size(); i++) {
+			Consumer consumer = consumers.get(i);
+			if(consumer.listener == listener) {
+				consumers.remove(i);
+				updateSubscription(consumer.provider);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Sends the listener every fix from the provider, which runs at least as often as asked.
+	 * The passive provider only sends fixes from providers nobody here has started, and ignores the rate.
+	 * Throws IllegalArgumentException if the provider does not exist.
+	 */
+	public void requestUpdates(String provider, long minTime, float minDistance, LocationListener listener) {
+		addConsumer(new Consumer(provider, minTime, minDistance, listener, false));
+	}
+	
+	/**
+	 * Keeps the provider running as requested, but only sends the listener fixes that
+	 * improve on the best location from any provider.
+	 * Throws IllegalArgumentException if the provider does not exist.
+	 */
+	public void requestBestUpdates(String provider, long minTime, float minDistance, LocationListener listener) {
+		addConsumer(new Consumer(provider, minTime, minDistance, listener, true));
+	}
+	
+	/**
+	 * Sends the listener each improvement to the best location, without starting any provider itself.
+	 */
+	public void requestBestUpdates(LocationListener listener) {
+		addConsumer(new Consumer(null, 0, 0f, listener, true));
+	}
+	
+	public synchronized void removeUpdates(LocationListener listener) {
+		removeConsumer(listener);
+		updatePassiveSubscription();
+	}
+	
+	/**
+	 * Feeds a fix from somewhere other than LocationManager, e.g. a replayed trace, to everyone.
+	 * Can be called from any thread, the fix reaches consumers on the main thread.
+	 */
+	public void injectLocation(final Location location) {
+		handler.post(new Runnable() {
+			public void run() {
+				deliverInjectedLocation(location);
+			}
+		});
+	}
+	
+	private void deliverInjectedLocation(Location location) {
+		synchronized(this) {
+			getSubscription(INJECTED_PROVIDER).lastLocation = location;
+		}
+		for(Consumer consumer : getConsumers(INJECTED_PROVIDER)) {
+			consumer.listener.onLocationChanged(location);
+		}
+		if(updateBestLocation(location)) {
+			for(Consumer consumer : getBestConsumers()) {
+				consumer.listener.onLocationChanged(location);
+			}
+		}
+	}
+	
+	public synchronized Location getBestLocation() {
+		return bestLocation;
+	}
+	
+	public synchronized Location getLastLocation(String provider) {
+		return getSubscription(provider).lastLocation;
+	}
+	
+	public boolean hasProvider(String provider) {
+		return locationManager.getProvider(provider) != null;
+	}
+	
+	public boolean isProviderEnabled(String provider) {
+		return locationManager.isProviderEnabled(provider);
+	}
+	
+	private LocationHub(Context context) {
+		locationManager = (LocationManager)context.getSystemService(Context.LOCATION_SERVICE);
+		handler = new Handler(Looper.getMainLooper());
+		subscriptions = new ArrayList<Subscription>();
+		consumers = new ArrayList<Consumer>();
+	}
+}
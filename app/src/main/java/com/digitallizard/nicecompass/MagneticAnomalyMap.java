@@ -0,0 +1,577 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Remembers where the magnetic field strength has differed from the expected field, so the compass
+ * can warn when it is somewhere known to be bad. The world is cut into cells of a fixed size in degrees,
+ * and each cell keeps a count, mean and max of the relative deviation seen in it.
+ * 
+ * Recent cells are kept in a fixed size open addressing table. When the table fills up, or save() is called
+ * with enough cells in it, it is swapped for an empty one and merged into a file of fixed size records sorted
+ * by cell, so the file can be any size and still be searched without reading it in. Records are the cell key
+ * as a long, then the count as an int, and the mean and max deviation as floats, after a header of the magic
+ * and version. A merge rewrites the whole file, so a save() with only a few cells just writes the table to a
+ * small journal beside the file instead. The journal is read back into the table when the map is opened,
+ * and deleted once the cells in it have been merged.
+ * 
+ * All the file work, the merges and the searches, is done by one background thread, so adding samples and
+ * checking for anomalies never wait on the disk. While a merge is running new cells go into the other table,
+ * and if that fills as well new cells are dropped until the merge is done.
+ */
+public class MagneticAnomalyMap implements Runnable {
+	/** constants **/
+	public static final float MAX_LOCATION_ACCURACY_METERS = 30f; // only place samples with fixes at least this good
+	private static final int MAGIC = 0x4e43414d; // "NCAM"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 5;
+	private static final int RECORD_SIZE = 20;
+	private static final double CELL_SIZE_DEGREES = 0.0005d; // about 55m north to south
+	private static final int TABLE_SIZE = 4096; // a power of two
+	private static final int TABLE_LIMIT = TABLE_SIZE * 3 / 4; // merge to disk before probing gets slow
+	private static final int SAVE_MERGE_CELLS = TABLE_SIZE / 4; // fewer cells than this are saved to the journal instead
+	private static final float ANOMALY_DEVIATION = 0.15f; // a mean deviation of 15% or more is an anomaly
+	private static final int ANOMALY_MIN_SAMPLES = 50; // about a second of samples before a cell is trusted
+	private static final long EMPTY = -1l;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	
+	/**
+	 * One table of cells in memory.
+	 */
+	private static class Table {
+		final long[] keys = new long[TABLE_SIZE];
+		final int[] counts = new int[TABLE_SIZE];
+		final float[] means = new float[TABLE_SIZE];
+		final float[] maxes = new float[TABLE_SIZE];
+		int used;
+		
+		int findSlot(long key) {
+			// the slot holding the key, or the empty slot where it would go
+			int slot = hash(key);
+			while(keys[slot] != EMPTY && keys[slot] != key) {
+				slot = (slot + 1) & (TABLE_SIZE - 1);
+			}
+			return slot;
+		}
+		
+		void clear() {
+			Arrays.fill(keys, EMPTY);
+			used = 0;
+		}
+		
+		Table() {
+			clear();
+		}
+	}
+	
+	/** variables **/
+	private final File file;
+	private final File journalFile;
+	private final Thread writerThread;
+	private Table table; // new samples go here
+	private Table merging; // being merged into the file by the writer, or null
+	private Table journaling; // a copy of the table being written to the journal by the writer, or null
+	private Table spare; // the table to swap in next
+	private boolean saveRequested;
+	private long lastKey = EMPTY; // the cell of the last sample, almost always the same as the next
+	private int lastSlot;
+	private long droppedCount;
+	private long positionKey = EMPTY; // the cell of the last anomaly check
+	private long checkedKey = EMPTY; // the cell that stored holds, once the writer has looked it up
+	private final float[] stored; // what the file holds for that cell, count and mean
+	private final float[] probe; // work space for the file search, only used by the writer
+	
+	static long cellKey(double latitude, double longitude) {
+		long row = (long)Math.floor((latitude + 90d) / CELL_SIZE_DEGREES);
+		long column = (long)Math.floor((longitude + 180d) / CELL_SIZE_DEGREES);
+		return (row << 32) | column;
+	}
+	
+	private static int hash(long key) {
+		// mix the row and column so neighbouring cells spread out
+		long mixed = key * 0x9e3779b97f4a7c15l;
+		return (int)(mixed >>> 40) & (TABLE_SIZE - 1);
+	}
+	
+	private boolean startMerge() {
+		// hand the table to the writer and carry on with the spare, if the writer is free
+		if(spare == null || table.used == 0) {
+			return false;
+		}
+		merging = table;
+		table = spare;
+		spare = null;
+		lastKey = EMPTY;
+		notify();
+		return true;
+	}
+	
+	/**
+	 * Adds the relative deviation of one reading, (measured - expected) / expected, taken at the given position.
+	 */
+	public synchronized void addSample(double latitude, double longitude, float deviation) {
+		long key = cellKey(latitude, longitude);
+		int slot;
+		if(key == lastKey) {
+			slot = lastSlot;
+		} else {
+			slot = table.findSlot(key);
+			if(table.keys[slot] == EMPTY) {
+				if(table.used >= TABLE_LIMIT) {
+					// make room by moving everything to disk
+					if(!startMerge()) {
+						droppedCount ++; // the last merge is still going, do not wait for it
+						return;
+					}
+					slot = table.findSlot(key);
+				}
+				table.keys[slot] = key;
+				table.counts[slot] = 0;
+				table.means[slot] = 0f;
+				table.maxes[slot] = 0f;
+				table.used ++;
+			}
+			lastKey = key;
+			lastSlot = slot;
+		}
+		float size = Math.abs(deviation);
+		table.counts[slot] ++;
+		table.means[slot] += (size - table.means[slot]) / table.counts[slot];
+		if(size > table.maxes[slot]) {
+			table.maxes[slot] = size;
+		}
+	}
+	
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+	
+	private boolean readRecord(RandomAccessFile input, long record, long key, float[] result) throws IOException {
+		input.seek(HEADER_SIZE + record * RECORD_SIZE);
+		long recordKey = input.readLong();
+		if(recordKey != key) {
+			result[0] = recordKey < key ? -1 : 1;
+			return false;
+		}
+		result[0] = input.readInt();
+		result[1] = input.readFloat();
+		return true;
+	}
+	
+	private void findOnDisk(long key, float[] result) throws IOException {
+		// binary search the sorted records, result is the count and mean or zeros if the cell is not there
+		result[0] = 0f;
+		result[1] = 0f;
+		if(!file.exists()) {
+			return;
+		}
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			long low = 0;
+			long high = (input.length() - HEADER_SIZE) / RECORD_SIZE - 1;
+			while(low <= high) {
+				long middle = (low + high) >>> 1;
+				if(readRecord(input, middle, key, probe)) {
+					result[0] = probe[0];
+					result[1] = probe[1];
+					return;
+				}
+				if(probe[0] < 0) {
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+		} finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Sets the position that isKnownAnomaly() answers for. If it is in a different cell from last time
+	 * the writer looks the cell up in the file, and until it has the answer only the cells in memory count.
+	 */
+	public synchronized void setPosition(double latitude, double longitude) {
+		long key = cellKey(latitude, longitude);
+		if(key != positionKey) {
+			positionKey = key;
+			notify();
+		}
+	}
+	
+	/**
+	 * Returns true if the cell holding the last position given to setPosition() has been seen to be
+	 * well away from the expected field.
+	 */
+	public synchronized boolean isKnownAnomaly() {
+		long key = positionKey;
+		if(key == EMPTY) {
+			return false;
+		}
+		long count = 0;
+		double total = 0d;
+		if(checkedKey == key) {
+			count += (long)stored[0];
+			total += stored[0] * stored[1];
+		}
+		// combine with anything newer in memory
+		int slot = table.findSlot(key);
+		if(table.keys[slot] == key) {
+			count += table.counts[slot];
+			total += (double)table.counts[slot] * table.means[slot];
+		}
+		if(merging != null) {
+			slot = merging.findSlot(key);
+			if(merging.keys[slot] == key) {
+				count += merging.counts[slot];
+				total += (double)merging.counts[slot] * merging.means[slot];
+			}
+		}
+		return count >= ANOMALY_MIN_SAMPLES && total / count >= ANOMALY_DEVIATION;
+	}
+	
+	private boolean startJournal() {
+		// hand the writer a copy, the table itself carries on taking samples
+		if(spare == null || table.used == 0) {
+			return false;
+		}
+		copyTable(table, spare);
+		journaling = spare;
+		spare = null;
+		notify();
+		return true;
+	}
+	
+	/**
+	 * Saves the cells in memory on the writer thread, merging them into the file and emptying the table
+	 * if there are enough of them, otherwise writing them to the journal.
+	 * Returns at once, a save already under way is followed by another.
+	 */
+	public synchronized void save() {
+		boolean started = table.used >= SAVE_MERGE_CELLS ? startMerge() : startJournal();
+		if(!started && spare == null) {
+			saveRequested = true;
+		}
+	}
+	
+	private void setAside(File bad) {
+		// keep a damaged file for a look later, but out of the way of a fresh one
+		File aside = new File(bad.getPath() + ".bad");
+		aside.delete();
+		if(!bad.renameTo(aside)) {
+			bad.delete();
+		}
+		Log.w("compass", "set aside a damaged anomaly map " + bad);
+	}
+	
+	private void writeJournal(Table cells) throws IOException {
+		// unsorted, the journal is only ever read back whole
+		File temp = new File(journalFile.getPath() + ".tmp");
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE));
+			try {
+				output.writeInt(MAGIC);
+				output.writeByte(VERSION);
+				for(int i = 0; i < TABLE_SIZE; i++) {
+					if(cells.keys[i] != EMPTY) {
+						output.writeLong(cells.keys[i]);
+						output.writeInt(cells.counts[i]);
+						output.writeFloat(cells.means[i]);
+						output.writeFloat(cells.maxes[i]);
+					}
+				}
+			} finally {
+				output.close();
+			}
+			if(!temp.renameTo(journalFile)) {
+				throw new IOException("could not replace " + journalFile);
+			}
+		} catch(IOException e) {
+			temp.delete();
+			throw e;
+		}
+	}
+	
+	private static void copyTable(Table from, Table to) {
+		System.arraycopy(from.keys, 0, to.keys, 0, TABLE_SIZE);
+		System.arraycopy(from.counts, 0, to.counts, 0, TABLE_SIZE);
+		System.arraycopy(from.means, 0, to.means, 0, TABLE_SIZE);
+		System.arraycopy(from.maxes, 0, to.maxes, 0, TABLE_SIZE);
+		to.used = from.used;
+	}
+	
+	private void readJournal() throws IOException {
+		// put the cells saved last time back into the table, alongside any samples added since
+		if(!journalFile.exists()) {
+			return;
+		}
+		Table saved = new Table();
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile), BUFFER_SIZE));
+		try {
+			if(input.readInt() != MAGIC || input.readUnsignedByte() != VERSION) {
+				throw new EOFException();
+			}
+			while(saved.used < TABLE_LIMIT) {
+				long key = input.readLong();
+				int slot = saved.findSlot(key);
+				saved.keys[slot] = key;
+				saved.counts[slot] = input.readInt();
+				saved.means[slot] = input.readFloat();
+				saved.maxes[slot] = input.readFloat();
+				saved.used ++;
+			}
+		} catch(EOFException e) {
+			// the end of the journal, or a journal too short to have a header
+			if(saved.used == 0) {
+				input.close();
+				setAside(journalFile);
+				return;
+			}
+		} finally {
+			input.close();
+		}
+		
+		synchronized(this) {
+			for(int i = 0; i < TABLE_SIZE; i++) {
+				long key = saved.keys[i];
+				if(key == EMPTY) {
+					continue;
+				}
+				int slot = table.findSlot(key);
+				if(table.keys[slot] == EMPTY) {
+					if(table.used >= TABLE_LIMIT) {
+						droppedCount ++;
+						continue;
+					}
+					table.keys[slot] = key;
+					table.counts[slot] = 0;
+					table.means[slot] = 0f;
+					table.maxes[slot] = 0f;
+					table.used ++;
+				}
+				long total = (long)table.counts[slot] + saved.counts[i];
+				table.means[slot] = (float)(((double)table.counts[slot] * table.means[slot]
+						+ (double)saved.counts[i] * saved.means[i]) / total);
+				table.counts[slot] = (int)Math.min(Integer.MAX_VALUE, total);
+				table.maxes[slot] = Math.max(table.maxes[slot], saved.maxes[i]);
+			}
+			if(journaling != null) {
+				copyTable(table, journaling); // saved before the journal was read, it would leave these cells out
+			}
+		}
+	}
+	
+	private void merge(Table cells) throws IOException {
+		// the new cells in key order, the table is left alone by everybody else while it is merged
+		long[] sorted = new long[cells.used];
+		int next = 0;
+		for(int i = 0; i < TABLE_SIZE; i++) {
+			if(cells.keys[i] != EMPTY) {
+				sorted[next++] = cells.keys[i];
+			}
+		}
+		Arrays.sort(sorted);
+		
+		// merge with the existing file into a new one, then swap it in
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			mergeInto(temp, cells, sorted);
+			if(!temp.renameTo(file)) {
+				throw new IOException("could not replace " + file);
+			}
+		} catch(IOException e) {
+			temp.delete();
+			throw e;
+		}
+		// everything in the journal was in the table just merged
+		journalFile.delete();
+	}
+	
+	private DataInputStream openMap() throws IOException {
+		// the existing file past its header, or null if there is none or it is not a map
+		if(!file.exists()) {
+			return null;
+		}
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		boolean valid = false;
+		try {
+			valid = input.readInt() == MAGIC && input.readUnsignedByte() == VERSION;
+		} catch(EOFException e) {
+			// too short to have a header
+		}
+		if(!valid) {
+			// start afresh rather than failing every merge from now on
+			input.close();
+			setAside(file);
+			return null;
+		}
+		return input;
+	}
+	
+	private void mergeInto(File temp, Table cells, long[] sorted) throws IOException {
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE));
+		DataInputStream input = null;
+		try {
+			output.writeInt(MAGIC);
+			output.writeByte(VERSION);
+			input = openMap();
+			boolean hasStored = false;
+			long storedKey = 0;
+			int storedCount = 0;
+			float storedMean = 0f, storedMax = 0f;
+			int newIndex = 0;
+			while(true) {
+				if(!hasStored && input != null) {
+					try {
+						storedKey = input.readLong();
+						storedCount = input.readInt();
+						storedMean = input.readFloat();
+						storedMax = input.readFloat();
+						hasStored = true;
+					} catch(EOFException e) {
+						input.close();
+						input = null;
+					}
+				}
+				boolean hasNew = newIndex < sorted.length;
+				if(!hasStored && !hasNew) {
+					break;
+				}
+				if(hasNew && (!hasStored || sorted[newIndex] <= storedKey)) {
+					int slot = cells.findSlot(sorted[newIndex]);
+					long count = cells.counts[slot];
+					double total = (double)cells.counts[slot] * cells.means[slot];
+					float max = cells.maxes[slot];
+					if(hasStored && storedKey == sorted[newIndex]) {
+						count += storedCount;
+						total += (double)storedCount * storedMean;
+						max = Math.max(max, storedMax);
+						hasStored = false;
+					}
+					output.writeLong(sorted[newIndex]);
+					output.writeInt((int)Math.min(Integer.MAX_VALUE, count));
+					output.writeFloat((float)(total / count));
+					output.writeFloat(max);
+					newIndex ++;
+				} else {
+					output.writeLong(storedKey);
+					output.writeInt(storedCount);
+					output.writeFloat(storedMean);
+					output.writeFloat(storedMax);
+					hasStored = false;
+				}
+			}
+		} finally {
+			if(input != null) {
+				input.close();
+			}
+			output.close();
+		}
+	}
+	
+	private synchronized void finishJob(Table cells) {
+		// the writer is free again, start any save that was waiting for it
+		cells.clear();
+		spare = cells;
+		if(saveRequested) {
+			saveRequested = false;
+			save();
+		}
+	}
+	
+	public void run() {
+		try {
+			readJournal();
+		} catch(IOException e) {
+			Log.w("compass", "could not read the anomaly map journal", e);
+		}
+		float[] found = new float[2];
+		while(true) {
+			Table cells;
+			Table journal;
+			long key;
+			synchronized(this) {
+				while(merging == null && journaling == null && positionKey == checkedKey) {
+					try {
+						wait();
+					} catch(InterruptedException e) {
+					}
+				}
+				cells = merging;
+				journal = journaling;
+				key = positionKey;
+			}
+			
+			if(journal != null) {
+				try {
+					writeJournal(journal);
+				} catch(IOException e) {
+					// the cells are still in the table, the next save tries again
+					Log.w("compass", "could not save the anomaly map journal", e);
+				}
+				synchronized(this) {
+					journaling = null;
+					finishJob(journal);
+				}
+			} else if(cells != null) {
+				try {
+					merge(cells);
+				} catch(IOException e) {
+					// the cells in this table are lost, carry on with the next
+					Log.w("compass", "could not save the anomaly map", e);
+				}
+				synchronized(this) {
+					merging = null;
+					checkedKey = EMPTY; // the file has changed, look the position up again
+					finishJob(cells);
+				}
+			} else {
+				try {
+					findOnDisk(key, found);
+				} catch(IOException e) {
+					Log.w("compass", "could not read the anomaly map", e);
+					found[0] = 0f;
+					found[1] = 0f;
+				}
+				synchronized(this) {
+					stored[0] = found[0];
+					stored[1] = found[1];
+					checkedKey = key; // if the position has moved on since, the wait above sees it
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Starts the writer thread, which runs for as long as the app does.
+	 */
+	public MagneticAnomalyMap(File file) {
+		this.file = file;
+		journalFile = new File(file.getPath() + ".journal");
+		table = new Table();
+		spare = new Table();
+		stored = new float[2];
+		probe = new float[2];
+		writerThread = new Thread(this, "anomaly map writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+}
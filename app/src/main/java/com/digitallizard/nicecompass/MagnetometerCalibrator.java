@@ -0,0 +1,370 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * Works out hard iron offsets and soft iron scaling for the magnetometer while the compass is used.
+ * Samples are fitted to an axis aligned ellipsoid, a x^2 + b y^2 + c z^2 + d x + e y + f z = 1,
+ * by least squares. Only the normal equations are kept, with old samples slowly forgotten,
+ * so memory is fixed and each sample costs the same no matter how long the compass runs.
+ * Samples come in on the sensor thread while the calibration is saved from the main thread, so everything is
+ * done under the calibrator's lock and each calibration is published whole as an immutable Calibration.
+ */
+public class MagnetometerCalibrator {
+	/** constants **/
+	private static final int TERMS = 6;
+	private static final double SAMPLE_SCALE = 1d / 50d; // brings samples in micro tesla close to 1 for better conditioning
+	private static final double FORGETTING_FACTOR = 0.9995d; // remembers roughly the last 2000 samples
+	private static final int SAMPLES_PER_SOLVE = 100;
+	private static final int COVERAGE_BLOCK_SAMPLES = 1000; // coverage is kept for the last one to two blocks, about what the fit remembers
+	private static final float MIN_AXIS_SPAN = 30f; // micro tesla each axis must have swept through before a fit is trusted
+	private static final float MIN_FIELD_RADIUS = 15f; // the weakest field found on earth is about 22 micro tesla
+	private static final float MAX_FIELD_RADIUS = 100f; // the strongest is about 67 micro tesla
+	private static final float MAX_RADIUS_RATIO = 1.5f; // anything more lopsided is interference, not soft iron
+	private static final double MIN_PIVOT = 1e-9d;
+	
+	/**
+	 * One set of offsets and scales, never changed once made.
+	 */
+	public static class Calibration {
+		public final float offsetX, offsetY, offsetZ;
+		public final float scaleX, scaleY, scaleZ;
+		
+		public Calibration(float offsetX, float offsetY, float offsetZ, float scaleX, float scaleY, float scaleZ) {
+			this.offsetX = offsetX;
+			this.offsetY = offsetY;
+			this.offsetZ = offsetZ;
+			this.scaleX = scaleX;
+			this.scaleY = scaleY;
+			this.scaleZ = scaleZ;
+		}
+	}
+	
+	/** variables **/
+	private final double[][] normalMatrix;
+	private final double[] normalVector;
+	private final double[][] solveMatrix; // work space, kept to avoid allocating on each solve
+	private final double[] terms;
+	private final double[] solution;
+	private final float[] axisMin; // the range covered in the current block of samples
+	private final float[] axisMax;
+	private final float[] previousAxisMin; // and in the block before it
+	private final float[] previousAxisMax;
+	private int blockSamples;
+	private int samplesSinceSolve;
+	
+	private boolean calibrated;
+	private boolean verified; // a saved calibration is only applied once the readings agree with it
+	private boolean rechecking; // a verified calibration is being tested again, it stays applied meanwhile
+	private boolean hasNewCalibration; // set when the calibration has changed since it was last saved
+	private int verifyCount;
+	private double rawTotal, rawSquaredTotal; // field strengths seen while verifying, without and with the calibration
+	private double correctedTotal, correctedSquaredTotal;
+	private Calibration calibration; // replaced whole, never changed in place
+	
+	private boolean hasEnoughCoverage() {
+		// the fit is meaningless unless the device has been turned through a good range on every axis,
+		// recently enough that the samples are still in the normal equations
+		for(int i = 0; i < 3; i++) {
+			if(Math.max(axisMax[i], previousAxisMax[i]) - Math.min(axisMin[i], previousAxisMin[i]) < MIN_AXIS_SPAN) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private boolean solveNormalEquations() {
+		// copy the symmetric matrix and vector into the work space
+		for(int row = 0; row < TERMS; row++) {
+			for(int col = 0; col < TERMS; col++) {
+				solveMatrix[row][col] = row <= col ? normalMatrix[row][col] : normalMatrix[col][row];
+			}
+			solveMatrix[row][TERMS] = normalVector[row];
+		}
+		
+		// gaussian elimination with partial pivoting
+		for(int pivot = 0; pivot < TERMS; pivot++) {
+			int best = pivot;
+			for(int row = pivot + 1; row < TERMS; row++) {
+				if(Math.abs(solveMatrix[row][pivot]) > Math.abs(solveMatrix[best][pivot])) {
+					best = row;
+				}
+			}
+			if(Math.abs(solveMatrix[best][pivot]) < MIN_PIVOT) {
+				return false; // the samples do not pin down an ellipsoid
+			}
+			double[] swap = solveMatrix[pivot];
+			solveMatrix[pivot] = solveMatrix[best];
+			solveMatrix[best] = swap;
+			
+			for(int row = pivot + 1; row < TERMS; row++) {
+				double factor = solveMatrix[row][pivot] / solveMatrix[pivot][pivot];
+				for(int col = pivot; col <= TERMS; col++) {
+					solveMatrix[row][col] -= factor * solveMatrix[pivot][col];
+				}
+			}
+		}
+		
+		// back substitution
+		for(int row = TERMS - 1; row >= 0; row--) {
+			double total = solveMatrix[row][TERMS];
+			for(int col = row + 1; col < TERMS; col++) {
+				total -= solveMatrix[row][col] * solution[col];
+			}
+			solution[row] = total / solveMatrix[row][row];
+		}
+		return true;
+	}
+	
+	private void updateCalibration() {
+		if(!hasEnoughCoverage() || !solveNormalEquations()) {
+			return;
+		}
+		
+		double a = solution[0], b = solution[1], c = solution[2];
+		double d = solution[3], e = solution[4], f = solution[5];
+		// an ellipsoid needs every squared term to be positive
+		if(a <= 0 || b <= 0 || c <= 0) {
+			return;
+		}
+		
+		// complete the square to find the centre and radii
+		double centreX = -d / (2 * a);
+		double centreY = -e / (2 * b);
+		double centreZ = -f / (2 * c);
+		double g = 1 + (d * d) / (4 * a) + (e * e) / (4 * b) + (f * f) / (4 * c);
+		if(g <= 0) {
+			return;
+		}
+		float radiusX = (float)(Math.sqrt(g / a) / SAMPLE_SCALE);
+		float radiusY = (float)(Math.sqrt(g / b) / SAMPLE_SCALE);
+		float radiusZ = (float)(Math.sqrt(g / c) / SAMPLE_SCALE);
+		
+		// reject anything that could not be the earth's field
+		float minRadius = Math.min(radiusX, Math.min(radiusY, radiusZ));
+		float maxRadius = Math.max(radiusX, Math.max(radiusY, radiusZ));
+		if(minRadius < MIN_FIELD_RADIUS || maxRadius > MAX_FIELD_RADIUS || maxRadius / minRadius > MAX_RADIUS_RATIO) {
+			return;
+		}
+		
+		// scale each axis so the ellipsoid becomes a sphere of the average radius
+		float averageRadius = (radiusX + radiusY + radiusZ) / 3f;
+		setCalibration((float)(centreX / SAMPLE_SCALE), (float)(centreY / SAMPLE_SCALE), (float)(centreZ / SAMPLE_SCALE),
+				averageRadius / radiusX, averageRadius / radiusY, averageRadius / radiusZ);
+		hasNewCalibration = true;
+		
+		// require fresh coverage before the next fit
+		resetCoverage();
+	}
+	
+	private static double getVariance(double total, double squaredTotal, int count) {
+		double mean = total / count;
+		return squaredTotal / count - mean * mean;
+	}
+	
+	private void verifySample(float x, float y, float z) {
+		double raw = Math.sqrt(x * x + y * y + z * z);
+		double cx = (x - calibration.offsetX) * calibration.scaleX;
+		double cy = (y - calibration.offsetY) * calibration.scaleY;
+		double cz = (z - calibration.offsetZ) * calibration.scaleZ;
+		double corrected = Math.sqrt(cx * cx + cy * cy + cz * cz);
+		verifyCount ++;
+		rawTotal += raw;
+		rawSquaredTotal += raw * raw;
+		correctedTotal += corrected;
+		correctedSquaredTotal += corrected * corrected;
+		
+		// wait until the device has been turned enough to tell
+		if(!hasEnoughCoverage()) {
+			return;
+		}
+		// a good calibration makes the field the same strength whichever way the device points,
+		// if the readings are already rounder without it the platform has done the job since it was saved
+		if(getVariance(correctedTotal, correctedSquaredTotal, verifyCount) <= getVariance(rawTotal, rawSquaredTotal, verifyCount)) {
+			verified = true;
+			rechecking = false;
+		} else {
+			clearCalibration();
+		}
+	}
+	
+	private void resetCoverage() {
+		for(int i = 0; i < 3; i++) {
+			axisMin[i] = Float.MAX_VALUE;
+			axisMax[i] = -Float.MAX_VALUE;
+			previousAxisMin[i] = Float.MAX_VALUE;
+			previousAxisMax[i] = -Float.MAX_VALUE;
+		}
+		blockSamples = 0;
+	}
+	
+	private void startCoverageBlock() {
+		// the oldest block has been forgotten by the fit, so stop counting it
+		for(int i = 0; i < 3; i++) {
+			previousAxisMin[i] = axisMin[i];
+			previousAxisMax[i] = axisMax[i];
+			axisMin[i] = Float.MAX_VALUE;
+			axisMax[i] = -Float.MAX_VALUE;
+		}
+		blockSamples = 0;
+	}
+	
+	/**
+	 * Feeds a raw magnetometer sample in micro tesla into the fit.
+	 * Samples from a device lying still add nothing but weight on one point, so leave them out.
+	 */
+	public synchronized void addSample(float x, float y, float z) {
+		// track how much of the sphere has been covered
+		if(blockSamples >= COVERAGE_BLOCK_SAMPLES) {
+			startCoverageBlock();
+		}
+		blockSamples ++;
+		if(x < axisMin[0]) axisMin[0] = x;
+		if(x > axisMax[0]) axisMax[0] = x;
+		if(y < axisMin[1]) axisMin[1] = y;
+		if(y > axisMax[1]) axisMax[1] = y;
+		if(z < axisMin[2]) axisMin[2] = z;
+		if(z > axisMax[2]) axisMax[2] = z;
+		
+		if(calibrated && (!verified || rechecking)) {
+			verifySample(x, y, z);
+		}
+		
+		double scaledX = x * SAMPLE_SCALE;
+		double scaledY = y * SAMPLE_SCALE;
+		double scaledZ = z * SAMPLE_SCALE;
+		terms[0] = scaledX * scaledX;
+		terms[1] = scaledY * scaledY;
+		terms[2] = scaledZ * scaledZ;
+		terms[3] = scaledX;
+		terms[4] = scaledY;
+		terms[5] = scaledZ;
+		
+		// fold the sample into the upper triangle of the normal equations
+		for(int row = 0; row < TERMS; row++) {
+			for(int col = row; col < TERMS; col++) {
+				normalMatrix[row][col] = normalMatrix[row][col] * FORGETTING_FACTOR + terms[row] * terms[col];
+			}
+			normalVector[row] = normalVector[row] * FORGETTING_FACTOR + terms[row];
+		}
+		
+		// refit every so often, this keeps the per sample cost flat
+		samplesSinceSolve ++;
+		if(samplesSinceSolve >= SAMPLES_PER_SOLVE) {
+			samplesSinceSolve = 0;
+			updateCalibration();
+		}
+	}
+	
+	/**
+	 * Applies the current calibration to a magnetometer sample, in place.
+	 */
+	public synchronized void correct(float[] values) {
+		if(!isCalibrated()) {
+			return;
+		}
+		values[0] = (values[0] - calibration.offsetX) * calibration.scaleX;
+		values[1] = (values[1] - calibration.offsetY) * calibration.scaleY;
+		values[2] = (values[2] - calibration.offsetZ) * calibration.scaleZ;
+	}
+	
+	/**
+	 * Throws away the collected samples, but keeps the current calibration.
+	 */
+	public synchronized void resetSamples() {
+		for(int row = 0; row < TERMS; row++) {
+			for(int col = 0; col < TERMS; col++) {
+				normalMatrix[row][col] = 0d;
+			}
+			normalVector[row] = 0d;
+		}
+		samplesSinceSolve = 0;
+		resetCoverage();
+	}
+	
+	public synchronized void setCalibration(float offsetX, float offsetY, float offsetZ, float scaleX, float scaleY, float scaleZ) {
+		calibration = new Calibration(offsetX, offsetY, offsetZ, scaleX, scaleY, scaleZ);
+		calibrated = true;
+		verified = true;
+		rechecking = false;
+	}
+	
+	/**
+	 * Takes a calibration saved in an earlier session. It is not applied until the readings have shown
+	 * that it still fits, and it is dropped if they show it does not.
+	 */
+	public synchronized void loadCalibration(float offsetX, float offsetY, float offsetZ, float scaleX, float scaleY, float scaleZ) {
+		setCalibration(offsetX, offsetY, offsetZ, scaleX, scaleY, scaleZ);
+		verified = false;
+		resetVerification();
+	}
+	
+	/**
+	 * Tests the calibration against the readings again, e.g. after the platform has changed its own correction.
+	 * It stays applied while the test runs, and is dropped as if cleared if it no longer fits.
+	 */
+	public synchronized void recheckCalibration() {
+		if(calibrated && verified) {
+			rechecking = true;
+			resetVerification();
+			resetCoverage();
+		}
+	}
+	
+	private void resetVerification() {
+		verifyCount = 0;
+		rawTotal = rawSquaredTotal = 0d;
+		correctedTotal = correctedSquaredTotal = 0d;
+	}
+	
+	/**
+	 * Stops correcting the readings, the next save removes the stored calibration.
+	 */
+	public synchronized void clearCalibration() {
+		if(calibrated) {
+			calibrated = false;
+			verified = false;
+			rechecking = false;
+			hasNewCalibration = true;
+		}
+	}
+	
+	/**
+	 * Returns true if a calibration is being applied to the readings.
+	 */
+	public synchronized boolean isCalibrated() {
+		return calibrated && verified;
+	}
+	
+	public synchronized boolean hasNewCalibration() {
+		return hasNewCalibration;
+	}
+	
+	public synchronized void markCalibrationSaved() {
+		hasNewCalibration = false;
+	}
+	
+	/**
+	 * Returns the calibration being applied to the readings, or null if there is none.
+	 */
+	public synchronized Calibration getCalibration() {
+		return isCalibrated() ? calibration : null;
+	}
+	
+	public MagnetometerCalibrator() {
+		normalMatrix = new double[TERMS][TERMS];
+		normalVector = new double[TERMS];
+		solveMatrix = new double[TERMS][TERMS + 1];
+		terms = new double[TERMS];
+		solution = new double[TERMS];
+		axisMin = new float[3];
+		axisMax = new float[3];
+		previousAxisMin = new float[3];
+		previousAxisMax = new float[3];
+		resetCoverage();
+	}
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import android.util.Log;
+
+/**
+ * Publishes the compass bearing as NMEA 0183 HDG, HDT and HDM sentences, for other tools on this device or the local network.
+ * Sentences go to any TCP clients connected to the server port, and to a UDP address if one is set.
+ * The sentences are written into one reusable buffer with the checksums worked out in place,
+ * and every channel is non blocking, so a slow client is dropped rather than holding up the others.
+ * Bearings come from the BearingDispatcher, which keeps the compass running while this is publishing.
+ */
+public class NmeaHeadingPublisher implements BearingDispatcher.Client {
+	/** constants **/
+	public static final int DEFAULT_PORT = 10110; // the port registered for NMEA over IP
+	private static final int MAX_CLIENTS = 8;
+	private static final int BUFFER_SIZE = 256; // three sentences are well under this
+	private static final byte[] HDG_START = {'$', 'H', 'C', 'H', 'D', 'G', ','};
+	private static final byte[] HDT_START = {'$', 'H', 'C', 'H', 'D', 'T', ','};
+	private static final byte[] HDM_START = {'$', 'H', 'C', 'H', 'D', 'M', ','};
+	private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+	
+	/** variables **/
+	private final BearingDispatcher dispatcher;
+	private final float rateHz;
+	private final ByteBuffer buffer;
+	private final byte[] digits; // work space for writing numbers
+	private DatagramChannel udpChannel;
+	private SocketAddress udpTarget;
+	private ServerSocketChannel serverChannel;
+	private final SocketChannel[] clients;
+	private boolean isRunning;
+	private volatile long sentenceCount;
+	
+	private void putTenths(float value) {
+		// a number to one decimal place, without going through a String
+		int tenths = Math.round(value * 10f);
+		if(tenths < 0) {
+			buffer.put((byte)'-');
+			tenths = -tenths;
+		}
+		int whole = tenths / 10;
+		int length = 0;
+		do {
+			digits[length++] = (byte)('0' + whole % 10);
+			whole /= 10;
+		} while(whole > 0);
+		while(length > 0) {
+			buffer.put(digits[--length]);
+		}
+		buffer.put((byte)'.');
+		buffer.put((byte)('0' + tenths % 10));
+	}
+	
+	private void endSentence(int start) {
+		// the checksum is the xor of everything between the $ and the *
+		int checksum = 0;
+		for(int i = start + 1; i < buffer.position(); i++) {
+			checksum ^= buffer.get(i);
+		}
+		buffer.put((byte)'*');
+		buffer.put(HEX[(checksum >> 4) & 0xf]);
+		buffer.put(HEX[checksum & 0xf]);
+		buffer.put((byte)'\r');
+		buffer.put((byte)'\n');
+	}
+	
+	private static float toHeading(float bearing) {
+		// to one decimal place in 0 <= x < 360, so 359.96 does not come out as 360.0
+		float heading = Math.round(bearing * 10f) / 10f;
+		if(heading >= 360f) {
+			heading -= 360f;
+		} else if(heading < 0f) {
+			heading += 360f;
+		}
+		return heading;
+	}
+	
+	/**
+	 * Writes the three sentences for a bearing into the buffer, ready to send.
+	 */
+	void encode(float magneticBearing, float declination) {
+		float trueBearing = toHeading(magneticBearing + declination);
+		magneticBearing = toHeading(magneticBearing);
+		buffer.clear();
+		
+		// heading, deviation (unknown) and variation
+		int start = buffer.position();
+		buffer.put(HDG_START);
+		putTenths(magneticBearing);
+		buffer.put((byte)',');
+		buffer.put((byte)',');
+		buffer.put((byte)',');
+		putTenths(Math.abs(declination));
+		buffer.put((byte)',');
+		buffer.put((byte)(declination >= 0 ? 'E' : 'W'));
+		endSentence(start);
+		
+		start = buffer.position();
+		buffer.put(HDT_START);
+		putTenths(trueBearing);
+		buffer.put((byte)',');
+		buffer.put((byte)'T');
+		endSentence(start);
+		
+		start = buffer.position();
+		buffer.put(HDM_START);
+		putTenths(magneticBearing);
+		buffer.put((byte)',');
+		buffer.put((byte)'M');
+		endSentence(start);
+		
+		buffer.flip();
+	}
+	
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+	
+	private void acceptClients() throws IOException {
+		SocketChannel client;
+		while((client = serverChannel.accept()) != null) {
+			client.configureBlocking(false);
+			boolean added = false;
+			for(int i = 0; i < MAX_CLIENTS && !added; i++) {
+				if(clients[i] == null) {
+					clients[i] = client;
+					added = true;
+				}
+			}
+			if(!added) {
+				client.close(); // full up
+			}
+		}
+	}
+	
+	private void closeClient(int index) {
+		try {
+			clients[index].close();
+		} catch(IOException e) {
+			// do nothing, it is going anyway
+		}
+		clients[index] = null;
+	}
+	
+	private void send() {
+		int length = buffer.limit();
+		if(udpChannel != null) {
+			try {
+				udpChannel.send(buffer, udpTarget);
+			} catch(IOException e) {
+				Log.w("compass", "could not send nmea over udp", e);
+			}
+		}
+		for(int i = 0; i < MAX_CLIENTS; i++) {
+			if(clients[i] == null) {
+				continue;
+			}
+			buffer.position(0);
+			try {
+				// a partial write means the client is not keeping up, and half a sentence is no use to it
+				if(clients[i].write(buffer) < length) {
+					closeClient(i);
+				}
+			} catch(IOException e) {
+				closeClient(i);
+			}
+		}
+	}
+	
+	/**
+	 * Publishes one bearing to everybody listening.
+	 */
+	void publish(float magneticBearing, float declination) throws IOException {
+		if(serverChannel != null) {
+			acceptClients();
+		}
+		encode(magneticBearing, declination);
+		send();
+		sentenceCount += 3;
+	}
+	
+	public void onBearings(float[] bearings, long[] timestamps, int count, float declination) {
+		// only the latest matters, the batches are one long anyway
+		try {
+			publish(bearings[count - 1], declination);
+		} catch(IOException e) {
+			Log.w("compass", "nmea publishing failed", e);
+		}
+	}
+	
+	/**
+	 * Sends to the given address over UDP, e.g. a laptop on the local network or a loopback port.
+	 */
+	public synchronized void openUdp(SocketAddress target) throws IOException {
+		udpChannel = DatagramChannel.open();
+		udpChannel.configureBlocking(false);
+		udpTarget = target;
+	}
+	
+	/**
+	 * Listens for TCP clients on the given port, which are sent every sentence once connected.
+	 */
+	public synchronized void openTcpServer(int port) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+	}
+	
+	public synchronized int getLocalPort() {
+		return serverChannel != null ? serverChannel.socket().getLocalPort() : -1;
+	}
+	
+	public long getSentenceCount() {
+		return sentenceCount;
+	}
+	
+	public synchronized void start() {
+		if(isRunning) {
+			return;
+		}
+		isRunning = true;
+		// every sample is sent as soon as it is taken
+		dispatcher.addClient(this, rateHz, 1);
+	}
+	
+	/**
+	 * Stops publishing and closes every channel.
+	 */
+	public synchronized void stop() {
+		isRunning = false;
+		// once this returns no more bearings arrive, so the channels are ours to close
+		dispatcher.removeClient(this);
+		for(int i = 0; i < MAX_CLIENTS; i++) {
+			if(clients[i] != null) {
+				closeClient(i);
+			}
+		}
+		try {
+			if(serverChannel != null) {
+				serverChannel.close();
+			}
+			if(udpChannel != null) {
+				udpChannel.close();
+			}
+		} catch(IOException e) {
+			Log.w("compass", "could not close the nmea channels", e);
+		}
+	}
+	
+	public NmeaHeadingPublisher(BearingDispatcher dispatcher, float rateHz) {
+		this.dispatcher = dispatcher;
+		this.rateHz = rateHz;
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		digits = new byte[12];
+		clients = new SocketChannel[MAX_CLIENTS];
+	}
+}
@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads NMEA 0183 HDG, HDM, HDT, GGA and RMC sentences straight out of a ByteBuffer.
+ * Fields are found by remembering where the commas are and numbers are read from the bytes in place,
+ * so no Strings or other objects are made for a sentence. Sentences with a bad checksum are skipped,
+ * as is anything that is not a sentence we understand. Any talker is accepted.
+ */
+public class NmeaParser {
+	/** constants **/
+	private static final int MAX_SENTENCE_LENGTH = 128; // the standard says 82, leave some room for sloppy devices
+	private static final int MAX_FIELDS = 24;
+	private static final double KNOTS_TO_METERS_PER_SECOND = 1852d / 3600d;
+	private static final float METERS_PER_HDOP = 5f; // a rough accuracy for each unit of horizontal dilution
+	private static final long MILLIS_PER_DAY = 24l * 60l * 60l * 1000l;
+	
+	/**
+	 * Receives what the parser finds, on the thread that calls parse().
+	 */
+	public interface Listener {
+		/**
+		 * A heading in degrees, from true north if isTrue is set, otherwise from magnetic north.
+		 */
+		void onHeading(float heading, boolean isTrue);
+		
+		/**
+		 * A position fix. The time is milliseconds since 1970 if the sentence had a date,
+		 * otherwise milliseconds since midnight UTC. Missing values are NaN.
+		 */
+		void onFix(double latitude, double longitude, double altitude, float accuracy, float speed, float bearing, long time, boolean hasDate);
+	}
+	
+	/** variables **/
+	private final Listener listener;
+	private final int[] fieldStarts; // absolute positions in the buffer, each field ends at the next start - 1
+	private int fieldCount;
+	private ByteBuffer buffer; // the buffer being parsed, only set during parse()
+	private long sentenceCount;
+	private long errorCount;
+	
+	private static int hexValue(int character) {
+		if(character >= '0' && character <= '9') return character - '0';
+		if(character >= 'A' && character <= 'F') return character - 'A' + 10;
+		if(character >= 'a' && character <= 'f') return character - 'a' + 10;
+		return -1;
+	}
+	
+	private int fieldEnd(int field) {
+		return fieldStarts[field + 1] - 1;
+	}
+	
+	private boolean isEmpty(int field) {
+		return field >= fieldCount || fieldStarts[field] >= fieldEnd(field);
+	}
+	
+	private byte firstByte(int field) {
+		return isEmpty(field) ? 0 : buffer.get(fieldStarts[field]);
+	}
+	
+	private double parseNumber(int field) {
+		// a plain decimal, NaN if the field is empty or not a number
+		if(isEmpty(field)) {
+			return Double.NaN;
+		}
+		int position = fieldStarts[field];
+		int end = fieldEnd(field);
+		boolean negative = false;
+		if(buffer.get(position) == '-') {
+			negative = true;
+			position++;
+		}
+		long whole = 0;
+		long fraction = 0;
+		long scale = 1;
+		boolean inFraction = false;
+		boolean anyDigits = false;
+		for(; position < end; position++) {
+			int character = buffer.get(position);
+			if(character == '.' && !inFraction) {
+				inFraction = true;
+			} else if(character >= '0' && character <= '9') {
+				anyDigits = true;
+				if(inFraction) {
+					if(scale < 1000000000l) {
+						fraction = fraction * 10 + (character - '0');
+						scale *= 10;
+					}
+				} else {
+					whole = whole * 10 + (character - '0');
+				}
+			} else {
+				return Double.NaN;
+			}
+		}
+		if(!anyDigits) {
+			return Double.NaN;
+		}
+		double value = whole + (double)fraction / scale;
+		return negative ? -value : value;
+	}
+	
+	private double parseCoordinate(int valueField, int hemisphereField) {
+		// (d)ddmm.mmmm and a hemisphere letter into signed degrees
+		double value = parseNumber(valueField);
+		if(Double.isNaN(value)) {
+			return Double.NaN;
+		}
+		double degrees = Math.floor(value / 100d);
+		double coordinate = degrees + (value - degrees * 100d) / 60d;
+		byte hemisphere = firstByte(hemisphereField);
+		return (hemisphere == 'S' || hemisphere == 'W') ? -coordinate : coordinate;
+	}
+	
+	private long parseTimeOfDay(int field) {
+		// hhmmss.ss into milliseconds since midnight, -1 if missing
+		double value = parseNumber(field);
+		if(Double.isNaN(value)) {
+			return -1;
+		}
+		int hours = (int)(value / 10000d);
+		int minutes = (int)(value / 100d) % 100;
+		double seconds = value - hours * 10000d - minutes * 100d;
+		return hours * 3600000l + minutes * 60000l + Math.round(seconds * 1000d);
+	}
+	
+	private static long daysSinceEpoch(int year, int month, int day) {
+		// days from civil, valid for any gregorian date
+		year -= month <= 2 ? 1 : 0;
+		int era = (year >= 0 ? year : year - 399) / 400;
+		int yearOfEra = year - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097l + dayOfEra - 719468l;
+	}
+	
+	private boolean matchesType(char a, char b, char c) {
+		// the last three letters of the address field, whatever the talker
+		int end = fieldEnd(0);
+		return end - fieldStarts[0] >= 3 && buffer.get(end - 3) == a && buffer.get(end - 2) == b && buffer.get(end - 1) == c;
+	}
+	
+	private void handleSentence() {
+		if(matchesType('H', 'D', 'T')) {
+			double heading = parseNumber(1);
+			if(!Double.isNaN(heading)) {
+				listener.onHeading((float)heading, true);
+			}
+		} else if(matchesType('H', 'D', 'M')) {
+			double heading = parseNumber(1);
+			if(!Double.isNaN(heading)) {
+				listener.onHeading((float)heading, false);
+			}
+		} else if(matchesType('H', 'D', 'G')) {
+			// magnetic sensor heading, with the sensor deviation and the variation if they are known
+			double heading = parseNumber(1);
+			if(Double.isNaN(heading)) {
+				return;
+			}
+			double deviation = parseNumber(2);
+			if(!Double.isNaN(deviation)) {
+				heading += firstByte(3) == 'W' ? -deviation : deviation;
+			}
+			double variation = parseNumber(4);
+			if(!Double.isNaN(variation)) {
+				heading += firstByte(5) == 'W' ? -variation : variation;
+				listener.onHeading((float)heading, true);
+			} else {
+				listener.onHeading((float)heading, false);
+			}
+		} else if(matchesType('G', 'G', 'A')) {
+			// a quality of zero means there is no fix
+			double quality = parseNumber(6);
+			if(Double.isNaN(quality) || quality == 0) {
+				return;
+			}
+			double latitude = parseCoordinate(2, 3);
+			double longitude = parseCoordinate(4, 5);
+			if(Double.isNaN(latitude) || Double.isNaN(longitude)) {
+				return;
+			}
+			double hdop = parseNumber(8);
+			float accuracy = Double.isNaN(hdop) ? Float.NaN : (float)hdop * METERS_PER_HDOP;
+			listener.onFix(latitude, longitude, parseNumber(9), accuracy, Float.NaN, Float.NaN, parseTimeOfDay(1), false);
+		} else if(matchesType('R', 'M', 'C')) {
+			if(firstByte(2) != 'A') {
+				return; // void, no fix
+			}
+			double latitude = parseCoordinate(3, 4);
+			double longitude = parseCoordinate(5, 6);
+			if(Double.isNaN(latitude) || Double.isNaN(longitude)) {
+				return;
+			}
+			double speed = parseNumber(7);
+			double course = parseNumber(8);
+			long time = parseTimeOfDay(1);
+			double date = parseNumber(9);
+			boolean hasDate = time >= 0 && !Double.isNaN(date);
+			if(hasDate) {
+				// ddmmyy, the usual pivot puts two digit years from 80 in the last century
+				int ddmmyy = (int)date;
+				int year = ddmmyy % 100;
+				year += year < 80 ? 2000 : 1900;
+				time += daysSinceEpoch(year, (ddmmyy / 100) % 100, ddmmyy / 10000) * MILLIS_PER_DAY;
+			}
+			listener.onFix(latitude, longitude, Double.NaN, Float.NaN,
+					Double.isNaN(speed) ? Float.NaN : (float)(speed * KNOTS_TO_METERS_PER_SECOND),
+					Double.isNaN(course) ? Float.NaN : (float)course, time, hasDate);
+		}
+	}
+	
+	private boolean splitSentence(int start, int end) {
+		// find the fields between the $ and the * (or the end), checking the checksum on the way
+		int checksum = 0;
+		fieldCount = 0;
+		fieldStarts[fieldCount++] = start + 1;
+		int position = start + 1;
+		for(; position < end; position++) {
+			int character = buffer.get(position);
+			if(character == '*') {
+				break;
+			}
+			checksum ^= character;
+			if(character == ',') {
+				if(fieldCount >= MAX_FIELDS) {
+					return false;
+				}
+				fieldStarts[fieldCount++] = position + 1;
+			}
+		}
+		// the end of the last field, fieldEnd() relies on this
+		fieldStarts[fieldCount] = position + 1;
+		if(position < end) {
+			// there is a checksum, it has to match
+			if(end - position < 3) {
+				return false;
+			}
+			int high = hexValue(buffer.get(position + 1));
+			int low = hexValue(buffer.get(position + 2));
+			if(high < 0 || low < 0 || ((high << 4) | low) != checksum) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Parses every complete sentence between the buffer's position and limit.
+	 * The position is left at the start of any incomplete sentence at the end, so the caller can compact the
+	 * buffer, read more in after it and call this again.
+	 */
+	public void parse(ByteBuffer data) {
+		parse(data, false);
+	}
+	
+	/**
+	 * As parse(ByteBuffer), but if endOfInput is set the limit ends the last sentence as a line break would.
+	 * Use it for a datagram, which many senders fill with a single sentence and no line break.
+	 */
+	public void parse(ByteBuffer data, boolean endOfInput) {
+		buffer = data;
+		int position = data.position();
+		int limit = data.limit();
+		while(position < limit) {
+			// find the start of a sentence
+			while(position < limit && data.get(position) != '$') {
+				position++;
+			}
+			if(position >= limit) {
+				break;
+			}
+			// and its end
+			int end = position + 1;
+			int searchLimit = Math.min(limit, position + MAX_SENTENCE_LENGTH);
+			while(end < searchLimit && data.get(end) != '\n' && data.get(end) != '\r' && data.get(end) != '$') {
+				end++;
+			}
+			if(end >= searchLimit && !(endOfInput && end == limit)) {
+				if(searchLimit == limit && limit - position < MAX_SENTENCE_LENGTH) {
+					break; // not all here yet
+				}
+				position++; // too long to be a sentence, look for the next one
+				errorCount++;
+				continue;
+			}
+			if(end < limit && data.get(end) == '$') {
+				// cut short, skip it
+				errorCount++;
+				position = end;
+				continue;
+			}
+			if(splitSentence(position, end)) {
+				sentenceCount++;
+				handleSentence();
+			} else {
+				errorCount++;
+			}
+			position = Math.min(end + 1, limit); // an unterminated last sentence ends at the limit itself
+		}
+		data.position(position);
+		buffer = null;
+	}
+	
+	public long getSentenceCount() {
+		return sentenceCount;
+	}
+	
+	public long getErrorCount() {
+		return errorCount;
+	}
+	
+	public NmeaParser(Listener listener) {
+		this.listener = listener;
+		fieldStarts = new int[MAX_FIELDS + 1];
+	}
+}
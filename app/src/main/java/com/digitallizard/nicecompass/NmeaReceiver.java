@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+
+import android.location.Location;
+import android.util.Log;
+
+/**
+ * Reads NMEA 0183 from an external receiver and feeds it in as if it came from the phone.
+ * Headings go to CompassManager, which uses them in place of its own sensors while they keep coming,
+ * and fixes are injected into LocationHub so GPSManager and everything else sees them.
+ * The source can be a file, a UDP port, a TCP server or any stream, such as a USB serial driver's.
+ */
+public class NmeaReceiver implements Runnable, NmeaParser.Listener {
+	/** constants **/
+	private static final int BUFFER_SIZE = 4096;
+	private static final long MILLIS_PER_DAY = 24l * 60l * 60l * 1000l;
+	
+	/** variables **/
+	private final CompassManager compass;
+	private final LocationHub locationHub;
+	private final NmeaParser parser;
+	private final ByteBuffer buffer;
+	private ReadableByteChannel channel;
+	private DatagramChannel datagramChannel; // set instead of channel for UDP, each packet is read whole
+	private Thread thread;
+	private volatile boolean isRunning;
+	private boolean stopped; // stop() has been called, the source may have been opened after
+	private volatile long fixCount;
+	// GGA and RMC each carry half of a fix, so the halves for one epoch are merged and injected together
+	private long epochTime = -1; // time of day of the fix being gathered
+	private boolean hasGga;
+	private boolean hasRmc;
+	private boolean epochSent; // the fix for this epoch has gone already, the rest of it came too late
+	private boolean sendsGga; // the receiver has sent the sentence at some point, so its half is worth waiting for
+	private boolean sendsRmc;
+	private double epochLatitude;
+	private double epochLongitude;
+	private double epochAltitude;
+	private float epochAccuracy;
+	private float epochSpeed;
+	private float epochBearing;
+	private long epochDateTime; // the full time, from RMC
+	
+	public void onHeading(float heading, boolean isTrue) {
+		compass.setExternalHeading(heading, isTrue, System.nanoTime());
+	}
+	
+	public void onFix(double latitude, double longitude, double altitude, float accuracy, float speed, float bearing, long time, boolean hasDate) {
+		long timeOfDay = time < 0 ? -1 : time % MILLIS_PER_DAY;
+		if(timeOfDay < 0 || timeOfDay != epochTime) {
+			// a new epoch, whatever the last one had is all it will get
+			injectEpoch();
+			epochTime = timeOfDay;
+			epochSent = false;
+			epochAltitude = Double.NaN;
+			epochAccuracy = Float.NaN;
+			epochSpeed = Float.NaN;
+			epochBearing = Float.NaN;
+		}
+		if(epochSent) {
+			// only the first sentences of a stream, before it is known to send both
+			if(hasDate) {
+				sendsRmc = true;
+			} else {
+				sendsGga = true;
+			}
+			return;
+		}
+		epochLatitude = latitude;
+		epochLongitude = longitude;
+		if(hasDate) {
+			hasRmc = true;
+			sendsRmc = true;
+			epochSpeed = speed;
+			epochBearing = bearing;
+			epochDateTime = time;
+		} else {
+			hasGga = true;
+			sendsGga = true;
+			epochAltitude = altitude;
+			epochAccuracy = accuracy;
+		}
+		// without a time the halves cannot be matched, so send it as it is
+		if(timeOfDay < 0 || (hasGga || !sendsGga) && (hasRmc || !sendsRmc)) {
+			injectEpoch();
+		}
+	}
+	
+	private void injectEpoch() {
+		if(!hasGga && !hasRmc) {
+			return;
+		}
+		long time;
+		if(hasRmc) {
+			time = epochDateTime;
+		} else if(epochTime >= 0) {
+			// only the time of day is known, take the day that puts it closest to now
+			long now = System.currentTimeMillis();
+			time = now - now % MILLIS_PER_DAY + epochTime;
+			if(time - now > MILLIS_PER_DAY / 2) {
+				time -= MILLIS_PER_DAY;
+			} else if(now - time > MILLIS_PER_DAY / 2) {
+				time += MILLIS_PER_DAY;
+			}
+		} else {
+			time = System.currentTimeMillis();
+		}
+		hasGga = false;
+		hasRmc = false;
+		epochSent = true;
+		
+		Location location = new Location(LocationHub.INJECTED_PROVIDER);
+		location.setLatitude(epochLatitude);
+		location.setLongitude(epochLongitude);
+		location.setTime(time);
+		if(!Double.isNaN(epochAltitude)) {
+			location.setAltitude(epochAltitude);
+		}
+		if(!Float.isNaN(epochAccuracy)) {
+			location.setAccuracy(epochAccuracy);
+		}
+		if(!Float.isNaN(epochSpeed)) {
+			location.setSpeed(epochSpeed);
+		}
+		if(!Float.isNaN(epochBearing)) {
+			location.setBearing(epochBearing);
+		}
+		fixCount++;
+		locationHub.injectLocation(location);
+	}
+	
+	/**
+	 * Reads from any stream, e.g. a USB serial port or a log. Returns once the stream ends.
+	 */
+	public synchronized void openStream(InputStream stream) {
+		channel = Channels.newChannel(stream);
+	}
+	
+	public void openFile(File file) throws IOException {
+		openStream(new FileInputStream(file));
+	}
+	
+	/**
+	 * Connects to a TCP server sending NMEA, e.g. a marine network gateway on the default port of 10110.
+	 */
+	public synchronized void openTcp(SocketAddress server) throws IOException {
+		channel = SocketChannel.open(server);
+	}
+	
+	/**
+	 * Listens for NMEA broadcast over UDP on the given port.
+	 */
+	public synchronized void openUdp(int port) throws IOException {
+		datagramChannel = DatagramChannel.open();
+		datagramChannel.socket().setReuseAddress(true);
+		datagramChannel.socket().bind(new InetSocketAddress(port));
+	}
+	
+	public long getSentenceCount() {
+		return parser.getSentenceCount();
+	}
+	
+	public long getErrorCount() {
+		return parser.getErrorCount();
+	}
+	
+	public long getFixCount() {
+		return fixCount;
+	}
+	
+	private void closeSource() {
+		// closing the channel wakes a blocked read
+		try {
+			if(channel != null) {
+				channel.close();
+			}
+			if(datagramChannel != null) {
+				datagramChannel.close();
+			}
+		} catch(IOException e) {
+			Log.w("compass", "could not close the nmea source", e);
+		}
+	}
+	
+	public synchronized void start() {
+		if(stopped) {
+			closeSource(); // opened too late, nobody wants it now
+			return;
+		}
+		if(thread != null) {
+			return;
+		}
+		isRunning = true;
+		thread = new Thread(this, "nmea receiver");
+		thread.start();
+	}
+	
+	/**
+	 * Stops reading and closes the source.
+	 */
+	public void stop() {
+		Thread running;
+		synchronized(this) {
+			isRunning = false;
+			stopped = true;
+			running = thread;
+			thread = null;
+			closeSource();
+		}
+		if(running != null) {
+			try {
+				running.join();
+			} catch(InterruptedException e) {
+				// do nothing
+			}
+		}
+	}
+	
+	public void run() {
+		try {
+			while(isRunning) {
+				if(datagramChannel != null) {
+					// a packet holds whole sentences, the last one often without a line break
+					buffer.clear();
+					datagramChannel.receive(buffer);
+					buffer.flip();
+					parser.parse(buffer, true);
+					continue;
+				}
+				if(channel.read(buffer) < 0) {
+					break; // the end of the stream
+				}
+				buffer.flip();
+				parser.parse(buffer);
+				buffer.compact();
+				if(!buffer.hasRemaining()) {
+					buffer.clear(); // nothing but rubbish, throw it away
+				}
+			}
+		} catch(IOException e) {
+			if(isRunning) {
+				Log.w("compass", "reading nmea failed", e);
+			}
+		}
+		Log.i("compass", "nmea receiver stopped after " + parser.getSentenceCount() + " sentences, "
+				+ parser.getErrorCount() + " rejected");
+		injectEpoch(); // a receiver sending only one of GGA and RMC leaves its last fix waiting
+	}
+	
+	public NmeaReceiver(CompassManager compass, LocationHub locationHub) {
+		this.compass = compass;
+		this.locationHub = locationHub;
+		parser = new NmeaParser(this);
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	}
+}
@@ -0,0 +1,454 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Drives CompassManager and the CompassSurface update logic without drawing anything,
+ * on a simulated clock, and reports how the pipeline performs.
+ * The synthetic run is fixed (seeded) so results can be compared between builds.
+ */
+public class PipelineBenchmark {
+	/** constants **/
+	private static final long NANOS_PER_MILLI = 1000000l;
+	private static final long SENSOR_PERIOD_NANOS = 20 * NANOS_PER_MILLI; // 50Hz, roughly SENSOR_DELAY_UI
+	private static final long FRAME_PERIOD_NANOS = 33333333l; // 30 fps
+	private static final long STEP_PERIOD_NANOS = 2000 * NANOS_PER_MILLI; // how long the heading is held between turns
+	private static final int STEP_COUNT = 200;
+	private static final int WARMUP_STEPS = 10;
+	private static final long RANDOM_SEED = 42l;
+	private static final float SETTLED_TOLERANCE = 2f; // degrees, the card counts as arrived within this
+	private static final float TRACE_TURN_DEGREES = 10f; // in a trace, the sensors this far from the card count as a turn
+	private static final float HORIZONTAL_FIELD = 20f; // micro tesla
+	private static final float VERTICAL_FIELD = 40f;
+	private static final float SENSOR_NOISE = 0.4f;
+	private static final int KERNEL_SAMPLES = 10000; // orientations compared between HeadingKernel and the platform
+	private static final int KERNEL_ROUNDS = 20;
+	private static final double KERNEL_MAX_TILT = Math.toRadians(60); // pitch and roll, below where HeadingKernel turns to the back of the device
+	private static final int FILTER_SAMPLES = 100000;
+	private static final int FILTER_ROUNDS = 10;
+	private static final int[] FILTER_WINDOWS = {1, 8, 32}; // 8 is what CompassSurface uses
+	private static final float FILTER_NOISE = 3f; // degrees either side of north, so the samples keep crossing 359 -- 0
+	
+	/** variables **/
+	private final Context context;
+	
+	/**
+	 * The results of one run.
+	 */
+	public static class Result {
+		public long events;
+		public long frames;
+		public double eventsPerSecond;
+		public double frameUpdateMicros; // mean time for one surface update
+		public double allocationsPerFrame; // objects allocated per frame, including the events in that frame
+		public double allocatedBytesPerFrame;
+		public long[] latencyMillis; // sorted, time from a turn until the card shows it
+		
+		public long getLatencyPercentile(float percentile) {
+			if(latencyMillis == null || latencyMillis.length == 0) {
+				return -1;
+			}
+			int index = (int)Math.ceil(percentile / 100f * latencyMillis.length) - 1;
+			return latencyMillis[Math.max(0, index)];
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append("events: ").append(events).append(", frames: ").append(frames).append('\n');
+			report.append("throughput: ").append((long)eventsPerSecond).append(" events/s\n");
+			report.append("frame update: ").append(String.format("%.1f", frameUpdateMicros)).append(" us\n");
+			report.append("allocation: ").append(String.format("%.1f", allocationsPerFrame)).append(" objects, ")
+					.append((long)allocatedBytesPerFrame).append(" bytes per frame\n");
+			if(latencyMillis != null && latencyMillis.length > 0) {
+				report.append("turn to display latency: p50 ").append(getLatencyPercentile(50))
+						.append("ms, p90 ").append(getLatencyPercentile(90))
+						.append("ms, p99 ").append(getLatencyPercentile(99)).append("ms\n");
+			}
+			return report.toString();
+		}
+	}
+	
+	/**
+	 * HeadingKernel against SensorManager.getRotationMatrix() and getOrientation() on the same readings.
+	 */
+	public static class KernelResult {
+		public long samples;
+		public double platformNanos; // mean time for one heading
+		public double kernelNanos;
+		public double platformAllocationsPerSample;
+		public double kernelAllocationsPerSample;
+		public float maxDifference; // degrees between the two headings
+		
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append("headings: ").append(samples).append('\n');
+			report.append("platform: ").append(String.format("%.1f", platformNanos)).append(" ns, ")
+					.append(String.format("%.1f", platformAllocationsPerSample)).append(" objects per heading\n");
+			report.append("kernel: ").append(String.format("%.1f", kernelNanos)).append(" ns, ")
+					.append(String.format("%.1f", kernelAllocationsPerSample)).append(" objects per heading\n");
+			report.append("max difference: ").append(String.format("%.4f", maxDifference)).append(" degrees\n");
+			return report.toString();
+		}
+	}
+	
+	/**
+	 * The cost of one BearingFilter sample, for each window size tried.
+	 */
+	public static class FilterResult {
+		public long samples; // for each window
+		public int[] windows;
+		public double[] sampleNanos; // mean time for one sample
+		public double[] allocationsPerSample;
+		
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append("samples: ").append(samples).append(" per window\n");
+			for(int i = 0; i < windows.length; i++) {
+				report.append("window ").append(windows[i]).append(": ").append(String.format("%.1f", sampleNanos[i]))
+						.append(" ns, ").append(String.format("%.2f", allocationsPerSample[i])).append(" objects per sample\n");
+			}
+			return report.toString();
+		}
+	}
+	
+	private static void toDeviceAxes(double yaw, double pitch, double roll, double x, double y, double z, float[] out, int offset) {
+		// undo the turn about up, then the tip about the device's x axis, then the roll about its y axis
+		double x1 = x * Math.cos(yaw) + y * Math.sin(yaw);
+		double y1 = -x * Math.sin(yaw) + y * Math.cos(yaw);
+		double y2 = y1 * Math.cos(pitch) + z * Math.sin(pitch);
+		double z2 = -y1 * Math.sin(pitch) + z * Math.cos(pitch);
+		out[offset] = (float)(x1 * Math.cos(roll) - z2 * Math.sin(roll));
+		out[offset + 1] = (float)y2;
+		out[offset + 2] = (float)(x1 * Math.sin(roll) + z2 * Math.cos(roll));
+	}
+	
+	private static float getBearingDistance(float a, float b) {
+		float distance = Math.abs(a - b) % 360;
+		return distance > 180 ? 360 - distance : distance;
+	}
+	
+	private CompassSurface createSurface(final CompassManager compass) {
+		if(Looper.myLooper() != null) {
+			return new CompassSurface(context, compass, false);
+		}
+		// a SurfaceView makes a Handler while it is built, which needs a looper, so build it on the main thread
+		final CompassSurface[] surface = new CompassSurface[1];
+		new Handler(Looper.getMainLooper()).post(new Runnable() {
+			public void run() {
+				synchronized(surface) {
+					surface[0] = new CompassSurface(context, compass, false);
+					surface.notify();
+				}
+			}
+		});
+		boolean interrupted = false;
+		synchronized(surface) {
+			while(surface[0] == null) {
+				try {
+					surface.wait();
+				} catch(InterruptedException e) {
+					interrupted = true; // finish the benchmark, but leave the flag for whoever asked
+				}
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return surface[0];
+	}
+	
+	private void startCounting() {
+		Debug.resetThreadAllocCount();
+		Debug.resetThreadAllocSize();
+		Debug.startAllocCounting();
+	}
+	
+	private void finish(Result result, long eventNanos, long frameNanos) {
+		Debug.stopAllocCounting();
+		result.eventsPerSecond = result.events * 1e9d / Math.max(1l, eventNanos);
+		result.frameUpdateMicros = frameNanos / 1000d / Math.max(1l, result.frames);
+		result.allocationsPerFrame = Debug.getThreadAllocCount() / (double)Math.max(1l, result.frames);
+		result.allocatedBytesPerFrame = Debug.getThreadAllocSize() / (double)Math.max(1l, result.frames);
+	}
+	
+	/**
+	 * Runs the fixed synthetic scenario: the device lies flat and turns to a new random heading every two seconds.
+	 */
+	public Result runSynthetic() {
+		CompassManager compass = new CompassManager(context, false); // no saved calibration, so every run starts the same
+		CompassSurface surface = createSurface(compass);
+		Random random = new Random(RANDOM_SEED);
+		Result result = new Result();
+		
+		float[] accel = {0f, 0f, 9.81f};
+		float[] mag = new float[3];
+		long[] latencies = new long[STEP_COUNT];
+		int latencyCount = 0;
+		
+		long time = System.nanoTime(); // the simulated clock
+		long nextSensorTime = time;
+		long nextFrameTime = time;
+		long eventNanos = 0;
+		long frameNanos = 0;
+		float heading = 0f;
+		
+		for(int step = 0; step < WARMUP_STEPS + STEP_COUNT; step++) {
+			// turn the device
+			heading = (heading + 30f + random.nextFloat() * 120f) % 360f;
+			double radians = Math.toRadians(heading);
+			long stepStart = nextSensorTime;
+			long stepEnd = stepStart + STEP_PERIOD_NANOS;
+			long settledAt = -1;
+			if(step == WARMUP_STEPS) {
+				startCounting();
+			}
+			boolean measuring = step >= WARMUP_STEPS;
+			
+			while(nextSensorTime < stepEnd || nextFrameTime < stepEnd) {
+				if(nextSensorTime <= nextFrameTime) {
+					// north seen from a flat device facing the heading, plus some noise
+					mag[0] = (float)(-HORIZONTAL_FIELD * Math.sin(radians)) + (float)random.nextGaussian() * SENSOR_NOISE;
+					mag[1] = (float)(HORIZONTAL_FIELD * Math.cos(radians)) + (float)random.nextGaussian() * SENSOR_NOISE;
+					mag[2] = -VERTICAL_FIELD + (float)random.nextGaussian() * SENSOR_NOISE;
+					long start = System.nanoTime();
+					compass.handleSensorValues(Sensor.TYPE_MAGNETIC_FIELD, mag, nextSensorTime);
+					compass.handleSensorValues(Sensor.TYPE_ACCELEROMETER, accel, nextSensorTime);
+					if(measuring) {
+						eventNanos += System.nanoTime() - start;
+						result.events += 2;
+					}
+					nextSensorTime += SENSOR_PERIOD_NANOS;
+				} else {
+					long start = System.nanoTime();
+					surface.update(nextFrameTime);
+					if(measuring) {
+						frameNanos += System.nanoTime() - start;
+						result.frames ++;
+						if(settledAt < 0 && getBearingDistance(surface.getCardBearing(), heading) < SETTLED_TOLERANCE) {
+							settledAt = nextFrameTime;
+						}
+					}
+					nextFrameTime += FRAME_PERIOD_NANOS;
+				}
+			}
+			
+			if(measuring && settledAt >= 0) {
+				latencies[latencyCount++] = (settledAt - stepStart) / NANOS_PER_MILLI;
+			}
+		}
+		
+		finish(result, eventNanos, frameNanos);
+		result.latencyMillis = new long[latencyCount];
+		System.arraycopy(latencies, 0, result.latencyMillis, 0, latencyCount);
+		Arrays.sort(result.latencyMillis);
+		return result;
+	}
+	
+	/**
+	 * Works out the heading for a fixed (seeded) set of orientations both ways, the platform as CompassManager used to call it.
+	 */
+	public KernelResult runKernelComparison() {
+		Random random = new Random(RANDOM_SEED);
+		KernelResult result = new KernelResult();
+		float[] gravity = new float[KERNEL_SAMPLES * 3];
+		float[] field = new float[KERNEL_SAMPLES * 3];
+		float[][] gravityVectors = new float[KERNEL_SAMPLES][3];
+		float[][] fieldVectors = new float[KERNEL_SAMPLES][3];
+		for(int i = 0; i < KERNEL_SAMPLES; i++) {
+			double yaw = random.nextDouble() * 2 * Math.PI;
+			double pitch = (random.nextDouble() * 2 - 1) * KERNEL_MAX_TILT;
+			double roll = (random.nextDouble() * 2 - 1) * KERNEL_MAX_TILT;
+			toDeviceAxes(yaw, pitch, roll, 0, 0, SensorManager.GRAVITY_EARTH, gravity, i * 3);
+			toDeviceAxes(yaw, pitch, roll, 0, HORIZONTAL_FIELD, -VERTICAL_FIELD, field, i * 3);
+			System.arraycopy(gravity, i * 3, gravityVectors[i], 0, 3);
+			System.arraycopy(field, i * 3, fieldVectors[i], 0, 3);
+		}
+		HeadingKernel kernel = new HeadingKernel();
+		float[] platformHeadings = new float[KERNEL_SAMPLES];
+		float[] kernelHeadings = new float[KERNEL_SAMPLES];
+		long platformTime = 0;
+		long kernelTime = 0;
+		
+		// the first round warms up both paths
+		for(int round = 0; round <= KERNEL_ROUNDS; round++) {
+			boolean measuring = round > 0;
+			if(measuring) {
+				startCounting();
+			}
+			long start = System.nanoTime();
+			for(int i = 0; i < KERNEL_SAMPLES; i++) {
+				float[] R = new float[16];
+				float[] I = new float[16];
+				SensorManager.getRotationMatrix(R, I, gravityVectors[i], fieldVectors[i]);
+				float[] orientation = new float[3];
+				SensorManager.getOrientation(R, orientation);
+				platformHeadings[i] = orientation[0];
+			}
+			if(measuring) {
+				platformTime += System.nanoTime() - start;
+				Debug.stopAllocCounting();
+				result.platformAllocationsPerSample += Debug.getThreadAllocCount();
+				startCounting();
+			}
+			start = System.nanoTime();
+			for(int i = 0, j = 0; i < KERNEL_SAMPLES; i++, j += 3) {
+				kernel.update(gravity[j], gravity[j + 1], gravity[j + 2], field[j], field[j + 1], field[j + 2]);
+				kernelHeadings[i] = kernel.getAzimuth();
+			}
+			if(measuring) {
+				kernelTime += System.nanoTime() - start;
+				Debug.stopAllocCounting();
+				result.kernelAllocationsPerSample += Debug.getThreadAllocCount();
+			}
+		}
+		
+		long total = (long)KERNEL_SAMPLES * KERNEL_ROUNDS;
+		result.samples = total;
+		result.platformNanos = platformTime / (double)total;
+		result.kernelNanos = kernelTime / (double)total;
+		result.platformAllocationsPerSample /= total;
+		result.kernelAllocationsPerSample /= total;
+		for(int i = 0; i < KERNEL_SAMPLES; i++) {
+			result.maxDifference = Math.max(result.maxDifference,
+					getBearingDistance((float)Math.toDegrees(platformHeadings[i]), (float)Math.toDegrees(kernelHeadings[i])));
+		}
+		return result;
+	}
+	
+	/**
+	 * Times BearingFilter.addSample() on a fixed (seeded) stream of noisy bearings around north.
+	 */
+	public FilterResult runFilterBenchmark() {
+		Random random = new Random(RANDOM_SEED);
+		float[] bearings = new float[FILTER_SAMPLES];
+		for(int i = 0; i < FILTER_SAMPLES; i++) {
+			float bearing = (float)random.nextGaussian() * FILTER_NOISE;
+			bearings[i] = bearing < 0 ? bearing + 360f : bearing;
+		}
+		FilterResult result = new FilterResult();
+		result.windows = FILTER_WINDOWS;
+		result.sampleNanos = new double[FILTER_WINDOWS.length];
+		result.allocationsPerSample = new double[FILTER_WINDOWS.length];
+		result.samples = (long)FILTER_SAMPLES * FILTER_ROUNDS;
+		float sink = 0f; // keeps the results in use, so the work cannot be skipped
+		
+		for(int w = 0; w < FILTER_WINDOWS.length; w++) {
+			BearingFilter filter = new BearingFilter(FILTER_WINDOWS[w]);
+			long time = 0;
+			long allocations = 0;
+			// the first round warms up
+			for(int round = 0; round <= FILTER_ROUNDS; round++) {
+				boolean measuring = round > 0;
+				if(measuring) {
+					startCounting();
+				}
+				long start = System.nanoTime();
+				for(int i = 0; i < FILTER_SAMPLES; i++) {
+					sink += filter.addSample(bearings[i]);
+				}
+				if(measuring) {
+					time += System.nanoTime() - start;
+					Debug.stopAllocCounting();
+					allocations += Debug.getThreadAllocCount();
+				}
+			}
+			result.sampleNanos[w] = time / (double)result.samples;
+			result.allocationsPerSample[w] = allocations / (double)result.samples;
+		}
+		if(Float.isNaN(sink)) {
+			result.samples = 0; // never, a bearing is always a number
+		}
+		return result;
+	}
+	
+	/**
+	 * Plays a recorded trace as fast as possible, running a frame for every 33ms of trace time.
+	 * A turn starts with the first reading after a frame that finds the sensors well away from the card,
+	 * and its latency runs from that reading's timestamp to the frame where the card has caught up.
+	 */
+	public Result runTrace(InputStream trace) throws IOException {
+		CompassManager compass = new CompassManager(context, false); // no saved calibration, so every run starts the same
+		CompassSurface surface = createSurface(compass);
+		SensorTraceReplayer replayer = new SensorTraceReplayer(trace, compass, false);
+		Result result = new Result();
+		long eventNanos = 0;
+		long frameNanos = 0;
+		long[] latencies = new long[64];
+		int latencyCount = 0;
+		long firstEventTime = -1; // the first reading since the last frame
+		long turnStart = -1; // the reading a turn started with, while the card catches up
+		
+		try {
+			replayer.open();
+			long nextFrameTime = replayer.getTimestamp();
+			startCounting();
+			while(true) {
+				long start = System.nanoTime();
+				boolean played = replayer.playNext();
+				eventNanos += System.nanoTime() - start;
+				if(!played) {
+					break;
+				}
+				result.events ++;
+				if(firstEventTime < 0) {
+					firstEventTime = replayer.getTimestamp();
+				}
+				
+				// run any frames that would have been drawn before this event
+				while(nextFrameTime <= replayer.getTimestamp()) {
+					start = System.nanoTime();
+					surface.update(nextFrameTime);
+					frameNanos += System.nanoTime() - start;
+					result.frames ++;
+					
+					// the frame has already brought the bearing up to date, so this adds no work to the next one
+					float distance = getBearingDistance(surface.getCardBearing(), compass.getPositiveBearing(false));
+					if(turnStart < 0 && distance > TRACE_TURN_DEGREES && firstEventTime >= 0) {
+						turnStart = firstEventTime;
+					} else if(turnStart >= 0 && distance < SETTLED_TOLERANCE) {
+						if(latencyCount == latencies.length) {
+							long[] grown = new long[latencyCount * 2]; // rare enough not to show in the allocation figures
+							System.arraycopy(latencies, 0, grown, 0, latencyCount);
+							latencies = grown;
+						}
+						latencies[latencyCount++] = (nextFrameTime - turnStart) / NANOS_PER_MILLI;
+						turnStart = -1;
+					}
+					firstEventTime = -1;
+					nextFrameTime += FRAME_PERIOD_NANOS;
+				}
+			}
+		} finally {
+			replayer.close();
+		}
+		
+		finish(result, eventNanos, frameNanos);
+		result.latencyMillis = new long[latencyCount];
+		System.arraycopy(latencies, 0, result.latencyMillis, 0, latencyCount);
+		Arrays.sort(result.latencyMillis);
+		return result;
+	}
+	
+	public PipelineBenchmark(Context context) {
+		this.context = context;
+	}
+}
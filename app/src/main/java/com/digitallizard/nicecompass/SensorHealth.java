@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * Counters describing how the sensor pipeline in CompassManager is behaving.
+ * Events can arrive from the sensor thread, a trace replay or the benchmark while the main thread resets,
+ * so every write takes the monitor of the counters it changes. Reads do not lock;
+ * the fields are volatile, and a report may be a few events out of step, which is fine for diagnostics.
+ */
+public class SensorHealth {
+	/** constants **/
+	private static final double NANOS_PER_MILLI = 1000000d;
+	private static final int GAP_MULTIPLE = 3; // an interval this many times the average counts as a gap
+	private static final int MIN_EVENTS_FOR_GAPS = 10; // the average interval is meaningless before this
+	
+	/**
+	 * Event timing for one sensor, written under its own monitor.
+	 */
+	public static class SensorCounters {
+		private final String name;
+		private volatile long events;
+		private volatile long firstTimestamp;
+		private volatile long lastTimestamp;
+		private volatile long lastInterval;
+		private volatile long intervalTotal;
+		private volatile long jitterTotal; // sum of the change between successive intervals
+		private volatile long maxInterval;
+		private volatile long gaps;
+		private volatile long accuracyChanges;
+		private volatile int accuracy = -1;
+		
+		synchronized void recordEvent(long timestampNanos) {
+			if(events > 0) {
+				long interval = timestampNanos - lastTimestamp;
+				if(events >= MIN_EVENTS_FOR_GAPS && interval > GAP_MULTIPLE * (intervalTotal / (events - 1))) {
+					gaps ++;
+				}
+				if(events > 1) {
+					jitterTotal += Math.abs(interval - lastInterval);
+				}
+				if(interval > maxInterval) {
+					maxInterval = interval;
+				}
+				intervalTotal += interval;
+				lastInterval = interval;
+			} else {
+				firstTimestamp = timestampNanos;
+			}
+			lastTimestamp = timestampNanos;
+			events ++;
+		}
+		
+		synchronized void recordAccuracy(int newAccuracy) {
+			if(newAccuracy != accuracy) {
+				accuracy = newAccuracy;
+				accuracyChanges ++;
+			}
+		}
+		
+		public long getEvents() {
+			return events;
+		}
+		
+		public long getGaps() {
+			return gaps;
+		}
+		
+		public int getAccuracy() {
+			return accuracy;
+		}
+		
+		public long getAccuracyChanges() {
+			return accuracyChanges;
+		}
+		
+		public float getRate() {
+			// events per second over the whole session
+			long span = lastTimestamp - firstTimestamp;
+			return span > 0 ? (float)((events - 1) * 1e9d / span) : 0f;
+		}
+		
+		public double getMeanIntervalMillis() {
+			return events > 1 ? intervalTotal / NANOS_PER_MILLI / (events - 1) : 0d;
+		}
+		
+		public double getMeanJitterMillis() {
+			return events > 2 ? jitterTotal / NANOS_PER_MILLI / (events - 2) : 0d;
+		}
+		
+		public double getMaxIntervalMillis() {
+			return maxInterval / NANOS_PER_MILLI;
+		}
+		
+		synchronized void reset() {
+			events = 0;
+			firstTimestamp = 0;
+			lastTimestamp = 0;
+			lastInterval = 0;
+			intervalTotal = 0;
+			jitterTotal = 0;
+			maxInterval = 0;
+			gaps = 0;
+			accuracyChanges = 0;
+			accuracy = -1;
+		}
+		
+		void appendReport(StringBuilder report) {
+			report.append(name).append(": ").append(events).append(" events, ")
+					.append(String.format("%.1f", getRate())).append(" Hz, interval mean ")
+					.append(String.format("%.1f", getMeanIntervalMillis())).append("ms max ")
+					.append(String.format("%.1f", getMaxIntervalMillis())).append("ms, jitter ")
+					.append(String.format("%.2f", getMeanJitterMillis())).append("ms, gaps ").append(gaps)
+					.append(", accuracy ").append(accuracy).append(" (").append(accuracyChanges).append(" changes)\n");
+		}
+		
+		SensorCounters(String name) {
+			this.name = name;
+		}
+	}
+	
+	/** variables **/
+	private final SensorCounters magnetometer;
+	private final SensorCounters accelerometer;
+	private volatile long orientationRecomputes;
+	private volatile long orientationCacheHits;
+	private volatile long interferenceToggles;
+	
+	synchronized void recordOrientationRecompute() {
+		orientationRecomputes ++;
+	}
+	
+	synchronized void recordOrientationCacheHit() {
+		orientationCacheHits ++;
+	}
+	
+	synchronized void recordInterferenceToggle() {
+		interferenceToggles ++;
+	}
+	
+	public SensorCounters getMagnetometer() {
+		return magnetometer;
+	}
+	
+	public SensorCounters getAccelerometer() {
+		return accelerometer;
+	}
+	
+	public long getOrientationRecomputes() {
+		return orientationRecomputes;
+	}
+	
+	public long getOrientationCacheHits() {
+		return orientationCacheHits;
+	}
+	
+	public long getInterferenceToggles() {
+		return interferenceToggles;
+	}
+	
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		magnetometer.appendReport(report);
+		accelerometer.appendReport(report);
+		report.append("orientation: ").append(orientationRecomputes).append(" recomputed, ")
+				.append(orientationCacheHits).append(" cached\n");
+		report.append("interference toggles: ").append(interferenceToggles).append('\n');
+		return report.toString();
+	}
+	
+	synchronized void reset() {
+		magnetometer.reset();
+		accelerometer.reset();
+		orientationRecomputes = 0;
+		orientationCacheHits = 0;
+		interferenceToggles = 0;
+	}
+	
+	public SensorHealth() {
+		magnetometer = new SensorCounters("magnetometer");
+		accelerometer = new SensorCounters("accelerometer");
+	}
+}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The binary layout shared by SensorTraceRecorder and SensorTraceReplayer.
+ * A trace is a header followed by records. Each record is a one byte type, the time since
+ * the previous record in microseconds as a varint, then the payload for that type.
+ */
+final class SensorTrace {
+	static final int MAGIC = 0x4e435452; // "NCTR"
+	static final int VERSION = 1;
+	
+	static final int RECORD_MAGNETIC_FIELD = 1; // three floats, micro tesla
+	static final int RECORD_ACCELEROMETER = 2; // three floats, m/s^2
+	static final int RECORD_LOCATION = 3; // latitude and longitude as doubles, altitude and accuracy as floats (NaN if missing), fix time as a long
+	
+	static void writeVarLong(DataOutput out, long value) throws IOException {
+		// seven bits at a time, the top bit flags that more bytes follow
+		while((value & ~0x7fl) != 0) {
+			out.writeByte((int)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+	
+	static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		while(true) {
+			int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+			if(shift > 63) {
+				throw new IOException("malformed varint in trace");
+			}
+		}
+	}
+	
+	private SensorTrace() {
+	}
+}
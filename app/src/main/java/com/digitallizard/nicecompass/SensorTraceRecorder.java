@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.hardware.Sensor;
+import android.location.Location;
+import android.util.Log;
+
+/**
+ * Writes the raw sensor readings and location fixes seen by CompassManager to a trace file,
+ * so a session can be played back later with SensorTraceReplayer.
+ */
+public class SensorTraceRecorder {
+	/** constants **/
+	private static final int BUFFER_SIZE = 16 * 1024;
+	
+	/** variables **/
+	private final DataOutputStream output;
+	private long lastTimestamp; // System.nanoTime() of the previous record
+	private boolean failed;
+	
+	private void writeHeader(int type, long timestampNanos) throws IOException {
+		// store the time since the last record, never negative
+		long delta = (timestampNanos - lastTimestamp) / 1000l;
+		if(delta < 0) {
+			delta = 0;
+		}
+		lastTimestamp += delta * 1000l;
+		output.writeByte(type);
+		SensorTrace.writeVarLong(output, delta);
+	}
+	
+	private void fail(IOException e) {
+		// stop writing rather than spamming the log on every sensor event
+		Log.w("compass", "sensor trace recording failed", e);
+		failed = true;
+	}
+	
+	public synchronized void recordSensor(int sensorType, long timestampNanos, float[] values) {
+		int type;
+		if(sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
+			type = SensorTrace.RECORD_MAGNETIC_FIELD;
+		} else if(sensorType == Sensor.TYPE_ACCELEROMETER) {
+			type = SensorTrace.RECORD_ACCELEROMETER;
+		} else {
+			return; // we have nothing to replay this into
+		}
+		if(failed) {
+			return;
+		}
+		try {
+			writeHeader(type, timestampNanos);
+			output.writeFloat(values[0]);
+			output.writeFloat(values[1]);
+			output.writeFloat(values[2]);
+		} catch(IOException e) {
+			fail(e);
+		}
+	}
+	
+	public synchronized void recordLocation(long timestampNanos, Location location) {
+		if(failed) {
+			return;
+		}
+		try {
+			writeHeader(SensorTrace.RECORD_LOCATION, timestampNanos);
+			output.writeDouble(location.getLatitude());
+			output.writeDouble(location.getLongitude());
+			output.writeFloat(location.hasAltitude() ? (float)location.getAltitude() : Float.NaN);
+			output.writeFloat(location.hasAccuracy() ? location.getAccuracy() : Float.NaN);
+			output.writeLong(location.getTime());
+		} catch(IOException e) {
+			fail(e);
+		}
+	}
+	
+	public synchronized void close() {
+		try {
+			output.close();
+		} catch(IOException e) {
+			Log.w("compass", "could not close sensor trace", e);
+		}
+	}
+	
+	public SensorTraceRecorder(File file) throws IOException {
+		output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		output.writeInt(SensorTrace.MAGIC);
+		output.writeByte(SensorTrace.VERSION);
+		lastTimestamp = System.nanoTime();
+	}
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.hardware.Sensor;
+import android.location.Location;
+import android.util.Log;
+
+/**
+ * Feeds a trace written by SensorTraceRecorder back into a CompassManager,
+ * either with the original timing or as fast as possible.
+ * Timestamps are moved onto the current System.nanoTime() clock so the rest of the pipeline sees a live session.
+ */
+public class SensorTraceReplayer implements Runnable {
+	/** constants **/
+	public static final String LOCATION_PROVIDER = "replay";
+	private static final int BUFFER_SIZE = 16 * 1024;
+	
+	/** variables **/
+	private final InputStream source;
+	private final CompassManager compass;
+	private final boolean realTime;
+	private final float[] values; // reused for every reading, CompassManager copies the values it keeps
+	private DataInputStream input;
+	private long timestamp; // the current record's time, on the System.nanoTime() clock
+	private volatile boolean isRunning;
+	private long eventCount;
+	
+	private void sleepUntil(long timestampNanos) {
+		long remaining = timestampNanos - System.nanoTime();
+		if(remaining <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(remaining / 1000000l, (int)(remaining % 1000000l));
+		} catch (InterruptedException e) {
+			// do nothing, the loop will check if it should stop
+		}
+	}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	public long getEventCount() {
+		return eventCount;
+	}
+	
+	public void stop() {
+		isRunning = false;
+	}
+	
+	/**
+	 * Reads the trace header, this must be called before playNext().
+	 */
+	public void open() throws IOException {
+		input = new DataInputStream(new BufferedInputStream(source, BUFFER_SIZE));
+		if(input.readInt() != SensorTrace.MAGIC || input.readUnsignedByte() != SensorTrace.VERSION) {
+			throw new IOException("not a sensor trace");
+		}
+		timestamp = System.nanoTime();
+		eventCount = 0;
+	}
+	
+	/**
+	 * Plays the next record into the compass without any delay.
+	 * Returns false once the end of the trace has been reached.
+	 */
+	public boolean playNext() throws IOException {
+		int type;
+		try {
+			type = input.readUnsignedByte();
+		} catch(EOFException e) {
+			return false; // the end of the trace
+		}
+		timestamp += SensorTrace.readVarLong(input) * 1000l;
+		if(realTime) {
+			sleepUntil(timestamp);
+		}
+		
+		switch(type) {
+		case SensorTrace.RECORD_MAGNETIC_FIELD:
+		case SensorTrace.RECORD_ACCELEROMETER:
+			values[0] = input.readFloat();
+			values[1] = input.readFloat();
+			values[2] = input.readFloat();
+			int sensorType = (type == SensorTrace.RECORD_MAGNETIC_FIELD) ? Sensor.TYPE_MAGNETIC_FIELD : Sensor.TYPE_ACCELEROMETER;
+			compass.handleSensorValues(sensorType, values, timestamp);
+			break;
+		case SensorTrace.RECORD_LOCATION:
+			Location location = new Location(LOCATION_PROVIDER);
+			location.setLatitude(input.readDouble());
+			location.setLongitude(input.readDouble());
+			float altitude = input.readFloat();
+			if(!Float.isNaN(altitude)) {
+				location.setAltitude(altitude);
+			}
+			float accuracy = input.readFloat();
+			if(!Float.isNaN(accuracy)) {
+				location.setAccuracy(accuracy);
+			}
+			location.setTime(input.readLong());
+			compass.handleLocation(location);
+			break;
+		default:
+			throw new IOException("unknown record type " + type + " in trace");
+		}
+		eventCount ++;
+		return true;
+	}
+	
+	public void close() throws IOException {
+		if(input != null) {
+			input.close();
+		} else {
+			source.close();
+		}
+	}
+	
+	/**
+	 * Replays the whole trace on the calling thread, returning the number of records played.
+	 */
+	public long replay() throws IOException {
+		try {
+			open();
+			while(isRunning && playNext()) {
+				// keep going until the end of the trace or we are stopped
+			}
+		} finally {
+			close();
+		}
+		return eventCount;
+	}
+	
+	public void run() {
+		try {
+			replay();
+		} catch(IOException e) {
+			Log.w("compass", "sensor trace replay failed", e);
+		}
+	}
+	
+	public SensorTraceReplayer(InputStream source, CompassManager compass, boolean realTime) {
+		this.source = source;
+		this.compass = compass;
+		this.realTime = realTime;
+		values = new float[3];
+		isRunning = true; // set here so a stop() before the thread starts is not lost
+	}
+}
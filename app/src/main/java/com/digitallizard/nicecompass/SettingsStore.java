@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * An in memory copy of a preferences file, read once and written back in the background.
+ * Values only count as changed if they differ from what is held, and everything changed between
+ * writes goes to disk together, so calling flush() when nothing has changed costs nothing.
+ * There is one store per file for the whole process.
+ */
+public class SettingsStore {
+	/** constants **/
+	private static final Object REMOVED = new Object(); // marks a key to be removed in the pending changes
+	
+	/** variables **/
+	private static final HashMap<String, SettingsStore> instances = new HashMap<String, SettingsStore>();
+	
+	private final SharedPreferences preferences;
+	private final HashMap<String, Object> values;
+	private final HashMap<String, Object> changes; // waiting to be written
+	private final Runnable writer;
+	private boolean writing; // a writer thread is running, it picks up anything changed meanwhile
+	
+	public static synchronized SettingsStore getInstance(Context context, String fileName) {
+		SettingsStore store = instances.get(fileName);
+		if(store == null) {
+			store = new SettingsStore(context.getApplicationContext().getSharedPreferences(fileName, Context.MODE_PRIVATE));
+			instances.put(fileName, store);
+		}
+		return store;
+	}
+	
+	private void put(String key, Object value) {
+		if(value == null) {
+			remove(key);
+			return;
+		}
+		if(value.equals(values.get(key))) {
+			return; // nothing to write
+		}
+		values.put(key, value);
+		changes.put(key, value);
+	}
+	
+	private Editor edit(Map<String, Object> batch) {
+		Editor editor = preferences.edit();
+		for(Map.Entry<String, Object> change : batch.entrySet()) {
+			String key = change.getKey();
+			Object value = change.getValue();
+			if(value == REMOVED) {
+				editor.remove(key);
+			} else if(value instanceof Boolean) {
+				editor.putBoolean(key, (Boolean)value);
+			} else if(value instanceof Float) {
+				editor.putFloat(key, (Float)value);
+			} else if(value instanceof Integer) {
+				editor.putInt(key, (Integer)value);
+			} else if(value instanceof Long) {
+				editor.putLong(key, (Long)value);
+			} else {
+				editor.putString(key, (String)value);
+			}
+		}
+		return editor;
+	}
+	
+	private void write() {
+		while(true) {
+			HashMap<String, Object> batch;
+			synchronized(this) {
+				if(changes.isEmpty()) {
+					writing = false;
+					return;
+				}
+				batch = new HashMap<String, Object>(changes);
+				changes.clear();
+			}
+			
+			// we are already off the main thread, so commit() is fine and tells us if it worked
+			if(!edit(batch).commit()) {
+				Log.w("compass", "could not write the settings, will try again at the next flush");
+				synchronized(this) {
+					// keep anything newer that came in while writing
+					for(Map.Entry<String, Object> change : batch.entrySet()) {
+						if(!changes.containsKey(change.getKey())) {
+							changes.put(change.getKey(), change.getValue());
+						}
+					}
+					writing = false;
+				}
+				return;
+			}
+		}
+	}
+	
+	public synchronized boolean contains(String key) {
+		return values.containsKey(key);
+	}
+	
+	public synchronized boolean getBoolean(String key, boolean defaultValue) {
+		Object value = values.get(key);
+		return value instanceof Boolean ? (Boolean)value : defaultValue;
+	}
+	
+	public synchronized float getFloat(String key, float defaultValue) {
+		Object value = values.get(key);
+		return value instanceof Float ? (Float)value : defaultValue;
+	}
+	
+	public synchronized String getString(String key, String defaultValue) {
+		Object value = values.get(key);
+		return value instanceof String ? (String)value : defaultValue;
+	}
+	
+	public synchronized void putBoolean(String key, boolean value) {
+		put(key, Boolean.valueOf(value));
+	}
+	
+	public synchronized void putFloat(String key, float value) {
+		put(key, Float.valueOf(value));
+	}
+	
+	public synchronized void putString(String key, String value) {
+		put(key, value);
+	}
+	
+	public synchronized void remove(String key) {
+		if(values.remove(key) != null) {
+			changes.put(key, REMOVED);
+		}
+	}
+	
+	/**
+	 * Writes anything that has changed in the background and returns straight away.
+	 * From gingerbread this is apply(), which the platform finishes before the activity stops,
+	 * before that it is a thread of our own, which a kill straight after onPause can cut short.
+	 */
+	public synchronized void flush() {
+		if(changes.isEmpty() || writing) {
+			return; // nothing to do, or the running writer will pick it up
+		}
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			edit(changes).apply();
+			changes.clear();
+			return;
+		}
+		writing = true;
+		new Thread(writer, "settings writer").start();
+	}
+	
+	private SettingsStore(SharedPreferences preferences) {
+		this.preferences = preferences;
+		// the one read of the file, everything after comes from memory
+		values = new HashMap<String, Object>(preferences.getAll());
+		changes = new HashMap<String, Object>();
+		writer = new Runnable() {
+			public void run() {
+				write();
+			}
+		};
+	}
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * Works out whether the device is lying still from the spread of its accelerometer readings.
+ * The device only counts as still once the readings have stayed quiet for the whole timeout,
+ * but a single reading that jumps away from the average, or a turn seen by the magnetometer, ends it at once.
+ * Turning a device that lies flat hardly moves the accelerometer, which is why the field is watched too.
+ * While still the field is compared with where it was when stillness began, so a slow turn adds up and ends it.
+ * Samples are expected from one thread, the state can be read from any.
+ */
+public class StillnessDetector {
+	/** constants **/
+	private static final float MEAN_SMOOTHING = 0.1f; // the weight given to the newest reading
+	private static final float STILL_ACCEL_VARIANCE = 0.05f * 0.05f; // (m/s^2)^2, a phone on a table is well under this
+	private static final float MOVING_ACCEL_DEVIATION = 0.25f; // m/s^2, a single reading this far out is movement
+	private static final float MOVING_FIELD_DEVIATION = 2f; // micro tesla, around six degrees of turn with a weak horizontal field
+	
+	/** variables **/
+	private final long timeoutNanos;
+	private boolean hasAccel;
+	private final float[] accelMean;
+	private float accelVariance;
+	private boolean hasField;
+	private final float[] fieldMean; // frozen while still, so it anchors the comparison
+	private long quietSince; // when the readings last moved
+	private volatile boolean still;
+	
+	private static float squaredDistance(float[] mean, float[] values) {
+		float dx = values[0] - mean[0];
+		float dy = values[1] - mean[1];
+		float dz = values[2] - mean[2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+	
+	private static void addToMean(float[] mean, float[] values) {
+		mean[0] += (values[0] - mean[0]) * MEAN_SMOOTHING;
+		mean[1] += (values[1] - mean[1]) * MEAN_SMOOTHING;
+		mean[2] += (values[2] - mean[2]) * MEAN_SMOOTHING;
+	}
+	
+	private boolean moved(long timestampNanos) {
+		quietSince = timestampNanos;
+		if(still) {
+			still = false;
+			return true;
+		}
+		return false;
+	}
+	
+	public boolean isStill() {
+		return still;
+	}
+	
+	/**
+	 * Adds an accelerometer reading in m/s^2, returns true if this changed whether the device is still.
+	 */
+	public boolean addAcceleration(float[] values, long timestampNanos) {
+		if(!hasAccel) {
+			System.arraycopy(values, 0, accelMean, 0, 3);
+			accelVariance = 0f;
+			hasAccel = true;
+			return moved(timestampNanos);
+		}
+		float deviation = squaredDistance(accelMean, values);
+		addToMean(accelMean, values);
+		accelVariance += (deviation - accelVariance) * MEAN_SMOOTHING;
+		if(deviation > MOVING_ACCEL_DEVIATION * MOVING_ACCEL_DEVIATION || accelVariance > STILL_ACCEL_VARIANCE) {
+			return moved(timestampNanos);
+		}
+		if(!still && timestampNanos - quietSince >= timeoutNanos) {
+			still = true;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Adds a magnetometer reading in micro tesla, returns true if this ended a still period.
+	 */
+	public boolean addMagneticField(float[] values, long timestampNanos) {
+		if(!hasField) {
+			System.arraycopy(values, 0, fieldMean, 0, 3);
+			hasField = true;
+			return moved(timestampNanos);
+		}
+		float deviation = squaredDistance(fieldMean, values);
+		if(deviation > MOVING_FIELD_DEVIATION * MOVING_FIELD_DEVIATION) {
+			// start averaging again from where the device has turned to
+			System.arraycopy(values, 0, fieldMean, 0, 3);
+			return moved(timestampNanos);
+		}
+		if(!still) {
+			// only follow the field until the device settles, then hold it so slow turns add up
+			addToMean(fieldMean, values);
+		}
+		return false;
+	}
+	
+	public void reset() {
+		hasAccel = false;
+		hasField = false;
+		still = false;
+	}
+	
+	public StillnessDetector(long timeoutNanos) {
+		this.timeoutNanos = timeoutNanos;
+		accelMean = new float[3];
+		fieldMean = new float[3];
+	}
+}
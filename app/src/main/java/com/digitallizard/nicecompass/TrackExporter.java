@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Converts a track log to GPX in a single pass, writing every fix in it.
+ * The simplified track that GPSManager logs alongside the full one is what this is meant for,
+ * so the export only reads the few fixes that are kept rather than the whole track.
+ */
+public class TrackExporter {
+	/** constants **/
+	private static final int BUFFER_SIZE = 16 * 1024;
+	
+	/** variables **/
+	private long pointCount;
+	private final SimpleDateFormat timeFormat;
+	private final Date date;
+	
+	private void writePoint(Writer writer, TrackReader reader) throws IOException {
+		writer.write("<trkpt lat=\"");
+		writer.write(String.format(Locale.US, "%.7f", reader.getLatitude()));
+		writer.write("\" lon=\"");
+		writer.write(String.format(Locale.US, "%.7f", reader.getLongitude()));
+		writer.write("\">");
+		if(reader.hasAltitude()) {
+			writer.write("<ele>");
+			writer.write(String.format(Locale.US, "%.1f", reader.getAltitude()));
+			writer.write("</ele>");
+		}
+		date.setTime(reader.getTime());
+		writer.write("<time>");
+		writer.write(timeFormat.format(date));
+		writer.write("</time></trkpt>\n");
+	}
+	
+	/**
+	 * Writes the track as GPX.
+	 */
+	public void exportGpx(InputStream track, OutputStream output) throws IOException {
+		pointCount = 0;
+		TrackReader reader = new TrackReader(track);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"), BUFFER_SIZE);
+		try {
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<gpx version=\"1.1\" creator=\"NiceCompass\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n");
+			writer.write("<trk><trkseg>\n");
+			while(reader.next()) {
+				writePoint(writer, reader);
+				pointCount ++;
+			}
+			writer.write("</trkseg></trk>\n</gpx>\n");
+		} finally {
+			reader.close();
+			writer.close();
+		}
+	}
+	
+	public long getPointCount() {
+		return pointCount;
+	}
+	
+	public TrackExporter() {
+		timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+		timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		date = new Date();
+	}
+}
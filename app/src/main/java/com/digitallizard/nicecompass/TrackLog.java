@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary layout shared by TrackLogger and TrackReader.
+ * A track is a header followed by records, and is only ever appended to. Each record is a one byte type,
+ * a one byte set of flags for the optional fields, then the fields as varints:
+ * time in milliseconds, latitude and longitude in 1e-7 degrees, altitude in decimeters if present,
+ * accuracy in decimeters if present and the bearing in tenths of a degree if present.
+ * A keyframe holds the time, position and altitude as they are, a delta holds them as the (zigzag encoded)
+ * change since the previous record. A keyframe for a fix without altitude still carries the altitude that
+ * later deltas build on, flagged as a baseline, so a session never builds on the one before it.
+ * Every logging session starts with a keyframe, and more follow regularly so rounding never builds up.
+ * There is nothing to find the start of a record by, so a damaged record ends the track for a reader,
+ * or if the damage happens to parse, garbles what follows it.
+ */
+final class TrackLog {
+	static final int MAGIC = 0x4e43544b; // "NCTK"
+	static final int VERSION = 1;
+	
+	static final int RECORD_KEYFRAME = 1;
+	static final int RECORD_DELTA = 2;
+	
+	static final int FLAG_ALTITUDE = 1;
+	static final int FLAG_ACCURACY = 2;
+	static final int FLAG_BEARING = 4;
+	static final int FLAG_ALTITUDE_BASELINE = 8; // a keyframe without altitude holds the altitude deltas build on
+	
+	static final int MAX_RECORD_SIZE = 2 + 10 * 6; // type, flags and six varints of up to ten bytes
+	
+	static final double E7 = 10000000d;
+	
+	static long zigzag(long value) {
+		// small negative numbers become small positive ones
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	static void putVarLong(ByteBuffer buffer, long value) {
+		// the same layout as SensorTrace.writeVarLong()
+		while((value & ~0x7fl) != 0) {
+			buffer.put((byte)((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+	}
+	
+	static long readSignedVarLong(DataInput in) throws IOException {
+		return unzigzag(SensorTrace.readVarLong(in));
+	}
+	
+	private TrackLog() {
+	}
+}
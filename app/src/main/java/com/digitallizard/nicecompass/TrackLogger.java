@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.location.Location;
+import android.util.Log;
+
+/**
+ * Appends fixes to a track file in the TrackLog format.
+ * Fixes are encoded straight into a buffer by the caller, which only ever takes a short lock,
+ * and a background thread writes the buffer out to the file. If the writer falls a long way behind
+ * fixes are dropped rather than making the caller wait.
+ */
+public class TrackLogger implements Runnable {
+	/** constants **/
+	private static final int BUFFER_SIZE = 32 * 1024;
+	private static final int FLUSH_THRESHOLD = 4 * 1024; // wake the writer early once this much is waiting
+	private static final long FLUSH_INTERVAL_MILLIS = 5l * 1000l; // otherwise write out at least this often
+	private static final int KEYFRAME_INTERVAL = 256; // records between keyframes
+	
+	/** variables **/
+	private final FileOutputStream stream;
+	private final FileChannel channel;
+	private final Thread writerThread;
+	private ByteBuffer pending; // filled by log(), guarded by this
+	private ByteBuffer writing; // only touched by the writer thread
+	private boolean closed;
+	private Runnable closedCallback; // run by the writer once the file is complete
+	private volatile boolean failed;
+	private long recordCount;
+	private long droppedCount;
+	
+	// the previous record, deltas are taken from these
+	private int recordsSinceKeyframe = KEYFRAME_INTERVAL; // start with a keyframe
+	private long lastTime;
+	private long lastLatitude;
+	private long lastLongitude;
+	private long lastAltitude;
+	
+	/**
+	 * Logs a fix along with the compass bearing at the time, in degrees from true north, or NaN if it is not known.
+	 */
+	public void log(Location location, float bearing) {
+		log(location.getTime(), location.getLatitude(), location.getLongitude(),
+				location.hasAltitude(), location.getAltitude(), location.hasAccuracy(), location.getAccuracy(), bearing);
+	}
+	
+	public synchronized void log(long timeMillis, double latitude, double longitude, boolean hasAltitude, double altitude,
+			boolean hasAccuracy, float accuracy, float bearing) {
+		if(closed || failed) {
+			return;
+		}
+		if(pending.remaining() < TrackLog.MAX_RECORD_SIZE) {
+			droppedCount ++; // the writer is stuck, do not hold up the caller
+			return;
+		}
+		
+		long latitudeE7 = Math.round(latitude * TrackLog.E7);
+		long longitudeE7 = Math.round(longitude * TrackLog.E7);
+		long altitudeDm = hasAltitude ? Math.round(altitude * 10d) : lastAltitude;
+		boolean hasBearing = !Float.isNaN(bearing);
+		int flags = (hasAltitude ? TrackLog.FLAG_ALTITUDE : 0) | (hasAccuracy ? TrackLog.FLAG_ACCURACY : 0)
+				| (hasBearing ? TrackLog.FLAG_BEARING : 0);
+		
+		if(recordsSinceKeyframe >= KEYFRAME_INTERVAL) {
+			pending.put((byte)TrackLog.RECORD_KEYFRAME);
+			// always give the reader the altitude the following deltas build on
+			pending.put((byte)(hasAltitude ? flags : flags | TrackLog.FLAG_ALTITUDE_BASELINE));
+			TrackLog.putVarLong(pending, TrackLog.zigzag(timeMillis));
+			TrackLog.putVarLong(pending, TrackLog.zigzag(latitudeE7));
+			TrackLog.putVarLong(pending, TrackLog.zigzag(longitudeE7));
+			TrackLog.putVarLong(pending, TrackLog.zigzag(altitudeDm));
+			recordsSinceKeyframe = 0;
+		} else {
+			pending.put((byte)TrackLog.RECORD_DELTA);
+			pending.put((byte)flags);
+			TrackLog.putVarLong(pending, TrackLog.zigzag(timeMillis - lastTime));
+			TrackLog.putVarLong(pending, TrackLog.zigzag(latitudeE7 - lastLatitude));
+			TrackLog.putVarLong(pending, TrackLog.zigzag(longitudeE7 - lastLongitude));
+			if(hasAltitude) {
+				TrackLog.putVarLong(pending, TrackLog.zigzag(altitudeDm - lastAltitude));
+			}
+			recordsSinceKeyframe ++;
+		}
+		if(hasAccuracy) {
+			TrackLog.putVarLong(pending, Math.round(Math.max(0f, accuracy) * 10f));
+		}
+		if(hasBearing) {
+			float positive = bearing % 360f;
+			if(positive < 0) {
+				positive += 360f;
+			}
+			TrackLog.putVarLong(pending, Math.round(positive * 10f) % 3600);
+		}
+		lastTime = timeMillis;
+		lastLatitude = latitudeE7;
+		lastLongitude = longitudeE7;
+		lastAltitude = altitudeDm;
+		recordCount ++;
+		
+		if(pending.position() >= FLUSH_THRESHOLD) {
+			notify();
+		}
+	}
+	
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+	
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+	
+	/**
+	 * Tells the writer to write out anything waiting and close the file, without waiting for it.
+	 */
+	public void close() {
+		close(null);
+	}
+	
+	/**
+	 * Like close(), and the writer thread runs the callback once the file is complete, even if writing failed.
+	 */
+	public synchronized void close(Runnable onClosed) {
+		closedCallback = onClosed;
+		closed = true;
+		notify();
+	}
+	
+	public void run() {
+		try {
+			boolean finished = false;
+			while(!finished) {
+				synchronized(this) {
+					if(!closed && pending.position() < FLUSH_THRESHOLD) {
+						try {
+							wait(FLUSH_INTERVAL_MILLIS);
+						} catch (InterruptedException e) {
+							// do nothing, just write what there is
+						}
+					}
+					finished = closed;
+					// swap the buffers so logging carries on while this one is written
+					ByteBuffer swap = pending;
+					pending = writing;
+					writing = swap;
+				}
+				writing.flip();
+				while(writing.hasRemaining()) {
+					channel.write(writing);
+				}
+				writing.clear();
+			}
+		} catch(IOException e) {
+			Log.w("compass", "track logging failed", e);
+			failed = true;
+		} finally {
+			try {
+				stream.close();
+			} catch(IOException e) {
+				Log.w("compass", "could not close the track log", e);
+			}
+			Runnable callback;
+			synchronized(this) {
+				callback = closedCallback;
+			}
+			if(callback != null) {
+				callback.run();
+			}
+		}
+	}
+	
+	/**
+	 * Opens the file for appending, creating it if needed, and starts the writer thread.
+	 */
+	public TrackLogger(File file) throws IOException {
+		boolean isNew = !file.exists() || file.length() == 0;
+		stream = new FileOutputStream(file, true);
+		channel = stream.getChannel();
+		pending = ByteBuffer.allocate(BUFFER_SIZE);
+		writing = ByteBuffer.allocate(BUFFER_SIZE);
+		if(isNew) {
+			pending.putInt(TrackLog.MAGIC);
+			pending.put((byte)TrackLog.VERSION);
+		}
+		writerThread = new Thread(this, "track logger");
+		writerThread.start();
+	}
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a track written by TrackLogger one fix at a time, so even a long track takes no more memory than one fix.
+ * Call next() to move to each fix, then read it with the getters.
+ */
+public class TrackReader {
+	/** constants **/
+	private static final int BUFFER_SIZE = 16 * 1024;
+	
+	/** variables **/
+	private final DataInputStream input;
+	private boolean hasKeyframe;
+	private long time;
+	private long latitude; // 1e-7 degrees
+	private long longitude;
+	private long altitude; // decimeters
+	private long accuracy; // decimeters
+	private long bearing; // tenths of a degree
+	private int flags;
+	
+	/**
+	 * Moves on to the next fix, returns false at the end of the track.
+	 * A fix cut short at the end, e.g. by a crash while logging, is treated as the end.
+	 * A damaged record throws, there is no way to find the next good one.
+	 */
+	public boolean next() throws IOException {
+		int type = input.read();
+		if(type < 0) {
+			return false;
+		}
+		try {
+			flags = input.readUnsignedByte();
+			if(type == TrackLog.RECORD_KEYFRAME) {
+				time = TrackLog.readSignedVarLong(input);
+				latitude = TrackLog.readSignedVarLong(input);
+				longitude = TrackLog.readSignedVarLong(input);
+				if(hasAltitude() || (flags & TrackLog.FLAG_ALTITUDE_BASELINE) != 0) {
+					altitude = TrackLog.readSignedVarLong(input);
+				}
+				hasKeyframe = true;
+			} else if(type == TrackLog.RECORD_DELTA) {
+				if(!hasKeyframe) {
+					throw new IOException("track delta before any keyframe");
+				}
+				time += TrackLog.readSignedVarLong(input);
+				latitude += TrackLog.readSignedVarLong(input);
+				longitude += TrackLog.readSignedVarLong(input);
+				if(hasAltitude()) {
+					altitude += TrackLog.readSignedVarLong(input);
+				}
+			} else {
+				throw new IOException("unknown track record type " + type);
+			}
+			if(hasAccuracy()) {
+				accuracy = SensorTrace.readVarLong(input);
+			}
+			if(hasBearing()) {
+				bearing = SensorTrace.readVarLong(input);
+			}
+		} catch(EOFException e) {
+			return false;
+		}
+		return true;
+	}
+	
+	public long getTime() {
+		return time;
+	}
+	
+	public double getLatitude() {
+		return latitude / TrackLog.E7;
+	}
+	
+	public double getLongitude() {
+		return longitude / TrackLog.E7;
+	}
+	
+	public boolean hasAltitude() {
+		return (flags & TrackLog.FLAG_ALTITUDE) != 0;
+	}
+	
+	public double getAltitude() {
+		return altitude / 10d;
+	}
+	
+	public boolean hasAccuracy() {
+		return (flags & TrackLog.FLAG_ACCURACY) != 0;
+	}
+	
+	public float getAccuracy() {
+		return accuracy / 10f;
+	}
+	
+	public boolean hasBearing() {
+		return (flags & TrackLog.FLAG_BEARING) != 0;
+	}
+	
+	public float getBearing() {
+		return bearing / 10f;
+	}
+	
+	public void close() throws IOException {
+		input.close();
+	}
+	
+	public TrackReader(InputStream stream) throws IOException {
+		input = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+		if(input.readInt() != TrackLog.MAGIC || input.readUnsignedByte() != TrackLog.VERSION) {
+			throw new IOException("not a track log");
+		}
+	}
+}
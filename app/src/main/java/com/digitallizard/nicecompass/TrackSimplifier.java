@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * Simplifies a track as it streams past, keeping only the fixes needed to stay within a tolerance of the original.
+ * From each kept fix a cone of directions is narrowed by every following fix, so that a line in any direction
+ * left in the cone passes close to all of them. When a fix falls outside the cone, or doubles back towards the
+ * kept fix, the one before it is kept and a new cone starts there. Fixes close to the last kept fix are skipped
+ * until the first one far enough away to start a cone.
+ * The cone and the doubling back are each held to the tolerance over root 2, so together no fix ends up further
+ * than the tolerance from the simplified track.
+ * This needs a fixed handful of fields however long the track, unlike Douglas-Peucker which needs the whole track.
+ * 
+ * Feed fixes to add(), and call finish() at the end. Whenever either returns true a fix has been kept,
+ * and can be read with the getters until the next call.
+ */
+public class TrackSimplifier {
+	/** constants **/
+	private static final double METERS_PER_DEGREE = 6371008.8d * Math.PI / 180d;
+	
+	/** variables **/
+	private final double tolerance; // over root 2, see above
+	
+	private boolean hasAnchor;
+	private double anchorLatitude; // the last kept fix
+	private double anchorLongitude;
+	private double anchorLongitudeScale; // meters per degree of longitude at the anchor
+	
+	private boolean hasCone;
+	private double coneReference; // the direction the cone is measured from, radians
+	private double coneLow; // the cone, relative to the reference
+	private double coneHigh;
+	private double coneReach; // the furthest any fix has got from the anchor
+	
+	private boolean hasPrevious;
+	private long previousTime;
+	private double previousLatitude;
+	private double previousLongitude;
+	private double previousAltitude;
+	private boolean previousHasAltitude;
+	
+	private long keptTime;
+	private double keptLatitude;
+	private double keptLongitude;
+	private double keptAltitude;
+	private boolean keptHasAltitude;
+	private long keptCount;
+	
+	private void keep(long time, double latitude, double longitude, boolean hasAltitude, double altitude) {
+		keptTime = time;
+		keptLatitude = latitude;
+		keptLongitude = longitude;
+		keptHasAltitude = hasAltitude;
+		keptAltitude = altitude;
+		keptCount ++;
+		
+		// the kept fix is the start of the next stretch
+		hasAnchor = true;
+		anchorLatitude = latitude;
+		anchorLongitude = longitude;
+		anchorLongitudeScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+		hasCone = false;
+	}
+	
+	private static double wrap(double angle) {
+		// into -pi to pi
+		if(angle > Math.PI) {
+			angle -= 2 * Math.PI;
+		} else if(angle < -Math.PI) {
+			angle += 2 * Math.PI;
+		}
+		return angle;
+	}
+	
+	private boolean isOutsideCone(double x, double y, double distance) {
+		// narrow the cone by this fix, returning true if a line to it would miss an earlier fix
+		if(hasCone && distance < coneReach - tolerance) {
+			return true; // heading back, a line cannot cover both ways
+		}
+		if(!hasCone && distance <= tolerance) {
+			return false; // close enough to the anchor whichever way the line goes
+		}
+		double direction = Math.atan2(y, x);
+		double spread = Math.asin(Math.min(1d, tolerance / distance));
+		if(!hasCone) {
+			hasCone = true;
+			coneReference = direction;
+			coneLow = -spread;
+			coneHigh = spread;
+			coneReach = distance;
+			return false;
+		}
+		coneReach = Math.max(coneReach, distance);
+		double offset = wrap(direction - coneReference);
+		if(offset < coneLow || offset > coneHigh) {
+			return true; // a line to this fix would miss an earlier one
+		}
+		coneLow = Math.max(coneLow, offset - spread);
+		coneHigh = Math.min(coneHigh, offset + spread);
+		return false;
+	}
+	
+	/**
+	 * Adds the next fix of the track, returns true if a fix has been kept.
+	 */
+	public boolean add(long time, double latitude, double longitude, boolean hasAltitude, double altitude) {
+		boolean kept = false;
+		if(!hasAnchor) {
+			// the start is always kept
+			keep(time, latitude, longitude, hasAltitude, altitude);
+			kept = true;
+		} else {
+			// flat earth is plenty within one stretch
+			double x = (longitude - anchorLongitude) * anchorLongitudeScale;
+			double y = (latitude - anchorLatitude) * METERS_PER_DEGREE;
+			double distance = Math.sqrt(x * x + y * y);
+			if(isOutsideCone(x, y, distance)) {
+				// the previous fix is as far as a straight line will go
+				keep(previousTime, previousLatitude, previousLongitude, previousHasAltitude, previousAltitude);
+				kept = true;
+				x = (longitude - anchorLongitude) * anchorLongitudeScale;
+				y = (latitude - anchorLatitude) * METERS_PER_DEGREE;
+				distance = Math.sqrt(x * x + y * y);
+				isOutsideCone(x, y, distance);
+			}
+		}
+		hasPrevious = true;
+		previousTime = time;
+		previousLatitude = latitude;
+		previousLongitude = longitude;
+		previousHasAltitude = hasAltitude;
+		previousAltitude = altitude;
+		return kept;
+	}
+	
+	/**
+	 * Ends the track, returns true if its last fix has been kept.
+	 */
+	public boolean finish() {
+		boolean kept = false;
+		if(hasPrevious && (previousLatitude != keptLatitude || previousLongitude != keptLongitude || previousTime != keptTime)) {
+			keep(previousTime, previousLatitude, previousLongitude, previousHasAltitude, previousAltitude);
+			kept = true;
+		}
+		reset();
+		return kept;
+	}
+	
+	/**
+	 * Starts a new track. The kept fix count carries on.
+	 */
+	public void reset() {
+		hasAnchor = false;
+		hasCone = false;
+		hasPrevious = false;
+	}
+	
+	public long getTime() {
+		return keptTime;
+	}
+	
+	public double getLatitude() {
+		return keptLatitude;
+	}
+	
+	public double getLongitude() {
+		return keptLongitude;
+	}
+	
+	public boolean hasAltitude() {
+		return keptHasAltitude;
+	}
+	
+	public double getAltitude() {
+		return keptAltitude;
+	}
+	
+	public long getKeptCount() {
+		return keptCount;
+	}
+	
+	public TrackSimplifier(float toleranceMeters) {
+		tolerance = toleranceMeters / Math.sqrt(2d);
+	}
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * Running totals for a track, updated as each fix arrives in constant time and memory.
+ * Distance and climb are only counted once they are bigger than the gps noise,
+ * otherwise a stationary track slowly adds up wander. Headings are averaged as vectors
+ * so 359 and 1 average to 0 rather than 180.
+ */
+public class TrackSummary {
+	/** constants **/
+	private static final double EARTH_RADIUS_METERS = 6371008.8d;
+	private static final float DISTANCE_NOISE_METERS = 5f; // movement smaller than this is not counted
+	private static final double ALTITUDE_NOISE_METERS = 3d; // climbs and drops smaller than this are not counted
+	
+	/** variables **/
+	private long fixCount;
+	private long startTime;
+	private long endTime;
+	
+	private boolean hasPosition;
+	private double positionLatitude; // where the distance was last counted from
+	private double positionLongitude;
+	private double distance;
+	
+	private boolean hasAltitude;
+	private double altitudeReference; // where the climb was last counted from
+	private double ascent;
+	private double descent;
+	private double minAltitude;
+	private double maxAltitude;
+	
+	private long headingCount;
+	private double headingSin; // sums of the heading unit vectors
+	private double headingCos;
+	
+	private static double distanceBetween(double latitude1, double longitude1, double latitude2, double longitude2) {
+		// haversine
+		double sinHalfLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2d);
+		double sinHalfLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2d);
+		double a = sinHalfLatitude * sinHalfLatitude
+				+ Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * sinHalfLongitude * sinHalfLongitude;
+		return 2d * EARTH_RADIUS_METERS * Math.atan2(Math.sqrt(a), Math.sqrt(1d - a));
+	}
+	
+	/**
+	 * Adds a fix, the heading is in degrees or NaN if it is not known.
+	 */
+	public void add(long time, double latitude, double longitude, boolean fixHasAltitude, double altitude, float heading) {
+		if(fixCount == 0) {
+			startTime = time;
+		}
+		endTime = time;
+		fixCount ++;
+		
+		if(!hasPosition) {
+			hasPosition = true;
+			positionLatitude = latitude;
+			positionLongitude = longitude;
+		} else {
+			double step = distanceBetween(positionLatitude, positionLongitude, latitude, longitude);
+			if(step >= DISTANCE_NOISE_METERS) {
+				distance += step;
+				positionLatitude = latitude;
+				positionLongitude = longitude;
+			}
+		}
+		
+		if(fixHasAltitude) {
+			if(!hasAltitude) {
+				hasAltitude = true;
+				altitudeReference = altitude;
+				minAltitude = altitude;
+				maxAltitude = altitude;
+			} else {
+				if(altitude >= altitudeReference + ALTITUDE_NOISE_METERS) {
+					ascent += altitude - altitudeReference;
+					altitudeReference = altitude;
+				} else if(altitude <= altitudeReference - ALTITUDE_NOISE_METERS) {
+					descent += altitudeReference - altitude;
+					altitudeReference = altitude;
+				}
+				minAltitude = Math.min(minAltitude, altitude);
+				maxAltitude = Math.max(maxAltitude, altitude);
+			}
+		}
+		
+		if(!Float.isNaN(heading)) {
+			double radians = Math.toRadians(heading);
+			headingSin += Math.sin(radians);
+			headingCos += Math.cos(radians);
+			headingCount ++;
+		}
+	}
+	
+	public long getFixCount() {
+		return fixCount;
+	}
+	
+	public long getDurationMillis() {
+		return endTime - startTime;
+	}
+	
+	public double getDistance() {
+		return distance;
+	}
+	
+	public boolean hasAltitude() {
+		return hasAltitude;
+	}
+	
+	public double getAscent() {
+		return ascent;
+	}
+	
+	public double getDescent() {
+		return descent;
+	}
+	
+	public double getMinAltitude() {
+		return minAltitude;
+	}
+	
+	public double getMaxAltitude() {
+		return maxAltitude;
+	}
+	
+	/**
+	 * The circular mean of the headings, 0 - 360, or NaN if there were none.
+	 */
+	public float getMeanHeading() {
+		if(headingCount == 0) {
+			return Float.NaN;
+		}
+		float mean = (float)Math.toDegrees(Math.atan2(headingSin, headingCos));
+		return mean < 0 ? mean + 360f : mean;
+	}
+	
+	/**
+	 * The circular variance of the headings, 0 when they all agree up to 1 when they are spread evenly.
+	 */
+	public float getHeadingVariance() {
+		if(headingCount == 0) {
+			return Float.NaN;
+		}
+		double length = Math.sqrt(headingSin * headingSin + headingCos * headingCos) / headingCount;
+		return (float)(1d - length);
+	}
+	
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append(fixCount).append(" fixes over ").append(getDurationMillis() / 1000l).append("s, ")
+				.append(String.format("%.0f", distance)).append("m");
+		if(hasAltitude) {
+			report.append(", ascent ").append(String.format("%.0f", ascent)).append("m descent ")
+					.append(String.format("%.0f", descent)).append("m");
+		}
+		if(headingCount > 0) {
+			report.append(", heading ").append(String.format("%.0f", getMeanHeading())).append(" (variance ")
+					.append(String.format("%.2f", getHeadingVariance())).append(")");
+		}
+		return report.toString();
+	}
+	
+	public void reset() {
+		fixCount = 0;
+		startTime = 0;
+		endTime = 0;
+		hasPosition = false;
+		distance = 0;
+		hasAltitude = false;
+		ascent = 0;
+		descent = 0;
+		minAltitude = 0;
+		maxAltitude = 0;
+		headingCount = 0;
+		headingSin = 0;
+		headingCos = 0;
+	}
+}
@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * A named fixed point to navigate to. The trig terms of the position are worked out once here,
+ * as they are needed every time the bearing to the waypoint is recomputed.
+ */
+public class Waypoint {
+	/** variables **/
+	private final String name;
+	private final double latitude;
+	private final double longitude;
+	final double latitudeRadians;
+	final double longitudeRadians;
+	final double sinLatitude;
+	final double cosLatitude;
+	
+	public String getName() {
+		return name;
+	}
+	
+	public double getLatitude() {
+		return latitude;
+	}
+	
+	public double getLongitude() {
+		return longitude;
+	}
+	
+	public Waypoint(String name, double latitude, double longitude) {
+		// NaN fails every comparison, so it has to be ruled out on its own, infinities are out of range anyway
+		if(Double.isNaN(latitude) || Double.isNaN(longitude) || Double.isInfinite(latitude) || Double.isInfinite(longitude)
+				|| latitude < -90d || latitude > 90d || longitude < -180d || longitude > 180d) {
+			throw new IllegalArgumentException("waypoint position out of range: " + latitude + ", " + longitude);
+		}
+		this.name = name;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		latitudeRadians = Math.toRadians(latitude);
+		longitudeRadians = Math.toRadians(longitude);
+		sinLatitude = Math.sin(latitudeRadians);
+		cosLatitude = Math.cos(latitudeRadians);
+	}
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+/**
+ * Works out the initial great circle bearing and distance from the current position to a waypoint.
+ * The result is kept until the position moves, so asking for it every frame costs two comparisons,
+ * and a recompute is a handful of trig calls with nothing allocated.
+ */
+public class WaypointNavigator {
+	/** constants **/
+	private static final double EARTH_RADIUS_METERS = 6371008.8d; // mean radius
+	
+	/** variables **/
+	private Waypoint waypoint;
+	private double originLatitude = Double.NaN; // the position the cached result was worked out from
+	private double originLongitude = Double.NaN;
+	private float bearing; // degrees from true north, 0 - 360
+	private float distance; // meters
+	
+	private void recompute() {
+		double latitude = Math.toRadians(originLatitude);
+		double sinLatitude = Math.sin(latitude);
+		double cosLatitude = Math.cos(latitude);
+		double deltaLongitude = waypoint.longitudeRadians - Math.toRadians(originLongitude);
+		double sinDeltaLongitude = Math.sin(deltaLongitude);
+		double cosDeltaLongitude = Math.cos(deltaLongitude);
+		
+		// initial bearing of the great circle
+		double y = sinDeltaLongitude * waypoint.cosLatitude;
+		double x = cosLatitude * waypoint.sinLatitude - sinLatitude * waypoint.cosLatitude * cosDeltaLongitude;
+		float newBearing = (float)Math.toDegrees(Math.atan2(y, x));
+		if(newBearing < 0) {
+			newBearing += 360f;
+		}
+		bearing = newBearing;
+		
+		// haversine distance, well behaved for the short distances we care about most
+		double sinHalfLatitude = Math.sin((waypoint.latitudeRadians - latitude) / 2d);
+		double sinHalfLongitude = Math.sin(deltaLongitude / 2d);
+		double a = sinHalfLatitude * sinHalfLatitude + cosLatitude * waypoint.cosLatitude * sinHalfLongitude * sinHalfLongitude;
+		distance = (float)(2d * EARTH_RADIUS_METERS * Math.atan2(Math.sqrt(a), Math.sqrt(1d - a)));
+	}
+	
+	/**
+	 * Moves the origin, returns true if the bearing and distance changed as a result.
+	 */
+	public boolean setOrigin(double latitude, double longitude) {
+		if(waypoint == null || (latitude == originLatitude && longitude == originLongitude)) {
+			return false;
+		}
+		originLatitude = latitude;
+		originLongitude = longitude;
+		recompute();
+		return true;
+	}
+	
+	public void setWaypoint(Waypoint waypoint) {
+		this.waypoint = waypoint;
+		// force a recompute on the next position
+		originLatitude = Double.NaN;
+		originLongitude = Double.NaN;
+	}
+	
+	public Waypoint getWaypoint() {
+		return waypoint;
+	}
+	
+	/**
+	 * True once a bearing has been worked out for the current waypoint.
+	 */
+	public boolean hasBearing() {
+		return waypoint != null && !Double.isNaN(originLatitude);
+	}
+	
+	public float getBearing() {
+		return bearing;
+	}
+	
+	public float getDistance() {
+		return distance;
+	}
+}
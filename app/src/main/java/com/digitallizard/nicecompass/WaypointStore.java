@@ -0,0 +1,431 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A large, read only set of waypoints with a k-d tree for finding the nearest points and the points in view.
+ * Points are held as unit vectors on the sphere, so straight line distance orders them the same way as
+ * distance over the ground, and nothing goes wrong at the poles or the date line.
+ * The tree is implicit: the points are stored in tree order, with each range split at its middle element.
+ * 
+ * The file format is a header (magic, version, count) then one record per waypoint: latitude and longitude
+ * as ints in units of 1e-7 degrees, then the name as modified UTF-8.
+ */
+public class WaypointStore {
+	/** constants **/
+	public static final int MAGIC = 0x4e435750; // "NCWP"
+	public static final int VERSION = 1;
+	private static final double E7 = 10000000d;
+	private static final double EARTH_RADIUS_METERS = 6371008.8d;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	
+	/** variables **/
+	private final int size;
+	private final double[] points; // x, y and z of each point in tree order
+	private final int[] latitudes; // 1e-7 degrees
+	private final int[] longitudes;
+	private final String[] names;
+	
+	// query state, kept to avoid allocating on each query
+	private double queryX, queryY, queryZ;
+	private double[] heapDistances = new double[0]; // a max heap of the best points found so far
+	private int[] heapIndices = new int[0];
+	private int heapSize;
+	private int heapCapacity;
+	private double nearestLimit; // squared, only points this close are offered to the heap
+	private boolean nearestInArc; // and only points in the arc, if set
+	private int[] rangeOutput;
+	private float[] rangeBearings;
+	private int rangeCount;
+	private double rangeLimit;
+	private double eastX, eastY, northX, northY, northZ; // directions at the query point, for the arc test
+	private float arcBearing;
+	private float arcHalfAngle;
+	
+	private void setQuery(double latitude, double longitude) {
+		double latitudeRadians = Math.toRadians(latitude);
+		double longitudeRadians = Math.toRadians(longitude);
+		double cosLatitude = Math.cos(latitudeRadians);
+		queryX = cosLatitude * Math.cos(longitudeRadians);
+		queryY = cosLatitude * Math.sin(longitudeRadians);
+		queryZ = Math.sin(latitudeRadians);
+	}
+	
+	private double distanceSquared(int index) {
+		double dx = points[index * 3] - queryX;
+		double dy = points[index * 3 + 1] - queryY;
+		double dz = points[index * 3 + 2] - queryZ;
+		return dx * dx + dy * dy + dz * dz;
+	}
+	
+	private double queryAxis(int axis) {
+		return axis == 0 ? queryX : (axis == 1 ? queryY : queryZ);
+	}
+	
+	private static void swap(int[] order, int a, int b) {
+		int temp = order[a];
+		order[a] = order[b];
+		order[b] = temp;
+	}
+	
+	private static void select(int[] order, double[] values, int from, int to, int nth, int axis) {
+		// quickselect over [from, to], leaving the nth smallest on the axis at nth
+		while(to > from) {
+			double pivot = values[order[(from + to) >>> 1] * 3 + axis];
+			int i = from;
+			int j = to;
+			while(i <= j) {
+				while(values[order[i] * 3 + axis] < pivot) i++;
+				while(values[order[j] * 3 + axis] > pivot) j--;
+				if(i <= j) {
+					swap(order, i, j);
+					i++;
+					j--;
+				}
+			}
+			if(nth <= j) {
+				to = j;
+			} else if(nth >= i) {
+				from = i;
+			} else {
+				return;
+			}
+		}
+	}
+	
+	private static void build(int[] order, double[] values, int from, int to, int axis) {
+		// [from, to), the middle element splits the range on the axis
+		while(to - from > 1) {
+			int middle = (from + to) >>> 1;
+			select(order, values, from, to - 1, middle, axis);
+			int next = (axis + 1) % 3;
+			build(order, values, from, middle, next);
+			from = middle + 1;
+			axis = next;
+		}
+	}
+	
+	private void offer(int index, double distance) {
+		if(heapSize < heapCapacity) {
+			// sift up
+			int child = heapSize++;
+			while(child > 0) {
+				int parent = (child - 1) >>> 1;
+				if(heapDistances[parent] >= distance) {
+					break;
+				}
+				heapDistances[child] = heapDistances[parent];
+				heapIndices[child] = heapIndices[parent];
+				child = parent;
+			}
+			heapDistances[child] = distance;
+			heapIndices[child] = index;
+		} else if(distance < heapDistances[0]) {
+			// replace the worst
+			replaceTop(index, distance);
+		}
+	}
+	
+	private void replaceTop(int index, double distance) {
+		// sift down from the top of the heap
+		int parent = 0;
+		while(true) {
+			int child = parent * 2 + 1;
+			if(child >= heapSize) {
+				break;
+			}
+			if(child + 1 < heapSize && heapDistances[child + 1] > heapDistances[child]) {
+				child++;
+			}
+			if(heapDistances[child] <= distance) {
+				break;
+			}
+			heapDistances[parent] = heapDistances[child];
+			heapIndices[parent] = heapIndices[child];
+			parent = child;
+		}
+		heapDistances[parent] = distance;
+		heapIndices[parent] = index;
+	}
+	
+	private void searchNearest(int from, int to, int axis) {
+		if(from >= to) {
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		double distance = distanceSquared(middle);
+		// test the arc before offering, so points outside it never push out points inside it
+		if(distance <= nearestLimit && (!nearestInArc || getArcBearing(middle) >= 0f)) {
+			offer(middle, distance);
+		}
+		double split = queryAxis(axis) - points[middle * 3 + axis];
+		int next = (axis + 1) % 3;
+		// the side holding the query first, the other only if it could hold something closer
+		if(split < 0) {
+			searchNearest(from, middle, next);
+			if(couldHoldCloser(split)) {
+				searchNearest(middle + 1, to, next);
+			}
+		} else {
+			searchNearest(middle + 1, to, next);
+			if(couldHoldCloser(split)) {
+				searchNearest(from, middle, next);
+			}
+		}
+	}
+	
+	private boolean couldHoldCloser(double split) {
+		// whether the far side of a split could hold a point the heap would take
+		if(heapSize < heapCapacity) {
+			return split * split <= nearestLimit;
+		}
+		return split * split < heapDistances[0];
+	}
+	
+	private void searchRange(int from, int to, int axis) {
+		if(from >= to || rangeCount >= rangeOutput.length) {
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		if(distanceSquared(middle) <= rangeLimit) {
+			// only points in the arc take up room in the output
+			float bearing = getArcBearing(middle);
+			if(bearing >= 0f) {
+				rangeOutput[rangeCount] = middle;
+				rangeBearings[rangeCount] = bearing;
+				rangeCount++;
+			}
+		}
+		double split = queryAxis(axis) - points[middle * 3 + axis];
+		int next = (axis + 1) % 3;
+		if(split < 0 || split * split <= rangeLimit) {
+			searchRange(from, middle, next);
+		}
+		if(split >= 0 || split * split <= rangeLimit) {
+			searchRange(middle + 1, to, next);
+		}
+	}
+	
+	/**
+	 * Finds up to results.length waypoints nearest the given position, closest first.
+	 * Returns how many were found.
+	 */
+	public synchronized int findNearest(double latitude, double longitude, int[] results) {
+		setQuery(latitude, longitude);
+		nearestLimit = Double.POSITIVE_INFINITY;
+		nearestInArc = false;
+		return collectNearest(results);
+	}
+	
+	private int collectNearest(int[] results) {
+		// the nearest points that pass the limit and arc set up by the caller, closest first
+		int wanted = Math.min(results.length, size);
+		if(wanted == 0) {
+			return 0; // the search compares against the top of the heap, so it needs room for one
+		}
+		if(heapDistances.length < wanted) {
+			heapDistances = new double[wanted];
+			heapIndices = new int[wanted];
+		}
+		heapCapacity = wanted;
+		heapSize = 0;
+		searchNearest(0, size, 0);
+		
+		// empty the heap from the back so the closest ends up first
+		int found = heapSize;
+		for(int i = found - 1; i >= 0; i--) {
+			results[i] = heapIndices[0];
+			heapSize--;
+			if(heapSize > 0) {
+				replaceTop(heapIndices[heapSize], heapDistances[heapSize]);
+			}
+		}
+		return found;
+	}
+	
+	private static double chordSquared(float distanceMeters) {
+		// straight line distance through the sphere for the given distance over it
+		double chord = 2d * Math.sin(Math.min(Math.PI, distanceMeters / EARTH_RADIUS_METERS) / 2d);
+		return chord * chord;
+	}
+	
+	private void setArc(float bearing, float halfAngle) {
+		arcBearing = bearing;
+		arcHalfAngle = halfAngle;
+		// directions east and north at the query point
+		double horizontal = Math.sqrt(queryX * queryX + queryY * queryY);
+		if(horizontal > 0d) {
+			eastX = -queryY / horizontal;
+			eastY = queryX / horizontal;
+		} else {
+			// at a pole every direction is the same way, measure from the prime meridian
+			eastX = 0d;
+			eastY = 1d;
+		}
+		northX = -queryZ * eastY;
+		northY = queryZ * eastX;
+		northZ = horizontal;
+	}
+	
+	private float getArcBearing(int index) {
+		// the true bearing to the point if it is in the arc set by setArc(), otherwise -1
+		double x = points[index * 3];
+		double y = points[index * 3 + 1];
+		double z = points[index * 3 + 2];
+		float pointBearing = (float)Math.toDegrees(Math.atan2(x * eastX + y * eastY, x * northX + y * northY + z * northZ));
+		if(pointBearing < 0) {
+			pointBearing += 360f;
+		}
+		float offset = Math.abs(pointBearing - arcBearing) % 360f;
+		if(offset > 180f) {
+			offset = 360f - offset;
+		}
+		return offset <= arcHalfAngle ? pointBearing : -1f;
+	}
+	
+	/**
+	 * Finds the waypoints within the given distance whose bearing is within halfAngle degrees of the given bearing,
+	 * e.g. the points in the compass field of view. Pass a half angle of 180 for all around.
+	 * The indices and true bearings of up to indices.length of those points are written out, in no particular order,
+	 * points outside the arc never take the place of one inside it.
+	 * Returns how many were found.
+	 */
+	public synchronized int findInView(double latitude, double longitude, float bearing, float halfAngle,
+			float maxDistanceMeters, int[] indices, float[] bearings) {
+		setQuery(latitude, longitude);
+		setArc(bearing, halfAngle);
+		rangeLimit = chordSquared(maxDistanceMeters);
+		rangeOutput = indices;
+		rangeBearings = bearings;
+		rangeCount = 0;
+		searchRange(0, size, 0);
+		rangeOutput = null;
+		rangeBearings = null;
+		return rangeCount;
+	}
+	
+	/**
+	 * As findInView, but when there are more points than fit in indices the nearest are kept rather than any,
+	 * and they are written out closest first.
+	 */
+	public synchronized int findNearestInView(double latitude, double longitude, float bearing, float halfAngle,
+			float maxDistanceMeters, int[] indices, float[] bearings) {
+		setQuery(latitude, longitude);
+		setArc(bearing, halfAngle);
+		nearestLimit = chordSquared(maxDistanceMeters);
+		nearestInArc = true;
+		int found = collectNearest(indices);
+		for(int i = 0; i < found; i++) {
+			bearings[i] = getArcBearing(indices[i]);
+		}
+		return found;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public String getName(int index) {
+		return names[index];
+	}
+	
+	public double getLatitude(int index) {
+		return latitudes[index] / E7;
+	}
+	
+	public double getLongitude(int index) {
+		return longitudes[index] / E7;
+	}
+	
+	public Waypoint getWaypoint(int index) {
+		return new Waypoint(names[index], getLatitude(index), getLongitude(index));
+	}
+	
+	public static WaypointStore read(InputStream stream) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+		try {
+			if(input.readInt() != MAGIC) {
+				throw new IOException("not a waypoint file");
+			}
+			int version = input.readUnsignedByte();
+			if(version != VERSION) {
+				throw new IOException("unsupported waypoint file version " + version);
+			}
+			int count = input.readInt();
+			if(count < 0) {
+				throw new IOException("bad waypoint count " + count);
+			}
+			int[] latitudes = new int[count];
+			int[] longitudes = new int[count];
+			String[] names = new String[count];
+			for(int i = 0; i < count; i++) {
+				latitudes[i] = input.readInt();
+				longitudes[i] = input.readInt();
+				names[i] = input.readUTF();
+			}
+			return new WaypointStore(latitudes, longitudes, names);
+		} finally {
+			input.close();
+		}
+	}
+	
+	public static void write(OutputStream stream, List<Waypoint> waypoints) throws IOException {
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+		try {
+			output.writeInt(MAGIC);
+			output.writeByte(VERSION);
+			output.writeInt(waypoints.size());
+			for(Waypoint waypoint : waypoints) {
+				output.writeInt((int)Math.round(waypoint.getLatitude() * E7));
+				output.writeInt((int)Math.round(waypoint.getLongitude() * E7));
+				output.writeUTF(waypoint.getName());
+			}
+		} finally {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Builds the tree over the given points, the arrays are taken over and must not be changed afterwards.
+	 */
+	public WaypointStore(int[] latitudesE7, int[] longitudesE7, String[] names) {
+		size = latitudesE7.length;
+		double[] unordered = new double[size * 3];
+		int[] order = new int[size];
+		for(int i = 0; i < size; i++) {
+			double latitude = Math.toRadians(latitudesE7[i] / E7);
+			double longitude = Math.toRadians(longitudesE7[i] / E7);
+			unordered[i * 3] = Math.cos(latitude) * Math.cos(longitude);
+			unordered[i * 3 + 1] = Math.cos(latitude) * Math.sin(longitude);
+			unordered[i * 3 + 2] = Math.sin(latitude);
+			order[i] = i;
+		}
+		build(order, unordered, 0, size, 0);
+		
+		// lay everything out in tree order
+		points = new double[size * 3];
+		latitudes = new int[size];
+		longitudes = new int[size];
+		this.names = new String[size];
+		for(int i = 0; i < size; i++) {
+			int source = order[i];
+			System.arraycopy(unordered, source * 3, points, i * 3, 3);
+			latitudes[i] = latitudesE7[source];
+			longitudes[i] = longitudesE7[source];
+			this.names[i] = names[source];
+		}
+	}
+}
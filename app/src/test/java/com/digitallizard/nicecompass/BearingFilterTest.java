@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the windowed mean, mostly where it crosses north.
+ */
+public class BearingFilterTest {
+	private static final float TOLERANCE = 0.01f;
+	
+	// the distance between two bearings the short way round, so 359 and 0 are 1 apart
+	private static float angleBetween(float a, float b) {
+		float difference = Math.abs(a - b) % 360f;
+		return difference > 180f ? 360f - difference : difference;
+	}
+	
+	private static void assertBearing(float expected, float actual) {
+		assertTrue("expected " + expected + " but was " + actual, angleBetween(expected, actual) < TOLERANCE);
+		assertTrue("out of range: " + actual, actual >= 0f && actual < 360f);
+	}
+	
+	@Test
+	public void averagesAcrossNorth() {
+		BearingFilter filter = new BearingFilter(2);
+		filter.addSample(359f);
+		// a plain mean would give 180
+		assertBearing(0f, filter.addSample(1f));
+	}
+	
+	@Test
+	public void staysInRangeJustWestOfNorth() {
+		BearingFilter filter = new BearingFilter(2);
+		filter.addSample(358f);
+		assertBearing(359f, filter.addSample(0f));
+	}
+	
+	@Test
+	public void followsAStreamAcrossNorth() {
+		BearingFilter filter = new BearingFilter(4);
+		float[] samples = {350f, 354f, 358f, 2f, 6f, 10f};
+		float[] expected = {350f, 352f, 354f, 356f, 0f, 4f};
+		for(int i = 0; i < samples.length; i++) {
+			assertBearing(expected[i], filter.addSample(samples[i]));
+		}
+	}
+	
+	@Test
+	public void forgetsSamplesOutsideTheWindow() {
+		BearingFilter filter = new BearingFilter(3);
+		filter.addSample(90f);
+		filter.addSample(90f);
+		filter.addSample(90f);
+		filter.addSample(270f);
+		filter.addSample(270f);
+		assertBearing(270f, filter.addSample(270f));
+	}
+	
+	@Test
+	public void passesSamplesThroughWithAWindowOfOne() {
+		BearingFilter filter = new BearingFilter(1);
+		assertBearing(359.5f, filter.addSample(359.5f));
+		assertBearing(0.5f, filter.addSample(0.5f));
+		assertEquals(1, filter.getWindowSize());
+	}
+	
+	@Test
+	public void resetStartsAgain() {
+		BearingFilter filter = new BearingFilter(4);
+		assertFalse(filter.hasSamples());
+		filter.addSample(10f);
+		filter.addSample(20f);
+		assertTrue(filter.hasSamples());
+		filter.reset();
+		assertFalse(filter.hasSamples());
+		assertBearing(200f, filter.addSample(200f));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAnEmptyWindow() {
+		new BearingFilter(0);
+	}
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Turns the predictor at known rates and checks the velocity it settles on and the bearings it predicts.
+ */
+public class BearingPredictorTest {
+	private static final long MILLI = 1000000l;
+	private static final long MAX_HORIZON_NANOS = 100 * MILLI; // as CompassManager.PREDICTION_MAX_HORIZON_NANOS
+	private static final float SMOOTHING = 0.3f; // as CompassManager.PREDICTION_VELOCITY_SMOOTHING
+	private static final long SAMPLE_INTERVAL = 20 * MILLI;
+	private static final float TOLERANCE = 1e-3f;
+	
+	private BearingPredictor predictor;
+	
+	@Before
+	public void setUp() {
+		predictor = new BearingPredictor(MAX_HORIZON_NANOS, SMOOTHING);
+	}
+	
+	private static long turn(BearingPredictor predictor, float startBearing, float degreesPerSecond, int samples) {
+		// feed a steady turn, returning the time of the last sample
+		long time = 0;
+		for(int i = 0; i < samples; i++) {
+			time = i * SAMPLE_INTERVAL;
+			predictor.update(startBearing + degreesPerSecond * i * SAMPLE_INTERVAL / 1e9f, time);
+		}
+		return time;
+	}
+	
+	@Test
+	public void settlesOnTheRateOfASteadyTurn() {
+		turn(predictor, 10f, 90f, 2);
+		// one difference seen, so only the smoothing weight of it
+		assertEquals(90f * SMOOTHING, predictor.getAngularVelocity(), TOLERANCE);
+		
+		predictor.reset();
+		turn(predictor, 10f, 90f, 4);
+		// each new velocity closes the same fraction of the remaining gap
+		float remaining = (1f - SMOOTHING) * (1f - SMOOTHING) * (1f - SMOOTHING);
+		assertEquals(90f * (1f - remaining), predictor.getAngularVelocity(), TOLERANCE);
+		
+		predictor.reset();
+		long last = turn(predictor, 10f, 90f, 60);
+		assertEquals(90f, predictor.getAngularVelocity(), 0.01f);
+		float lastBearing = 10f + 90f * last / 1e9f;
+		assertEquals(lastBearing + 90f * 0.05f, predictor.getPredictedBearing(last + 50 * MILLI), 0.01f);
+	}
+	
+	@Test
+	public void capsTheVelocityAtWhatAHandCanDo() {
+		BearingPredictor unsmoothed = new BearingPredictor(MAX_HORIZON_NANOS, 1f);
+		turn(unsmoothed, 0f, 1500f, 5);
+		assertEquals(720f, unsmoothed.getAngularVelocity(), 0f);
+		unsmoothed.reset();
+		turn(unsmoothed, 200f, -1500f, 5);
+		assertEquals(-720f, unsmoothed.getAngularVelocity(), 0f);
+	}
+	
+	@Test
+	public void neverPredictsPastTheHorizon() {
+		long last = turn(predictor, 10f, 90f, 60);
+		float atHorizon = predictor.getPredictedBearing(last + MAX_HORIZON_NANOS);
+		assertEquals(atHorizon, predictor.getPredictedBearing(last + 10 * MAX_HORIZON_NANOS), 0f);
+		assertTrue(predictor.getPredictedBearing(last + MAX_HORIZON_NANOS / 2) < atHorizon);
+		// a time before the last sample gives the last bearing
+		assertEquals(10f + 90f * last / 1e9f, predictor.getPredictedBearing(last - MILLI), TOLERANCE);
+	}
+	
+	@Test
+	public void turnsThroughNorthBothWays() {
+		// clockwise from 350 through 0, each step measured the short way round
+		long last = 0;
+		for(int i = 0; i < 60; i++) {
+			last = i * SAMPLE_INTERVAL;
+			predictor.update((350f + 2f * i) % 360f, last);
+		}
+		assertEquals(100f, predictor.getAngularVelocity(), 0.01f);
+		assertEquals((350f + 2f * 59 + 10f) % 360f, predictor.getPredictedBearing(last + MAX_HORIZON_NANOS), 0.01f);
+		
+		// predicting clockwise across 0 lands just past it
+		BearingPredictor unsmoothed = new BearingPredictor(MAX_HORIZON_NANOS, 1f);
+		unsmoothed.update(350f, 0);
+		unsmoothed.update(354f, SAMPLE_INTERVAL);
+		assertEquals(14f, unsmoothed.getPredictedBearing(SAMPLE_INTERVAL + MAX_HORIZON_NANOS), TOLERANCE);
+		
+		// and anticlockwise across 0 lands just below 360
+		unsmoothed.reset();
+		unsmoothed.update(6f, 0);
+		unsmoothed.update(2f, SAMPLE_INTERVAL);
+		assertEquals(-200f, unsmoothed.getAngularVelocity(), TOLERANCE);
+		assertEquals(342f, unsmoothed.getPredictedBearing(SAMPLE_INTERVAL + MAX_HORIZON_NANOS), TOLERANCE);
+		
+		// and a turn measured across north from the other side
+		unsmoothed.reset();
+		unsmoothed.update(2f, 0);
+		unsmoothed.update(358f, SAMPLE_INTERVAL);
+		assertEquals(-200f, unsmoothed.getAngularVelocity(), TOLERANCE);
+	}
+}
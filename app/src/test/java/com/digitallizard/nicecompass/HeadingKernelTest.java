@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import android.view.Surface;
+
+/**
+ * Compares the kernel with a port of the platform's getRotationMatrix(), remapCoordinateSystem() and getOrientation(),
+ * which cannot run off a device, and checks the blend towards the back of the device as it is held upright.
+ */
+public class HeadingKernelTest {
+	private static final long RANDOM_SEED = 42l;
+	private static final float GRAVITY = 9.81f;
+	private static final float FIELD_STRENGTH = 48f; // micro tesla
+	private static final double FIELD_INCLINATION = Math.toRadians(66); // downwards, roughly southern England
+	private static final float ANGLE_TOLERANCE = 1e-4f; // radians
+	private static final float BLEND_START = 0.9f; // as VERTICAL_BLEND_START
+	private static final int AXIS_X = 1, AXIS_Y = 2, AXIS_MINUS_X = AXIS_X | 0x80, AXIS_MINUS_Y = AXIS_Y | 0x80;
+	private static final int[] ROTATIONS = {Surface.ROTATION_0, Surface.ROTATION_90, Surface.ROTATION_180, Surface.ROTATION_270};
+	
+	/** the platform code, as in SensorManager **/
+	
+	private static boolean getRotationMatrix(float[] R, float[] gravity, float[] geomagnetic) {
+		float Ax = gravity[0], Ay = gravity[1], Az = gravity[2];
+		final float normsqA = (Ax * Ax + Ay * Ay + Az * Az);
+		final float g = 9.81f;
+		final float freeFallGravitySquared = 0.01f * g * g;
+		if(normsqA < freeFallGravitySquared) {
+			return false;
+		}
+		final float Ex = geomagnetic[0], Ey = geomagnetic[1], Ez = geomagnetic[2];
+		float Hx = Ey * Az - Ez * Ay;
+		float Hy = Ez * Ax - Ex * Az;
+		float Hz = Ex * Ay - Ey * Ax;
+		final float normH = (float)Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+		if(normH < 0.1f) {
+			return false;
+		}
+		final float invH = 1.0f / normH;
+		Hx *= invH;
+		Hy *= invH;
+		Hz *= invH;
+		final float invA = 1.0f / (float)Math.sqrt(Ax * Ax + Ay * Ay + Az * Az);
+		Ax *= invA;
+		Ay *= invA;
+		Az *= invA;
+		final float Mx = Ay * Hz - Az * Hy;
+		final float My = Az * Hx - Ax * Hz;
+		final float Mz = Ax * Hy - Ay * Hx;
+		R[0] = Hx; R[1] = Hy; R[2] = Hz;
+		R[3] = Mx; R[4] = My; R[5] = Mz;
+		R[6] = Ax; R[7] = Ay; R[8] = Az;
+		return true;
+	}
+	
+	private static void remapCoordinateSystem(float[] inR, int X, int Y, float[] outR) {
+		int Z = X ^ Y;
+		final int x = (X & 0x3) - 1;
+		final int y = (Y & 0x3) - 1;
+		final int z = (Z & 0x3) - 1;
+		// the sign of Z, so the result is still right handed
+		final int axisY = (z + 1) % 3;
+		final int axisZ = (z + 2) % 3;
+		if(((x ^ axisY) | (y ^ axisZ)) != 0) {
+			Z ^= 0x80;
+		}
+		final boolean sx = (X >= 0x80);
+		final boolean sy = (Y >= 0x80);
+		final boolean sz = (Z >= 0x80);
+		for(int j = 0; j < 3; j++) {
+			final int offset = j * 3;
+			for(int i = 0; i < 3; i++) {
+				if(x == i) outR[offset + i] = sx ? -inR[offset + 0] : inR[offset + 0];
+				if(y == i) outR[offset + i] = sy ? -inR[offset + 1] : inR[offset + 1];
+				if(z == i) outR[offset + i] = sz ? -inR[offset + 2] : inR[offset + 2];
+			}
+		}
+	}
+	
+	private static float[] getOrientation(float[] R) {
+		return new float[] {
+				(float)Math.atan2(R[1], R[4]),
+				(float)Math.asin(-R[7]),
+				(float)Math.atan2(-R[6], R[8])};
+	}
+	
+	/** what the app did before the kernel **/
+	
+	private static float[] platformOrientation(int rotation, float[] gravity, float[] field) {
+		float[] R = new float[9];
+		if(!getRotationMatrix(R, gravity, field)) {
+			return null;
+		}
+		float[] remapped = new float[9];
+		switch(rotation) {
+		case Surface.ROTATION_90:
+			remapCoordinateSystem(R, AXIS_Y, AXIS_MINUS_X, remapped);
+			break;
+		case Surface.ROTATION_180:
+			remapCoordinateSystem(R, AXIS_MINUS_X, AXIS_MINUS_Y, remapped);
+			break;
+		case Surface.ROTATION_270:
+			remapCoordinateSystem(R, AXIS_MINUS_Y, AXIS_X, remapped);
+			break;
+		default:
+			remapped = R;
+			break;
+		}
+		return getOrientation(remapped);
+	}
+	
+	private static float angleBetween(float a, float b) {
+		double difference = Math.abs(a - b) % (2 * Math.PI);
+		return (float)(difference > Math.PI ? 2 * Math.PI - difference : difference);
+	}
+	
+	private static float[] earthField() {
+		// east, north, up
+		return new float[] {0f, FIELD_STRENGTH * (float)Math.cos(FIELD_INCLINATION), -FIELD_STRENGTH * (float)Math.sin(FIELD_INCLINATION)};
+	}
+	
+	private static float dot(float[] a, float[] b) {
+		return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+	}
+	
+	private static float[] reading(float[] deviceX, float[] deviceY, float[] deviceZ, float[] earthVector) {
+		// an earth vector as the device axes see it
+		return new float[] {dot(deviceX, earthVector), dot(deviceY, earthVector), dot(deviceZ, earthVector)};
+	}
+	
+	private static float[] gravityReading(float[] deviceX, float[] deviceY, float[] deviceZ) {
+		// at rest the accelerometer reads the push up against gravity
+		return reading(deviceX, deviceY, deviceZ, new float[] {0f, 0f, GRAVITY});
+	}
+	
+	/**
+	 * The device axes in earth axes for the top of the screen facing the heading and pitched up by the tilt,
+	 * then rolled about the top of the screen, all in degrees.
+	 */
+	private static float[][] deviceAxes(double heading, double tilt, double roll) {
+		double sinHeading = Math.sin(Math.toRadians(heading));
+		double cosHeading = Math.cos(Math.toRadians(heading));
+		double sinTilt = Math.sin(Math.toRadians(tilt));
+		double cosTilt = Math.cos(Math.toRadians(tilt));
+		double sinRoll = Math.sin(Math.toRadians(roll));
+		double cosRoll = Math.cos(Math.toRadians(roll));
+		double[] x = {cosHeading, -sinHeading, 0d};
+		double[] y = {sinHeading * cosTilt, cosHeading * cosTilt, sinTilt};
+		double[] z = {-sinHeading * sinTilt, -cosHeading * sinTilt, cosTilt};
+		float[][] axes = new float[3][3];
+		for(int i = 0; i < 3; i++) {
+			axes[0][i] = (float)(cosRoll * x[i] - sinRoll * z[i]);
+			axes[1][i] = (float)y[i];
+			axes[2][i] = (float)(sinRoll * x[i] + cosRoll * z[i]);
+		}
+		return axes;
+	}
+	
+	private static float backHeading(float[][] axes) {
+		// the way the back of the device faces, seen from above
+		return (float)Math.atan2(-axes[2][0], -axes[2][1]);
+	}
+	
+	private static float update(HeadingKernel kernel, float[][] axes) {
+		float[] gravity = gravityReading(axes[0], axes[1], axes[2]);
+		float[] magnetic = reading(axes[0], axes[1], axes[2], earthField());
+		assertTrue(kernel.update(gravity[0], gravity[1], gravity[2], magnetic[0], magnetic[1], magnetic[2]));
+		return kernel.getAzimuth();
+	}
+	
+	private static float[][] randomAxes(Random random) {
+		// a uniformly random rotation from a random unit quaternion
+		double w = random.nextGaussian(), i = random.nextGaussian(), j = random.nextGaussian(), k = random.nextGaussian();
+		double length = Math.sqrt(w * w + i * i + j * j + k * k);
+		w /= length; i /= length; j /= length; k /= length;
+		return new float[][] {
+				{(float)(1 - 2 * (j * j + k * k)), (float)(2 * (i * j + w * k)), (float)(2 * (i * k - w * j))},
+				{(float)(2 * (i * j - w * k)), (float)(1 - 2 * (i * i + k * k)), (float)(2 * (j * k + w * i))},
+				{(float)(2 * (i * k + w * j)), (float)(2 * (j * k - w * i)), (float)(1 - 2 * (i * i + j * j))}};
+	}
+	
+	@Test
+	public void matchesThePlatformInEveryRotation() {
+		Random random = new Random(RANDOM_SEED);
+		HeadingKernel kernel = new HeadingKernel();
+		float[] field = earthField();
+		for(int rotation : ROTATIONS) {
+			kernel.setScreenRotation(rotation);
+			int compared = 0;
+			for(int n = 0; n < 2000; n++) {
+				float[][] axes = randomAxes(random);
+				float[] gravity = gravityReading(axes[0], axes[1], axes[2]);
+				float[] magnetic = reading(axes[0], axes[1], axes[2], field);
+				float[] expected = platformOrientation(rotation, gravity, magnetic);
+				assertTrue(kernel.update(gravity[0], gravity[1], gravity[2], magnetic[0], magnetic[1], magnetic[2]));
+				// pitch and roll are always the platform's, the heading only until the blend starts
+				assertEquals(expected[1], kernel.getPitch(), ANGLE_TOLERANCE);
+				assertEquals(expected[2], kernel.getRoll(), ANGLE_TOLERANCE);
+				if(Math.abs(Math.sin(expected[1])) < BLEND_START) {
+					assertTrue("rotation " + rotation + ": expected " + expected[0] + " but was " + kernel.getAzimuth(),
+							angleBetween(expected[0], kernel.getAzimuth()) < ANGLE_TOLERANCE);
+					compared++;
+				}
+			}
+			assertTrue(compared > 1000);
+		}
+	}
+	
+	@Test
+	public void movesSmoothlyToTheBackAsTheDeviceIsHeldUpright() {
+		HeadingKernel kernel = new HeadingKernel();
+		double[] headings = {0d, 75d, 181d, 300d};
+		double[] rolls = {0d, 25d, -40d}; // rolled, the top of the screen and the back face different ways
+		for(double heading : headings) {
+			for(double roll : rolls) {
+				float previous = Float.NaN;
+				// flat to upright and on past it, a tenth of a degree at a time, through the whole blend
+				for(double tilt = 0d; tilt <= 100d; tilt += 0.1d) {
+					float[][] axes = deviceAxes(heading, tilt, roll);
+					float azimuth = update(kernel, axes);
+					if(!Float.isNaN(previous)) {
+						assertTrue("heading " + heading + " roll " + roll + " jumped at " + tilt + " degrees: " + previous + " to " + azimuth,
+								angleBetween(previous, azimuth) < Math.toRadians(1));
+					}
+					if(Math.abs(tilt - 90d) <= 1d) {
+						// upright the top of the screen has all but vanished from above, leaving the back
+						assertTrue("heading " + heading + " roll " + roll + " at " + tilt + " degrees",
+								angleBetween(backHeading(axes), azimuth) < Math.toRadians(1.1));
+					}
+					previous = azimuth;
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void keepsTheHeadingOfTheTopBeforeTheBlend() {
+		HeadingKernel kernel = new HeadingKernel();
+		// no roll, so the top of the screen faces the heading at any tilt short of upright
+		for(double tilt = 0d; tilt < 60d; tilt += 5d) {
+			float azimuth = update(kernel, deviceAxes(200d, tilt, 0d));
+			assertTrue(angleBetween((float)Math.toRadians(200d - 360d), azimuth) < ANGLE_TOLERANCE);
+		}
+	}
+	
+	@Test
+	public void keepsTheLastResultInFreeFall() {
+		HeadingKernel kernel = new HeadingKernel();
+		assertFalse(kernel.hasResult());
+		float[] field = earthField();
+		float[][] axes = deviceAxes(45d, 20d, 10d);
+		float[] gravity = gravityReading(axes[0], axes[1], axes[2]);
+		float[] magnetic = reading(axes[0], axes[1], axes[2], field);
+		assertTrue(kernel.update(gravity[0], gravity[1], gravity[2], magnetic[0], magnetic[1], magnetic[2]));
+		float azimuth = kernel.getAzimuth();
+		float pitch = kernel.getPitch();
+		
+		// falling, the accelerometer reads almost nothing, and the platform gives up too
+		assertFalse(kernel.update(0.3f, -0.2f, 0.5f, magnetic[1], magnetic[0], magnetic[2]));
+		assertEquals(null, platformOrientation(Surface.ROTATION_0, new float[] {0.3f, -0.2f, 0.5f}, magnetic));
+		assertTrue(kernel.hasResult());
+		assertEquals(azimuth, kernel.getAzimuth(), 0f);
+		assertEquals(pitch, kernel.getPitch(), 0f);
+		
+		// a field along gravity gives no direction either
+		assertFalse(kernel.update(gravity[0], gravity[1], gravity[2], gravity[0], gravity[1], gravity[2]));
+		assertEquals(azimuth, kernel.getAzimuth(), 0f);
+		
+		kernel.reset();
+		assertFalse(kernel.hasResult());
+	}
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks where durations land and what the percentiles report, with ten 1 ms buckets and the overflow.
+ */
+public class LatencyHistogramTest {
+	private static final long MILLI = 1000000l;
+	private static final int BUCKETS = 10;
+	
+	private LatencyHistogram histogram;
+	
+	@Before
+	public void setUp() {
+		histogram = new LatencyHistogram(MILLI, BUCKETS);
+	}
+	
+	@Test
+	public void reportsNothingWhenEmpty() {
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMeanNanos());
+		assertEquals(0, histogram.getPercentileNanos(50));
+		assertEquals(0, histogram.countAbove(0));
+	}
+	
+	@Test
+	public void putsAnEdgeInTheBucketAbove() {
+		histogram.record(MILLI - 1);
+		assertEquals(MILLI, histogram.getPercentileNanos(100));
+		histogram.reset();
+		histogram.record(MILLI);
+		assertEquals(2 * MILLI, histogram.getPercentileNanos(100));
+	}
+	
+	@Test
+	public void countsNegativeDurationsAsZero() {
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getTotalNanos());
+		assertEquals(MILLI, histogram.getPercentileNanos(100));
+	}
+	
+	@Test
+	public void sendsLongDurationsToTheOverflowBucket() {
+		// the last regular bucket ends at 10 ms
+		histogram.record(BUCKETS * MILLI - 1);
+		assertEquals(BUCKETS * MILLI, histogram.getPercentileNanos(100));
+		histogram.record(BUCKETS * MILLI);
+		histogram.record(250 * MILLI);
+		// the overflow has no upper edge, so the max stands in for it
+		assertEquals(250 * MILLI, histogram.getPercentileNanos(100));
+		assertEquals(250 * MILLI, histogram.getMaxNanos());
+		assertEquals(2, histogram.countAbove(BUCKETS * MILLI));
+		assertEquals(2, histogram.countAbove(1000 * MILLI)); // anything past the last edge counts the overflow
+	}
+	
+	@Test
+	public void readsPercentilesFromTheBucketEdges() {
+		// one sample in each of the ten buckets, 0.5 ms, 1.5 ms ... 9.5 ms
+		for(int i = 0; i < BUCKETS; i++) {
+			histogram.record(i * MILLI + MILLI / 2);
+		}
+		assertEquals(MILLI, histogram.getPercentileNanos(1));
+		assertEquals(MILLI, histogram.getPercentileNanos(10));
+		assertEquals(2 * MILLI, histogram.getPercentileNanos(10.5f));
+		assertEquals(5 * MILLI, histogram.getPercentileNanos(50));
+		assertEquals(9 * MILLI, histogram.getPercentileNanos(90));
+		assertEquals(10 * MILLI, histogram.getPercentileNanos(99));
+		assertEquals(10 * MILLI, histogram.getPercentileNanos(100));
+		assertEquals(5 * MILLI, histogram.getMeanNanos());
+		assertEquals(9 * MILLI + MILLI / 2, histogram.getMaxNanos());
+	}
+	
+	@Test
+	public void countsAboveToTheNearestBucket() {
+		for(int i = 0; i < BUCKETS; i++) {
+			histogram.record(i * MILLI + MILLI / 2);
+		}
+		assertEquals(BUCKETS, histogram.countAbove(0));
+		// the bucket holding the duration is counted whole
+		assertEquals(4, histogram.countAbove(6 * MILLI + MILLI / 2));
+		assertEquals(4, histogram.countAbove(6 * MILLI));
+	}
+	
+	@Test
+	public void resetForgetsEverything() {
+		histogram.record(3 * MILLI);
+		histogram.record(300 * MILLI);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getTotalNanos());
+		assertEquals(0, histogram.getMaxNanos());
+		assertEquals(0, histogram.countAbove(0));
+		histogram.record(MILLI / 2);
+		assertEquals(MILLI, histogram.getPercentileNanos(100));
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Turns a simulated magnetometer with a known hard and soft iron error through every direction.
+ */
+public class MagnetometerCalibratorTest {
+	private static final long RANDOM_SEED = 42l;
+	private static final float OFFSET_X = 12f, OFFSET_Y = -30f, OFFSET_Z = 7.5f; // micro tesla
+	private static final float RADIUS_X = 52f, RADIUS_Y = 45f, RADIUS_Z = 40f; // the field seen along each axis
+	private static final float NOISE = 0.3f;
+	private static final int SAMPLES = 3000;
+	
+	private static float[] sample(Random random, float offsetX, float offsetY, float offsetZ,
+			float radiusX, float radiusY, float radiusZ) {
+		// a random direction, stretched and shifted as the iron around the sensor would
+		double x, y, z, length;
+		do {
+			x = random.nextGaussian();
+			y = random.nextGaussian();
+			z = random.nextGaussian();
+			length = Math.sqrt(x * x + y * y + z * z);
+		} while(length < 1e-6);
+		return new float[] {
+				(float)(offsetX + radiusX * x / length + random.nextGaussian() * NOISE),
+				(float)(offsetY + radiusY * y / length + random.nextGaussian() * NOISE),
+				(float)(offsetZ + radiusZ * z / length + random.nextGaussian() * NOISE)};
+	}
+	
+	private static void feed(MagnetometerCalibrator calibrator, Random random, int count) {
+		for(int i = 0; i < count; i++) {
+			float[] values = sample(random, OFFSET_X, OFFSET_Y, OFFSET_Z, RADIUS_X, RADIUS_Y, RADIUS_Z);
+			calibrator.addSample(values[0], values[1], values[2]);
+		}
+	}
+	
+	@Test
+	public void recoversAKnownOffsetAndScale() {
+		MagnetometerCalibrator calibrator = new MagnetometerCalibrator();
+		Random random = new Random(RANDOM_SEED);
+		assertNull(calibrator.getCalibration());
+		feed(calibrator, random, SAMPLES);
+		
+		MagnetometerCalibrator.Calibration calibration = calibrator.getCalibration();
+		assertNotNull(calibration);
+		assertTrue(calibrator.hasNewCalibration());
+		assertEquals(OFFSET_X, calibration.offsetX, 0.5f);
+		assertEquals(OFFSET_Y, calibration.offsetY, 0.5f);
+		assertEquals(OFFSET_Z, calibration.offsetZ, 0.5f);
+		// each axis is scaled to the average radius
+		float average = (RADIUS_X + RADIUS_Y + RADIUS_Z) / 3f;
+		assertEquals(average / RADIUS_X, calibration.scaleX, 0.01f);
+		assertEquals(average / RADIUS_Y, calibration.scaleY, 0.01f);
+		assertEquals(average / RADIUS_Z, calibration.scaleZ, 0.01f);
+		
+		// corrected readings are the same strength whichever way the device points
+		for(int i = 0; i < 100; i++) {
+			float[] values = sample(random, OFFSET_X, OFFSET_Y, OFFSET_Z, RADIUS_X, RADIUS_Y, RADIUS_Z);
+			calibrator.correct(values);
+			float strength = (float)Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]);
+			assertEquals(average, strength, 2f);
+		}
+	}
+	
+	@Test
+	public void fitsNothingWithoutCoverage() {
+		// turned about one axis only, the other two never sweep far enough
+		MagnetometerCalibrator calibrator = new MagnetometerCalibrator();
+		Random random = new Random(RANDOM_SEED);
+		for(int i = 0; i < SAMPLES; i++) {
+			double angle = random.nextDouble() * Math.PI * 2;
+			calibrator.addSample(OFFSET_X + RADIUS_X * (float)Math.cos(angle), OFFSET_Y + RADIUS_Y * (float)Math.sin(angle), OFFSET_Z);
+		}
+		assertNull(calibrator.getCalibration());
+		assertFalse(calibrator.hasNewCalibration());
+	}
+	
+	@Test
+	public void appliesASavedCalibrationOnceTheReadingsAgree() {
+		MagnetometerCalibrator calibrator = new MagnetometerCalibrator();
+		float average = (RADIUS_X + RADIUS_Y + RADIUS_Z) / 3f;
+		calibrator.loadCalibration(OFFSET_X, OFFSET_Y, OFFSET_Z, average / RADIUS_X, average / RADIUS_Y, average / RADIUS_Z);
+		assertFalse(calibrator.isCalibrated());
+		float[] values = {OFFSET_X + 10f, OFFSET_Y, OFFSET_Z};
+		calibrator.correct(values);
+		assertEquals(OFFSET_X + 10f, values[0], 0f); // not applied until checked
+		
+		// fewer samples than a solve needs, so only the check can have changed anything
+		feed(calibrator, new Random(RANDOM_SEED), 60);
+		assertTrue(calibrator.isCalibrated());
+		assertFalse(calibrator.hasNewCalibration());
+		assertEquals(OFFSET_X, calibrator.getCalibration().offsetX, 0f);
+	}
+	
+	@Test
+	public void dropsAStaleSavedCalibration() {
+		// saved for a different mounting, the offsets and scales no longer match the readings
+		MagnetometerCalibrator calibrator = new MagnetometerCalibrator();
+		calibrator.loadCalibration(-25f, 20f, 30f, 1.3f, 0.8f, 1.1f);
+		Random random = new Random(RANDOM_SEED);
+		int samples = 0;
+		while(!calibrator.hasNewCalibration() && samples < 99) {
+			feed(calibrator, random, 1);
+			samples++;
+		}
+		// dropped before the first solve, and the drop is waiting to be saved
+		assertTrue(calibrator.hasNewCalibration());
+		assertFalse(calibrator.isCalibrated());
+		assertNull(calibrator.getCalibration());
+		float[] values = {1f, 2f, 3f};
+		calibrator.correct(values);
+		assertEquals(1f, values[0], 0f);
+		calibrator.markCalibrationSaved();
+		
+		// the readings then give a calibration of their own
+		feed(calibrator, random, SAMPLES);
+		assertEquals(OFFSET_X, calibrator.getCalibration().offsetX, 0.5f);
+	}
+	
+	@Test
+	public void publishesEachCalibrationWhole() {
+		MagnetometerCalibrator calibrator = new MagnetometerCalibrator();
+		calibrator.setCalibration(1f, 2f, 3f, 1.1f, 1.2f, 1.3f);
+		MagnetometerCalibrator.Calibration first = calibrator.getCalibration();
+		calibrator.setCalibration(4f, 5f, 6f, 0.9f, 0.8f, 0.7f);
+		// a snapshot taken earlier is never changed underneath its reader
+		assertEquals(1f, first.offsetX, 0f);
+		assertEquals(3f, first.offsetZ, 0f);
+		assertEquals(1.3f, first.scaleZ, 0f);
+		assertEquals(6f, calibrator.getCalibration().offsetZ, 0f);
+	}
+}
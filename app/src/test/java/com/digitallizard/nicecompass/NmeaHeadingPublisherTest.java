@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Publishes to listeners on the loopback address and checks what arrives.
+ */
+public class NmeaHeadingPublisherTest {
+	private static final long TIMEOUT_MILLIS = 5000;
+	
+	private NmeaHeadingPublisher publisher;
+	
+	private static String withChecksum(String body) {
+		// the sentence as it should arrive, the checksum worked out the slow way
+		int checksum = 0;
+		for(int i = 0; i < body.length(); i++) {
+			checksum ^= body.charAt(i);
+		}
+		return "$" + body + "*" + String.format("%02X", checksum) + "\r\n";
+	}
+	
+	private static String decode(ByteBuffer buffer) {
+		StringBuilder text = new StringBuilder();
+		while(buffer.hasRemaining()) {
+			text.append((char)buffer.get());
+		}
+		return text.toString();
+	}
+	
+	private static void assertChecksumsValid(String sentences) {
+		for(String sentence : sentences.split("\r\n")) {
+			int star = sentence.indexOf('*');
+			assertTrue(sentence, sentence.startsWith("$") && star > 0);
+			assertEquals(sentence, withChecksum(sentence.substring(1, star)), sentence + "\r\n");
+		}
+	}
+	
+	@Before
+	public void setUp() {
+		// the dispatcher is never started, publish() is called directly
+		publisher = new NmeaHeadingPublisher(new BearingDispatcher(null), 5f);
+	}
+	
+	@After
+	public void tearDown() {
+		publisher.stop();
+	}
+	
+	@Test
+	public void encodesHeadingsWithChecksums() {
+		publisher.encode(123.44f, -2.5f);
+		String sentences = decode(publisher.getBuffer());
+		assertEquals(withChecksum("HCHDG,123.4,,,2.5,W") + withChecksum("HCHDT,120.9,T") + withChecksum("HCHDM,123.4,M"),
+				sentences);
+		assertChecksumsValid(sentences);
+	}
+	
+	@Test
+	public void wrapsHeadingsIntoRange() {
+		publisher.encode(359.96f, 1f);
+		String sentences = decode(publisher.getBuffer());
+		assertEquals(withChecksum("HCHDG,0.0,,,1.0,E") + withChecksum("HCHDT,1.0,T") + withChecksum("HCHDM,0.0,M"),
+				sentences);
+	}
+	
+	@Test
+	public void sendsOverUdp() throws IOException {
+		DatagramChannel listener = DatagramChannel.open();
+		try {
+			listener.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+			listener.configureBlocking(false);
+			publisher.openUdp(listener.socket().getLocalSocketAddress());
+			publisher.publish(45f, 0f);
+			
+			ByteBuffer received = ByteBuffer.allocate(512);
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while(listener.receive(received) == null && System.currentTimeMillis() < deadline) {
+				Thread.yield();
+			}
+			received.flip();
+			String sentences = decode(received);
+			assertEquals(withChecksum("HCHDG,45.0,,,0.0,E") + withChecksum("HCHDT,45.0,T") + withChecksum("HCHDM,45.0,M"),
+					sentences);
+			assertEquals(3, publisher.getSentenceCount());
+		} finally {
+			listener.close();
+		}
+	}
+	
+	@Test
+	public void sendsToTcpClients() throws IOException {
+		publisher.openTcpServer(0);
+		SocketChannel client = SocketChannel.open(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), publisher.getLocalPort()));
+		try {
+			client.configureBlocking(false);
+			String expected = withChecksum("HCHDG,270.0,,,3.0,E") + withChecksum("HCHDT,273.0,T") + withChecksum("HCHDM,270.0,M");
+			
+			// the connection is taken up by the next publish, keep publishing until it has been
+			ByteBuffer received = ByteBuffer.allocate(4096);
+			long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+			while(received.position() < expected.length() && System.currentTimeMillis() < deadline) {
+				publisher.publish(270f, 3f);
+				client.read(received);
+				Thread.yield();
+			}
+			received.flip();
+			String sentences = decode(received);
+			assertTrue(sentences, sentences.startsWith(expected));
+			sentences = sentences.substring(0, sentences.lastIndexOf("\r\n") + 2); // the last may not all be here yet
+			assertChecksumsValid(sentences);
+		} finally {
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Feeds sentences to the parser as they would arrive from a socket and checks what it reports.
+ */
+public class NmeaParserTest {
+	private static final double DEGREES_TOLERANCE = 1e-6;
+	
+	/**
+	 * Keeps the last heading and fix the parser reported.
+	 */
+	private static class RecordingListener implements NmeaParser.Listener {
+		int headingCount;
+		float heading;
+		boolean isTrue;
+		int fixCount;
+		double latitude;
+		double longitude;
+		double altitude;
+		float accuracy;
+		float speed;
+		float bearing;
+		long time;
+		boolean hasDate;
+		
+		public void onHeading(float heading, boolean isTrue) {
+			headingCount++;
+			this.heading = heading;
+			this.isTrue = isTrue;
+		}
+		
+		public void onFix(double latitude, double longitude, double altitude, float accuracy, float speed, float bearing, long time, boolean hasDate) {
+			fixCount++;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.altitude = altitude;
+			this.accuracy = accuracy;
+			this.speed = speed;
+			this.bearing = bearing;
+			this.time = time;
+			this.hasDate = hasDate;
+		}
+	}
+	
+	private RecordingListener listener;
+	private NmeaParser parser;
+	
+	private static String withChecksum(String body) {
+		int checksum = 0;
+		for(int i = 0; i < body.length(); i++) {
+			checksum ^= body.charAt(i);
+		}
+		return "$" + body + "*" + String.format("%02X", checksum);
+	}
+	
+	private static ByteBuffer bufferOf(String text) {
+		// room to read more in after the text, as NmeaReceiver's buffer has
+		ByteBuffer buffer = ByteBuffer.allocate(512);
+		for(int i = 0; i < text.length(); i++) {
+			buffer.put((byte)text.charAt(i));
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	@Before
+	public void setUp() {
+		listener = new RecordingListener();
+		parser = new NmeaParser(listener);
+	}
+	
+	@Test
+	public void readsAnUnterminatedDatagram() {
+		ByteBuffer datagram = bufferOf(withChecksum("HCHDT,123.4,T"));
+		parser.parse(datagram, true);
+		assertEquals(1, listener.headingCount);
+		assertEquals(123.4f, listener.heading, 1e-4f);
+		assertTrue(listener.isTrue);
+		assertEquals(datagram.limit(), datagram.position());
+	}
+	
+	@Test
+	public void readsAnUnterminatedDatagramWithoutAChecksum() {
+		ByteBuffer datagram = bufferOf("$HCHDM,10.0,M");
+		parser.parse(datagram, true);
+		assertEquals(1, listener.headingCount);
+		assertFalse(listener.isTrue);
+		assertEquals(datagram.limit(), datagram.position());
+	}
+	
+	@Test
+	public void waitsForTheEndOfAStreamedSentence() {
+		ByteBuffer stream = bufferOf(withChecksum("HCHDT,123.4,T"));
+		parser.parse(stream);
+		assertEquals(0, listener.headingCount);
+		assertEquals(0, stream.position());
+		assertEquals(0, parser.getErrorCount());
+	}
+	
+	@Test
+	public void joinsASentenceSplitAcrossReads() {
+		String sentences = withChecksum("HCHDT,200.5,T") + "\r\n" + withChecksum("HCHDM,201.5,M") + "\r\n";
+		int split = sentences.length() - 9; // part way through the second sentence
+		ByteBuffer stream = bufferOf(sentences.substring(0, split));
+		parser.parse(stream);
+		assertEquals(1, listener.headingCount);
+		assertEquals(200.5f, listener.heading, 1e-4f);
+		
+		// as NmeaReceiver does: keep the rest, read more in after it
+		stream.compact();
+		for(int i = split; i < sentences.length(); i++) {
+			stream.put((byte)sentences.charAt(i));
+		}
+		stream.flip();
+		parser.parse(stream);
+		assertEquals(2, listener.headingCount);
+		assertEquals(201.5f, listener.heading, 1e-4f);
+		assertFalse(listener.isTrue);
+		assertEquals(2, parser.getSentenceCount());
+		assertEquals(0, parser.getErrorCount());
+	}
+	
+	@Test
+	public void skipsABadChecksum() {
+		String good = withChecksum("HCHDT,123.4,T");
+		String bad = good.substring(0, good.length() - 2) + (good.endsWith("00") ? "01" : "00");
+		parser.parse(bufferOf(bad + "\r\n" + withChecksum("HCHDT,50.0,T") + "\r\n"));
+		assertEquals(1, listener.headingCount);
+		assertEquals(50f, listener.heading, 1e-4f);
+		assertEquals(1, parser.getErrorCount());
+	}
+	
+	@Test
+	public void appliesDeviationAndVariationToHdg() {
+		parser.parse(bufferOf(withChecksum("HCHDG,98.3,1.5,E,12.6,W") + "\r\n"));
+		assertEquals(1, listener.headingCount);
+		assertEquals(98.3f + 1.5f - 12.6f, listener.heading, 1e-4f);
+		assertTrue(listener.isTrue);
+		
+		// without the variation the heading stays magnetic
+		parser.parse(bufferOf(withChecksum("HCHDG,98.3,1.5,W,,") + "\r\n"));
+		assertEquals(98.3f - 1.5f, listener.heading, 1e-4f);
+		assertFalse(listener.isTrue);
+	}
+	
+	@Test
+	public void readsGgaFields() {
+		parser.parse(bufferOf(withChecksum("GPGGA,123519,4807.038,S,01131.000,W,1,08,0.9,545.4,M,46.9,M,,") + "\r\n"));
+		assertEquals(1, listener.fixCount);
+		assertEquals(-(48 + 7.038 / 60), listener.latitude, DEGREES_TOLERANCE);
+		assertEquals(-(11 + 31.0 / 60), listener.longitude, DEGREES_TOLERANCE);
+		assertEquals(545.4, listener.altitude, 1e-9);
+		assertEquals(0.9f * 5f, listener.accuracy, 1e-4f);
+		assertTrue(Float.isNaN(listener.speed));
+		assertTrue(Float.isNaN(listener.bearing));
+		assertEquals((12 * 3600 + 35 * 60 + 19) * 1000l, listener.time);
+		assertFalse(listener.hasDate);
+	}
+	
+	@Test
+	public void ignoresGgaWithoutAFix() {
+		parser.parse(bufferOf(withChecksum("GPGGA,123519,4807.038,N,01131.000,E,0,00,,,M,,M,,") + "\r\n"));
+		assertEquals(0, listener.fixCount);
+		assertEquals(1, parser.getSentenceCount());
+	}
+	
+	@Test
+	public void readsRmcFields() {
+		parser.parse(bufferOf(withChecksum("GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W") + "\r\n"));
+		assertEquals(1, listener.fixCount);
+		assertEquals(48 + 7.038 / 60, listener.latitude, DEGREES_TOLERANCE);
+		assertEquals(11 + 31.0 / 60, listener.longitude, DEGREES_TOLERANCE);
+		assertTrue(Double.isNaN(listener.altitude));
+		assertTrue(Float.isNaN(listener.accuracy));
+		assertEquals(22.4f * 1852f / 3600f, listener.speed, 1e-4f);
+		assertEquals(84.4f, listener.bearing, 1e-4f);
+		assertEquals(764426119000l, listener.time); // 1994-03-23 12:35:19 UTC
+		assertTrue(listener.hasDate);
+	}
+	
+	@Test
+	public void ignoresVoidRmc() {
+		parser.parse(bufferOf(withChecksum("GPRMC,123519,V,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W") + "\r\n"));
+		assertEquals(0, listener.fixCount);
+	}
+}
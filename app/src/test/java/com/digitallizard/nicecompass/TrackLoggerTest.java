@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes tracks with TrackLogger and reads them back with TrackReader.
+ */
+public class TrackLoggerTest {
+	private static final long CLOSE_TIMEOUT_SECONDS = 5;
+	private static final long START_TIME = 1400000000000l;
+	private static final int FIRST_SESSION_FIXES = 300; // past a keyframe interval, so the session has a keyframe in the middle
+	private static final int SECOND_SESSION_FIXES = 20;
+	
+	private File file;
+	
+	private static void closeAndWait(TrackLogger logger) throws InterruptedException {
+		final CountDownLatch closed = new CountDownLatch(1);
+		logger.close(new Runnable() {
+			public void run() {
+				closed.countDown();
+			}
+		});
+		assertTrue(closed.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+	}
+	
+	private static double latitude(int fix) {
+		return 51.5d + fix * 0.0001d;
+	}
+	
+	private static double longitude(int fix) {
+		return -0.1d - fix * 0.00015d;
+	}
+	
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("track", ".log");
+		assertTrue(file.delete()); // the logger writes the header for a new file
+	}
+	
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+	
+	@Test
+	public void readsBackEveryField() throws IOException, InterruptedException {
+		TrackLogger logger = new TrackLogger(file);
+		for(int i = 0; i < FIRST_SESSION_FIXES; i++) {
+			// the optional fields come and go
+			logger.log(START_TIME + i * 1000l, latitude(i), longitude(i), i % 3 != 0, 100d + i * 0.5d,
+					i % 5 != 0, 3f + i % 7, i % 4 == 0 ? Float.NaN : (i * 17.3f) % 360f);
+		}
+		assertEquals(FIRST_SESSION_FIXES, logger.getRecordCount());
+		closeAndWait(logger);
+		
+		TrackReader reader = new TrackReader(new FileInputStream(file));
+		try {
+			for(int i = 0; i < FIRST_SESSION_FIXES; i++) {
+				assertTrue(reader.next());
+				assertEquals(START_TIME + i * 1000l, reader.getTime());
+				assertEquals(latitude(i), reader.getLatitude(), 1e-7);
+				assertEquals(longitude(i), reader.getLongitude(), 1e-7);
+				assertEquals(i % 3 != 0, reader.hasAltitude());
+				if(reader.hasAltitude()) {
+					assertEquals(100d + i * 0.5d, reader.getAltitude(), 0.05d);
+				}
+				assertEquals(i % 5 != 0, reader.hasAccuracy());
+				if(reader.hasAccuracy()) {
+					assertEquals(3f + i % 7, reader.getAccuracy(), 0.05f);
+				}
+				assertEquals(i % 4 != 0, reader.hasBearing());
+				if(reader.hasBearing()) {
+					assertEquals((i * 17.3f) % 360f, reader.getBearing(), 0.05f);
+				}
+			}
+			assertFalse(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+	
+	@Test
+	public void keepsTheAltitudeAcrossSessions() throws IOException, InterruptedException {
+		// the first session ends high up
+		TrackLogger logger = new TrackLogger(file);
+		for(int i = 0; i < FIRST_SESSION_FIXES; i++) {
+			logger.log(START_TIME + i * 1000l, latitude(i), longitude(i), true, 800d + i, true, 5f, Float.NaN);
+		}
+		closeAndWait(logger);
+		
+		// the second is appended to the same file and starts without an altitude, the deltas after it build on its baseline
+		logger = new TrackLogger(file);
+		long secondStart = START_TIME + 3600000l;
+		logger.log(secondStart, latitude(0), longitude(0), false, 0d, true, 5f, Float.NaN);
+		for(int i = 1; i < SECOND_SESSION_FIXES; i++) {
+			logger.log(secondStart + i * 1000l, latitude(i), longitude(i), true, 12.5d + i, true, 5f, Float.NaN);
+		}
+		closeAndWait(logger);
+		
+		TrackReader reader = new TrackReader(new FileInputStream(file));
+		try {
+			for(int i = 0; i < FIRST_SESSION_FIXES; i++) {
+				assertTrue(reader.next());
+				assertEquals(800d + i, reader.getAltitude(), 0.05d);
+			}
+			assertTrue(reader.next());
+			assertEquals(secondStart, reader.getTime());
+			assertFalse(reader.hasAltitude());
+			for(int i = 1; i < SECOND_SESSION_FIXES; i++) {
+				assertTrue(reader.next());
+				assertEquals(secondStart + i * 1000l, reader.getTime());
+				assertTrue(reader.hasAltitude());
+				assertEquals("fix " + i + " of the second session", 12.5d + i, reader.getAltitude(), 0.05d);
+			}
+			assertFalse(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+	
+	@Test
+	public void endsAtAFixCutShort() throws IOException, InterruptedException {
+		TrackLogger logger = new TrackLogger(file);
+		logger.log(START_TIME, latitude(0), longitude(0), true, 10d, true, 5f, 90f);
+		logger.log(START_TIME + 1000l, latitude(1), longitude(1), true, 11d, true, 5f, 91f);
+		closeAndWait(logger);
+		// as if logging had stopped part way through writing the last fix
+		RandomAccessFile cut = new RandomAccessFile(file, "rw");
+		try {
+			cut.setLength(cut.length() - 2);
+		} finally {
+			cut.close();
+		}
+		
+		TrackReader reader = new TrackReader(new FileInputStream(file));
+		try {
+			assertTrue(reader.next());
+			assertEquals(START_TIME, reader.getTime());
+			assertFalse(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * NiceCompass
+ * Released under the BSD License. See README or LICENSE.
+ * Copyright (c) 2011, Digital Lizard (Oscar Key, Thomas Boby)
+ * All rights reserved.
+ ******************************************************************************/
+package com.digitallizard.nicecompass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the tree searches against a brute force search over every point, where the coordinates wrap.
+ */
+public class WaypointStoreTest {
+	private static final long RANDOM_SEED = 42l;
+	private static final double E7 = 10000000d;
+	private static final double DISTANCE_TOLERANCE = 1e-12; // squared chord lengths
+	private static final float BEARING_TOLERANCE = 1e-3f;
+	
+	private static WaypointStore randomStore(Random random, int count, double minLatitude, double maxLatitude,
+			double centerLongitude, double longitudeSpread) {
+		int[] latitudes = new int[count];
+		int[] longitudes = new int[count];
+		String[] names = new String[count];
+		for(int i = 0; i < count; i++) {
+			double latitude = minLatitude + random.nextDouble() * (maxLatitude - minLatitude);
+			double longitude = centerLongitude + (random.nextDouble() * 2d - 1d) * longitudeSpread;
+			// keep within -180 .. 180, so the points straddle the date line when centred on it
+			if(longitude > 180d) {
+				longitude -= 360d;
+			} else if(longitude < -180d) {
+				longitude += 360d;
+			}
+			latitudes[i] = (int)Math.round(latitude * E7);
+			longitudes[i] = (int)Math.round(longitude * E7);
+			names[i] = "point " + i;
+		}
+		return new WaypointStore(latitudes, longitudes, names);
+	}
+	
+	private static double chordSquared(double latitudeA, double longitudeA, double latitudeB, double longitudeB) {
+		double cosA = Math.cos(Math.toRadians(latitudeA));
+		double cosB = Math.cos(Math.toRadians(latitudeB));
+		double dx = cosA * Math.cos(Math.toRadians(longitudeA)) - cosB * Math.cos(Math.toRadians(longitudeB));
+		double dy = cosA * Math.sin(Math.toRadians(longitudeA)) - cosB * Math.sin(Math.toRadians(longitudeB));
+		double dz = Math.sin(Math.toRadians(latitudeA)) - Math.sin(Math.toRadians(latitudeB));
+		return dx * dx + dy * dy + dz * dz;
+	}
+	
+	private static double distanceTo(WaypointStore store, int index, double latitude, double longitude) {
+		return chordSquared(latitude, longitude, store.getLatitude(index), store.getLongitude(index));
+	}
+	
+	private static float bearingTo(WaypointStore store, int index, double latitude, double longitude) {
+		// the usual initial great circle bearing
+		double fromLatitude = Math.toRadians(latitude);
+		double toLatitude = Math.toRadians(store.getLatitude(index));
+		double deltaLongitude = Math.toRadians(store.getLongitude(index) - longitude);
+		double bearing = Math.toDegrees(Math.atan2(Math.sin(deltaLongitude) * Math.cos(toLatitude),
+				Math.cos(fromLatitude) * Math.sin(toLatitude) - Math.sin(fromLatitude) * Math.cos(toLatitude) * Math.cos(deltaLongitude)));
+		return (float)(bearing < 0 ? bearing + 360d : bearing);
+	}
+	
+	private static boolean inArc(float pointBearing, float bearing, float halfAngle) {
+		float offset = Math.abs(pointBearing - bearing) % 360f;
+		if(offset > 180f) {
+			offset = 360f - offset;
+		}
+		return offset <= halfAngle;
+	}
+	
+	private static double[] bruteForceNearest(WaypointStore store, double latitude, double longitude, int wanted,
+			float bearing, float halfAngle, double limit) {
+		// the distances of the nearest points passing the arc and limit, closest first
+		double[] distances = new double[store.size()];
+		int count = 0;
+		for(int i = 0; i < store.size(); i++) {
+			double distance = distanceTo(store, i, latitude, longitude);
+			if(distance <= limit && inArc(bearingTo(store, i, latitude, longitude), bearing, halfAngle)) {
+				distances[count++] = distance;
+			}
+		}
+		Arrays.sort(distances, 0, count);
+		double[] nearest = new double[Math.min(wanted, count)];
+		System.arraycopy(distances, 0, nearest, 0, nearest.length);
+		return nearest;
+	}
+	
+	private static void assertNearestMatchesBruteForce(WaypointStore store, double latitude, double longitude, int wanted) {
+		int[] results = new int[wanted];
+		int found = store.findNearest(latitude, longitude, results);
+		double[] expected = bruteForceNearest(store, latitude, longitude, wanted, 0f, 180f, Double.POSITIVE_INFINITY);
+		assertEquals(expected.length, found);
+		for(int i = 0; i < found; i++) {
+			assertEquals("result " + i + " from " + latitude + ", " + longitude,
+					expected[i], distanceTo(store, results[i], latitude, longitude), DISTANCE_TOLERANCE);
+		}
+	}
+	
+	private static double chordForMeters(float meters) {
+		double chord = 2d * Math.sin(meters / 6371008.8d / 2d);
+		return chord * chord;
+	}
+	
+	@Test
+	public void findsTheNearestAcrossTheDateLine() {
+		WaypointStore store = randomStore(new Random(RANDOM_SEED), 3000, -60d, 60d, 180d, 5d);
+		assertNearestMatchesBruteForce(store, 0d, 179.99d, 25);
+		assertNearestMatchesBruteForce(store, 0d, -179.99d, 25);
+		assertNearestMatchesBruteForce(store, 45d, 180d, 25);
+		assertNearestMatchesBruteForce(store, -30d, -175d, 1);
+	}
+	
+	@Test
+	public void findsTheNearestAroundThePoles() {
+		Random random = new Random(RANDOM_SEED);
+		WaypointStore north = randomStore(random, 2000, 80d, 90d, 0d, 180d);
+		assertNearestMatchesBruteForce(north, 90d, 0d, 25);
+		assertNearestMatchesBruteForce(north, 89.99d, 123d, 25);
+		assertNearestMatchesBruteForce(north, 85d, -179.5d, 25);
+		WaypointStore south = randomStore(random, 2000, -90d, -80d, 0d, 180d);
+		assertNearestMatchesBruteForce(south, -90d, 0d, 25);
+		assertNearestMatchesBruteForce(south, -89.9d, 179.9d, 25);
+	}
+	
+	@Test
+	public void findsEverythingWhenAskedForMoreThanThereIs() {
+		WaypointStore store = randomStore(new Random(RANDOM_SEED), 7, -10d, 10d, 0d, 10d);
+		assertNearestMatchesBruteForce(store, 0d, 0d, 20);
+	}
+	
+	@Test
+	public void returnsNothingWhenNoResultsAreWanted() {
+		WaypointStore store = randomStore(new Random(RANDOM_SEED), 100, -10d, 10d, 0d, 10d);
+		assertEquals(0, store.findNearest(0d, 0d, new int[0]));
+		assertEquals(0, store.findNearestInView(0d, 0d, 0f, 180f, 1e7f, new int[0], new float[0]));
+		WaypointStore empty = new WaypointStore(new int[0], new int[0], new String[0]);
+		assertEquals(0, empty.findNearest(0d, 0d, new int[5]));
+	}
+	
+	@Test
+	public void keepsPointsInTheArcWhenTheOutputIsFull() {
+		// lots of points just south of the query, a few a little further north
+		List<Waypoint> waypoints = new ArrayList<Waypoint>();
+		for(int i = 0; i < 200; i++) {
+			waypoints.add(new Waypoint("south " + i, -0.001d * (i + 1), 0.0001d * (i % 7)));
+		}
+		for(int i = 0; i < 5; i++) {
+			waypoints.add(new Waypoint("north " + i, 0.05d * (i + 1), 0.0001d * i));
+		}
+		WaypointStore store = storeOf(waypoints);
+		int[] indices = new int[5];
+		float[] bearings = new float[5];
+		
+		int found = store.findInView(0d, 0d, 0f, 45f, 50000f, indices, bearings);
+		assertEquals(5, found);
+		for(int i = 0; i < found; i++) {
+			assertTrue(store.getName(indices[i]), store.getName(indices[i]).startsWith("north"));
+			assertTrue(inArc(bearings[i], 0f, 45f));
+		}
+		
+		found = store.findNearestInView(0d, 0d, 0f, 45f, 50000f, indices, bearings);
+		assertEquals(5, found);
+		for(int i = 0; i < found; i++) {
+			assertEquals("north " + i, store.getName(indices[i]));
+			assertEquals(bearingTo(store, indices[i], 0d, 0d), bearings[i], BEARING_TOLERANCE);
+		}
+	}
+	
+	@Test
+	public void findsTheNearestInViewLikeABruteForceSearch() {
+		WaypointStore store = randomStore(new Random(RANDOM_SEED), 3000, -1d, 1d, 180d, 1d);
+		float[] arcBearings = {0f, 90f, 200f, 350f};
+		for(float arcBearing : arcBearings) {
+			int[] indices = new int[15];
+			float[] bearings = new float[15];
+			int found = store.findNearestInView(0.2d, 179.9d, arcBearing, 30f, 80000f, indices, bearings);
+			double[] expected = bruteForceNearest(store, 0.2d, 179.9d, 15, arcBearing, 30f, chordForMeters(80000f));
+			assertEquals(expected.length, found);
+			for(int i = 0; i < found; i++) {
+				assertEquals(expected[i], distanceTo(store, indices[i], 0.2d, 179.9d), DISTANCE_TOLERANCE);
+				assertTrue(inArc(bearings[i], arcBearing, 30f));
+			}
+		}
+	}
+	
+	private static WaypointStore storeOf(List<Waypoint> waypoints) {
+		int[] latitudes = new int[waypoints.size()];
+		int[] longitudes = new int[waypoints.size()];
+		String[] names = new String[waypoints.size()];
+		for(int i = 0; i < waypoints.size(); i++) {
+			latitudes[i] = (int)Math.round(waypoints.get(i).getLatitude() * E7);
+			longitudes[i] = (int)Math.round(waypoints.get(i).getLongitude() * E7);
+			names[i] = waypoints.get(i).getName();
+		}
+		return new WaypointStore(latitudes, longitudes, names);
+	}
+	
+	@Test
+	public void readsBackWhatWasWritten() throws IOException {
+		List<Waypoint> waypoints = new ArrayList<Waypoint>();
+		waypoints.add(new Waypoint("Greenwich", 51.4778d, -0.0014d));
+		waypoints.add(new Waypoint("Troms\u00f8", 69.6492d, 18.9553d));
+		waypoints.add(new Waypoint("date line", -16.5d, 180d));
+		waypoints.add(new Waypoint("", -90d, -180d));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		WaypointStore.write(bytes, waypoints);
+		WaypointStore store = WaypointStore.read(new ByteArrayInputStream(bytes.toByteArray()));
+		
+		assertEquals(waypoints.size(), store.size());
+		// the store keeps its own order, so look each one up by name
+		for(Waypoint waypoint : waypoints) {
+			int index = -1;
+			for(int i = 0; i < store.size(); i++) {
+				if(store.getName(i).equals(waypoint.getName())) {
+					index = i;
+				}
+			}
+			assertTrue(waypoint.getName(), index >= 0);
+			assertEquals(waypoint.getLatitude(), store.getLatitude(index), 1e-7);
+			assertEquals(waypoint.getLongitude(), store.getLongitude(index), 1e-7);
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void rejectsAFileThatIsNotAWaypointFile() throws IOException {
+		WaypointStore.read(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9}));
+	}
+}